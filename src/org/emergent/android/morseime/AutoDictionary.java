@@ -0,0 +1,547 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Printer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * The words the user has typed or picked, counted so that the ones used often become valid
+ * and, used more still, get promoted to the user dictionary.
+ * <p/>
+ * The dictionary holds at most {@link #setCapacity(int) capacity} words, and its counts halve
+ * every {@link #DECAY_SESSIONS} input sessions so that words that fall out of use lose their
+ * rank. Neither is done in a sweep over all the words: a word's halvings are applied when it's
+ * next looked at, each change looks at the next few words in turn, and a new word that doesn't
+ * fit replaces the least used of a few sampled ones.
+ * <p/>
+ * The counts are kept in an app-private file across processes. The file is read on the loader
+ * thread, so creating the dictionary doesn't wait for it, and words learned before it's read
+ * are added to what it holds. Changes are batched in memory and written behind on a background
+ * thread, {@link #FLUSH_DELAY_MS} after the first unsaved change or when {@link #flushAsync()}
+ * is called as input finishes, never on the keystroke path. A write that fails is tried again
+ * later, waiting longer after each failure, up to {@link #MAX_RETRY_DELAY_MS}.
+ * <p/>
+ * The file is a header giving a magic number, the format version, the entry count, a CRC32 of
+ * the entries and the session count, followed by the entries: a count byte and the word as
+ * written by {@link DataOutputStream#writeUTF}. The counts are written with all their halvings
+ * applied. It's written to a temporary file that's then renamed over the old one, and a file
+ * that's truncated or fails its checksum is ignored.
+ *
+ * @author Patrick Woodworth
+ */
+public class AutoDictionary extends ExpandableDictionary {
+
+  // If the user touches a typed word 2 times or more, it will become valid.
+  private static final int VALIDITY_THRESHOLD = 2 * LatinIME.FREQUENCY_FOR_PICKED;
+  // If the user touches a typed word 5 times or more, it will be added to the user dict.
+  private static final int PROMOTION_THRESHOLD = 5 * LatinIME.FREQUENCY_FOR_PICKED;
+
+  private static final int MAX_COUNT = 255;
+
+  public static final int DEFAULT_CAPACITY = 2000;
+  // Input sessions between halvings of the counts
+  public static final int DECAY_SESSIONS = 50;
+  // Words looked at for halvings due on each change, and on each new session
+  private static final int SWEEP_STEP = 4;
+  private static final int SESSION_SWEEP_STEP = 64;
+  // Words sampled for the least used one when a new word doesn't fit
+  private static final int EVICTION_SAMPLES = 8;
+
+  static final String FILE_NAME = "auto_dict.bin";
+
+  static final int MAGIC = 0x4D414431;
+  private static final int VERSION = 2;
+  private static final int VERSION_OFFSET = 4;
+  private static final int COUNT_OFFSET = 6;
+  private static final int CHECKSUM_OFFSET = 10;
+  private static final int SESSION_OFFSET = 14;
+  // Version 1 had no session count
+  private static final int V1_HEADER_SIZE = 14;
+  private static final int HEADER_SIZE = 18;
+
+  // How long the first unsaved change waits for more to be written along with it
+  private static final long FLUSH_DELAY_MS = 60 * 1000;
+  // A failed write is tried again after a delay that doubles with each failure, up to this
+  private static final long MAX_RETRY_DELAY_MS = 30 * 60 * 1000;
+
+  private final LatinIME m_ime;
+  private final Handler m_handler = new Handler();
+
+  // The words by name and in no particular order, guarded by this
+  private final HashMap<String, Entry> m_entries = new HashMap<String, Entry>();
+  private final ArrayList<Entry> m_table = new ArrayList<Entry>();
+  private int m_capacity = DEFAULT_CAPACITY;
+  private int m_session;
+  private int m_epoch;
+  private int m_sweepPosition;
+  private int m_random = 1;
+  private long m_evictions;
+  private long m_forgotten;
+  private boolean m_loaded;
+  private boolean m_dirty;
+  private long m_retryDelay = FLUSH_DELAY_MS;
+
+  private final AtomicBoolean m_flushing = new AtomicBoolean();
+
+  private final Runnable m_flushTask = new Runnable() {
+    public void run() {
+      flushAsync();
+    }
+  };
+
+  static class Entry {
+    final String word;
+    int count;
+    // The epoch whose halvings the count has had, and the entry's place in the table
+    int epoch;
+    int index;
+
+    Entry(String word, int epoch) {
+      this.word = word;
+      this.epoch = epoch;
+    }
+  }
+
+  public AutoDictionary(LatinIME ime) {
+    this(ime, ime);
+  }
+
+  /**
+   * Makes a dictionary with no IME to promote words to, for tests that override
+   * {@link #promote(String)}.
+   */
+  AutoDictionary(Context context) {
+    this(context, null);
+  }
+
+  private AutoDictionary(Context context, LatinIME ime) {
+    super(context);
+    m_ime = ime;
+    reloadAsync();
+  }
+
+  File getFile() {
+    return new File(getContext().getFilesDir(), FILE_NAME);
+  }
+
+  /**
+   * Adds a word used often enough to the user dictionary. Called without holding the lock.
+   */
+  void promote(String word) {
+    m_ime.promoteToUserDictionary(word, LatinIME.FREQUENCY_FOR_AUTO_ADD);
+  }
+
+  /**
+   * Waits for the saved counts to be read, for tests.
+   *
+   * @return whether they were read in time
+   */
+  synchronized boolean waitUntilLoaded(long timeoutMs) throws InterruptedException {
+    final long end = System.currentTimeMillis() + timeoutMs;
+    for (long left = timeoutMs; !m_loaded && left > 0; left = end - System.currentTimeMillis()) {
+      wait(left);
+    }
+    return m_loaded;
+  }
+
+  /**
+   * @return how many words the dictionary holds
+   */
+  synchronized int size() {
+    return m_table.size();
+  }
+
+  /**
+   * Sets how many words the dictionary holds at most, dropping the least used ones if it
+   * holds more.
+   */
+  public synchronized void setCapacity(int capacity) {
+    m_capacity = Math.max(1, capacity);
+    while (m_table.size() > m_capacity) {
+      evict();
+    }
+  }
+
+  /**
+   * Counts an input session, the unit the counts decay in.
+   */
+  public synchronized void startSession() {
+    m_session++;
+    m_epoch = m_session / DECAY_SESSIONS;
+    // The session count is saved too
+    markDirty();
+    sweep(SESSION_SWEEP_STEP);
+  }
+
+  @Override
+  public boolean isValidWord(CharSequence word) {
+    final int frequency = getWordFrequency(word);
+    return frequency > VALIDITY_THRESHOLD;
+  }
+
+  @Override
+  public void addWord(String word, int addFrequency) {
+    final int length = word.length();
+    // Don't add very short or very long words.
+    if (length < 2 || length > getMaxWordLength()) return;
+    final boolean promote;
+    synchronized (this) {
+      Entry entry = m_entries.get(word);
+      if (entry == null) {
+        if (m_table.size() >= m_capacity) evict();
+        entry = new Entry(word, m_epoch);
+        insert(entry);
+      } else {
+        decay(entry);
+      }
+      final int before = entry.count;
+      entry.count = Math.min(MAX_COUNT, before + addFrequency);
+      setWordFrequency(word, entry.count);
+      promote = before <= PROMOTION_THRESHOLD && entry.count > PROMOTION_THRESHOLD;
+      markDirty();
+      sweep(SWEEP_STEP);
+    }
+    if (promote) {
+      promote(word);
+    }
+  }
+
+  /**
+   * Notes an unsaved change, scheduling a write if it's the first. Until the saved counts have
+   * been read, {@link #reload()} schedules it instead.
+   */
+  private void markDirty() {
+    if (m_dirty) return;
+    m_dirty = true;
+    if (m_loaded) m_handler.postDelayed(m_flushTask, FLUSH_DELAY_MS);
+  }
+
+  private void insert(Entry entry) {
+    entry.index = m_table.size();
+    m_table.add(entry);
+    m_entries.put(entry.word, entry);
+  }
+
+  private void remove(Entry entry) {
+    final Entry last = m_table.remove(m_table.size() - 1);
+    if (last != entry) {
+      m_table.set(entry.index, last);
+      last.index = entry.index;
+    }
+    m_entries.remove(entry.word);
+    setWordFrequency(entry.word, -1);
+  }
+
+  /**
+   * Applies the halvings due since the entry was last looked at, to the entry only.
+   *
+   * @return whether the count changed
+   */
+  private boolean decay(Entry entry) {
+    final int halvings = m_epoch - entry.epoch;
+    if (halvings <= 0) return false;
+    entry.epoch = m_epoch;
+    final int count = halvings >= 8 ? 0 : entry.count >> halvings;
+    if (count == entry.count) return false;
+    entry.count = count;
+    return true;
+  }
+
+  /**
+   * Applies the halvings due to the next few entries, publishing their new counts and
+   * forgetting the ones that drop to 0.
+   */
+  private void sweep(int step) {
+    for (int i = 0; i < step && !m_table.isEmpty(); i++) {
+      if (m_sweepPosition >= m_table.size()) m_sweepPosition = 0;
+      final Entry entry = m_table.get(m_sweepPosition);
+      if (!decay(entry)) {
+        m_sweepPosition++;
+      } else if (entry.count == 0) {
+        // The last entry takes its place, and is looked at next
+        remove(entry);
+        m_forgotten++;
+        markDirty();
+      } else {
+        setWordFrequency(entry.word, entry.count);
+        m_sweepPosition++;
+        markDirty();
+      }
+    }
+  }
+
+  /**
+   * Drops the least used of a few entries sampled from the table.
+   */
+  private void evict() {
+    final int size = m_table.size();
+    if (size == 0) return;
+    Entry victim = null;
+    for (int i = 0; i < EVICTION_SAMPLES; i++) {
+      // xorshift, good enough to pick samples with and allocation free
+      m_random ^= m_random << 13;
+      m_random ^= m_random >>> 17;
+      m_random ^= m_random << 5;
+      final Entry entry = m_table.get((m_random & Integer.MAX_VALUE) % size);
+      if (decay(entry)) setWordFrequency(entry.word, entry.count);
+      if (victim == null || entry.count < victim.count) victim = entry;
+    }
+    remove(victim);
+    m_evictions++;
+    markDirty();
+  }
+
+  /**
+   * Reads the saved counts, adds them to the ones learned meanwhile and publishes the lot.
+   */
+  @Override
+  protected void reload() {
+    final ArrayList<Entry> saved = new ArrayList<Entry>();
+    final int savedSession = read(getFile(), saved);
+    synchronized (this) {
+      if (m_loaded) return;
+      // Sessions started before loading carry on from the saved ones
+      m_session += savedSession;
+      m_epoch = m_session / DECAY_SESSIONS;
+      final int savedEpoch = savedSession / DECAY_SESSIONS;
+      for (int i = 0; i < m_table.size(); i++) {
+        m_table.get(i).epoch = m_epoch;
+      }
+      for (int i = 0; i < saved.size(); i++) {
+        final Entry entry = saved.get(i);
+        entry.epoch = savedEpoch;
+        decay(entry);
+        final Entry learned = m_entries.get(entry.word);
+        if (learned != null) {
+          learned.count = Math.min(MAX_COUNT, learned.count + entry.count);
+        } else if (entry.count > 0) {
+          insert(entry);
+        }
+      }
+      while (m_table.size() > m_capacity) {
+        evict();
+      }
+      final NodeArray roots = new NodeArray();
+      for (int i = 0; i < m_table.size(); i++) {
+        final Entry entry = m_table.get(i);
+        addWord(roots, entry.word, entry.count);
+      }
+      publish(roots);
+      m_loaded = true;
+      notifyAll();
+      // Nothing was written while loading, so as not to lose the saved words
+      if (m_dirty) m_handler.postDelayed(m_flushTask, FLUSH_DELAY_MS);
+    }
+  }
+
+  /**
+   * Writes the counts out on a background thread, if they changed since they were last written.
+   */
+  public void flushAsync() {
+    m_handler.removeCallbacks(m_flushTask);
+    if (!m_flushing.compareAndSet(false, true)) return;
+    new Thread("AutoDictionaryWriter") {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+          while (write()) {
+            // Changes made while writing are written next
+          }
+        } finally {
+          m_flushing.set(false);
+        }
+      }
+    }.start();
+  }
+
+  /**
+   * @return true if the counts were written, false if there was nothing to write or it failed,
+   *         in which case it's tried again later
+   */
+  boolean write() {
+    final String[] words;
+    final int[] counts;
+    final int session;
+    synchronized (this) {
+      if (!m_dirty || !m_loaded) return false;
+      m_dirty = false;
+      final int size = m_table.size();
+      words = new String[size];
+      counts = new int[size];
+      for (int i = 0; i < size; i++) {
+        final Entry entry = m_table.get(i);
+        final int halvings = m_epoch - entry.epoch;
+        words[i] = entry.word;
+        counts[i] = halvings >= 8 ? 0 : entry.count >> halvings;
+      }
+      session = m_session;
+    }
+    try {
+      write(getFile(), words, counts, session);
+      synchronized (this) {
+        m_retryDelay = FLUSH_DELAY_MS;
+      }
+      return true;
+    } catch (IOException e) {
+      LOG.warn(e, "AutoDictionary: couldn't save learned words");
+      synchronized (this) {
+        m_dirty = true;
+        // Changes made meanwhile may have posted a flush, this one replaces it
+        m_handler.removeCallbacks(m_flushTask);
+        m_handler.postDelayed(m_flushTask, m_retryDelay);
+        m_retryDelay = Math.min(2 * m_retryDelay, MAX_RETRY_DELAY_MS);
+      }
+      return false;
+    }
+  }
+
+  static void write(File file, String[] words, int[] counts, int session)
+      throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + words.length * 8);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeShort(VERSION);
+    out.writeInt(0);
+    out.writeInt(0);
+    out.writeInt(session);
+    int count = 0;
+    for (int i = 0; i < words.length; i++) {
+      if (counts[i] == 0) continue;
+      out.writeByte(counts[i]);
+      out.writeUTF(words[i]);
+      count++;
+    }
+    out.flush();
+    final byte[] data = bytes.toByteArray();
+    final CRC32 crc = new CRC32();
+    crc.update(data, HEADER_SIZE, data.length - HEADER_SIZE);
+    final ByteBuffer header = ByteBuffer.wrap(data);
+    header.putInt(COUNT_OFFSET, count);
+    header.putInt(CHECKSUM_OFFSET, (int) crc.getValue());
+
+    final File temp = new File(file.getPath() + ".tmp");
+    final FileOutputStream fos = new FileOutputStream(temp);
+    try {
+      fos.write(data);
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    if (!temp.renameTo(file)) {
+      throw new IOException("couldn't replace " + file);
+    }
+  }
+
+  /**
+   * Reads the saved counts into entries, leaving it empty if there's no file or it's damaged.
+   *
+   * @return the saved session count
+   */
+  private static int read(File file, ArrayList<Entry> entries) {
+    if (!file.exists()) return 0;
+    try {
+      final byte[] data = new byte[(int) file.length()];
+      final DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        in.readFully(data);
+      } finally {
+        in.close();
+      }
+      final ByteBuffer header = ByteBuffer.wrap(data);
+      if (data.length < V1_HEADER_SIZE || header.getInt(0) != MAGIC) {
+        LOG.warn("AutoDictionary: %s is not a word list", file);
+        return 0;
+      }
+      final int version = header.getShort(VERSION_OFFSET) & 0xFFFF;
+      if (version != VERSION && version != 1) {
+        LOG.warn("AutoDictionary: unsupported word list version %d", version);
+        return 0;
+      }
+      final int headerSize = version == 1 ? V1_HEADER_SIZE : HEADER_SIZE;
+      if (data.length < headerSize) {
+        LOG.warn("AutoDictionary: truncated word list");
+        return 0;
+      }
+      final CRC32 crc = new CRC32();
+      crc.update(data, headerSize, data.length - headerSize);
+      if ((int) crc.getValue() != header.getInt(CHECKSUM_OFFSET)) {
+        LOG.warn("AutoDictionary: word list checksum mismatch");
+        return 0;
+      }
+      final DataInputStream words = new DataInputStream(
+          new ByteArrayInputStream(data, headerSize, data.length - headerSize));
+      final int count = header.getInt(COUNT_OFFSET);
+      for (int i = 0; i < count; i++) {
+        final int frequency = words.readUnsignedByte();
+        final Entry entry = new Entry(words.readUTF(), 0);
+        entry.count = frequency;
+        entries.add(entry);
+      }
+      return version == 1 ? 0 : header.getInt(SESSION_OFFSET);
+    } catch (IOException e) {
+      LOG.warn(e, "AutoDictionary: couldn't read learned words");
+      entries.clear();
+      return 0;
+    }
+  }
+
+  /**
+   * Estimates the heap taken by the words, their counts and their trie. Walks the trie.
+   */
+  public long getHeapBytes() {
+    long bytes = super.getHeapBytes();
+    synchronized (this) {
+      final int size = m_table.size();
+      // The map's and the table's arrays, a reference per entry each with some slack
+      bytes += 32 + 12L * size;
+      for (int i = 0; i < size; i++) {
+        // The Entry, its map entry and the String with its char[]
+        bytes += 24 + 24 + 24 + ((12 + 2 * m_table.get(i).word.length() + 7) & ~7);
+      }
+    }
+    return bytes;
+  }
+
+  public void dump(Printer p, String prefix) {
+    final long heapBytes = getHeapBytes();
+    synchronized (this) {
+      p.println(prefix + "entries=" + m_table.size() + " capacity=" + m_capacity
+          + " evictions=" + m_evictions + " forgotten=" + m_forgotten);
+      p.println(prefix + "session=" + m_session + " epoch=" + m_epoch + " loaded=" + m_loaded
+          + " dirty=" + m_dirty + " heap=" + heapBytes + "B");
+    }
+  }
+}
@@ -17,10 +17,30 @@
 package org.emergent.android.morseime;
 
 import android.content.Context;
-import android.content.res.AssetManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
 /**
  * Implements a static, compacted, binary dictionary of standard words.
+ * <p/>
+ * The dictionary is memory mapped straight out of the apk and walked in place, so nothing but
+ * the search buffers below lives on the Java heap. Each node is a child count byte followed by
+ * that many children, each of which is a character (one byte, or 0xFF and a two byte big-endian
+ * char), a flags byte carrying the terminal bit and the optional 22-bit address of its own
+ * children, and a frequency byte if it's terminal.
+ * <p/>
+ * Dictionaries compiled by tools/makedict start with a header giving the format version, the
+ * locale, the root node address and a CRC32 of the node data, and share identical suffixes
+ * between words. Older headerless dictionaries have their root node at offset 0.
  */
 public class BinaryDictionary extends Dictionary {
 
@@ -31,18 +51,36 @@ public class BinaryDictionary extends Dictionary {
   private static final int TYPED_LETTER_MULTIPLIER = 2;
   private static final boolean ENABLE_MISSED_CHARACTERS = true;
 
-  private int mNativeDict;
+  private static final int FLAG_TERMINAL_MASK = 0x80;
+  private static final int FLAG_ADDRESS_MASK = 0x40;
+  private static final int ADDRESS_HIGH_MASK = 0x3F;
+  private static final int CHAR_ESCAPE = 0xFF;
+  private static final char QUOTE = '\'';
+
+  // Header layout, see tools/makedict
+  private static final int MAGIC = 0x4D4F5253;
+  private static final int VERSION = 1;
+  private static final int FIXED_HEADER_SIZE = 26;
+  private static final int HEADER_SIZE_OFFSET = 6;
+  private static final int WORD_COUNT_OFFSET = 8;
+  private static final int ROOT_OFFSET = 12;
+  private static final int DATA_LENGTH_OFFSET = 16;
+  private static final int CHECKSUM_OFFSET = 20;
+  private static final int LOCALE_LENGTH_OFFSET = 25;
+
+  private ByteBuffer mDict;
+  private int mRoot;
+  private int mWordCount = -1;
+  private String mLocale;
   private int[] mInputCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
   private char[] mOutputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
   private int[] mFrequencies = new int[MAX_WORDS];
+  private char[] mWord = new char[MAX_WORD_LENGTH];
 
-  static {
-//        try {
-//            System.loadLibrary("jni_latinime");
-//        } catch (UnsatisfiedLinkError ule) {
-//            Log.e("BinaryDictionary", "Could not load native library jni_latinime");
-//        }
-  }
+  private int mInputLength;
+  private int mMaxDepth;
+  private int mSkipPos;
+  private int mNodesVisited;
 
   /**
    * Create a dictionary from a raw resource file
@@ -56,79 +94,357 @@ public class BinaryDictionary extends Dictionary {
     }
   }
 
-//    private native int openNative(AssetManager am, String resourcePath, int typedLetterMultiplier,
-//            int fullWordMultiplier);
-//    private native void closeNative(int dict);
-//    private native boolean isValidWordNative(int nativeData, char[] word, int wordLength);
-//    private native int getSuggestionsNative(int dict, int[] inputCodes, int codesSize,
-//            char[] outputChars, int[] frequencies,
-//            int maxWordLength, int maxWords, int maxAlternatives, int skipPos);
+  /**
+   * Create a dictionary from a buffer holding a compiled dictionary, such as a file written by
+   * tools/makedict
+   */
+  BinaryDictionary(ByteBuffer dict) {
+    if (readHeader(dict)) {
+      mDict = dict;
+    }
+  }
 
   private final void loadDictionary(Context context, int resId) {
-    AssetManager am = context.getResources().getAssets();
-    String assetName = context.getResources().getString(resId);
-//        mNativeDict = openNative(am, assetName, TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER);
+    Resources res = context.getResources();
+    try {
+      mDict = mapDictionary(res, resId);
+    } catch (Resources.NotFoundException e) {
+      // aapt compressed the resource, so there is no file region to map
+      LOG.info("BinaryDictionary: resource is compressed, copying it instead");
+    } catch (IOException e) {
+      LOG.warn(e, "BinaryDictionary: couldn't map dictionary");
+    }
+    if (mDict == null) {
+      try {
+        mDict = readDictionary(res, resId);
+      } catch (IOException e) {
+        LOG.error(e, "BinaryDictionary: couldn't read dictionary");
+      }
+    }
+    if (mDict != null && !readHeader(mDict)) {
+      mDict = null;
+    }
+  }
+
+  /**
+   * Finds the root node, checking the header and node data of compiled dictionaries.
+   *
+   * @return false if the dictionary is unusable
+   */
+  private boolean readHeader(ByteBuffer dict) {
+    if (dict.capacity() < FIXED_HEADER_SIZE || dict.getInt(0) != MAGIC) {
+      // Headerless dictionary
+      mRoot = 0;
+      return dict.capacity() > 0;
+    }
+    final int version = dict.getShort(4) & 0xFFFF;
+    if (version != VERSION) {
+      LOG.error("BinaryDictionary: unsupported dictionary version %d", version);
+      return false;
+    }
+    final int headerSize = dict.getShort(HEADER_SIZE_OFFSET) & 0xFFFF;
+    final int dataLength = dict.getInt(DATA_LENGTH_OFFSET);
+    final int localeLength = dict.get(LOCALE_LENGTH_OFFSET) & 0xFF;
+    if (headerSize != FIXED_HEADER_SIZE + localeLength
+        || dataLength < 0 || headerSize + dataLength != dict.capacity()) {
+      LOG.error("BinaryDictionary: truncated dictionary");
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer data = dict.duplicate();
+    data.position(headerSize);
+    byte[] buf = new byte[4096];
+    while (data.hasRemaining()) {
+      int len = Math.min(buf.length, data.remaining());
+      data.get(buf, 0, len);
+      crc.update(buf, 0, len);
+    }
+    if ((int) crc.getValue() != dict.getInt(CHECKSUM_OFFSET)) {
+      LOG.error("BinaryDictionary: dictionary checksum mismatch");
+      return false;
+    }
+    StringBuilder locale = new StringBuilder(localeLength);
+    for (int i = 0; i < localeLength; i++) {
+      locale.append((char) (dict.get(FIXED_HEADER_SIZE + i) & 0xFF));
+    }
+    mLocale = locale.toString();
+    mWordCount = dict.getInt(WORD_COUNT_OFFSET);
+    mRoot = dict.getInt(ROOT_OFFSET);
+    return mRoot >= headerSize && mRoot < dict.capacity();
+  }
+
+  /**
+   * @return the locale recorded by the dictionary compiler, or null for older dictionaries
+   */
+  public String getLocale() {
+    return mLocale;
+  }
+
+  /**
+   * @return the number of words recorded by the dictionary compiler, or -1 if unknown
+   */
+  public int getWordCount() {
+    return mWordCount;
+  }
+
+  private static ByteBuffer mapDictionary(Resources res, int resId) throws IOException {
+    AssetFileDescriptor afd = res.openRawResourceFd(resId);
+    if (afd == null) return null;
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(afd.getFileDescriptor());
+      // The mapping stays valid after the stream and descriptor are closed
+      return in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+          afd.getStartOffset(), afd.getLength());
+    } finally {
+      if (in != null) in.close();
+      afd.close();
+    }
+  }
+
+  private static ByteBuffer readDictionary(Resources res, int resId) throws IOException {
+    InputStream in = res.openRawResource(resId);
+    if (in == null) return null;
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int len;
+      while ((len = in.read(buf)) > 0) {
+        out.write(buf, 0, len);
+      }
+      byte[] data = out.toByteArray();
+      ByteBuffer dict = ByteBuffer.allocateDirect(data.length);
+      dict.put(data);
+      dict.flip();
+      return dict;
+    } finally {
+      in.close();
+    }
   }
 
   @Override
-  public void getWords(final WordComposer codes, final WordCallback callback) {
-//        final int codesSize = codes.size();
-//        // Wont deal with really long words.
-//        if (codesSize > MAX_WORD_LENGTH - 1) return;
-//
-//        Arrays.fill(mInputCodes, -1);
-//        for (int i = 0; i < codesSize; i++) {
-//            int[] alternatives = codes.getCodesAt(i);
-//            System.arraycopy(alternatives, 0, mInputCodes, i * MAX_ALTERNATIVES,
-//                    Math.min(alternatives.length, MAX_ALTERNATIVES));
-//        }
-//        Arrays.fill(mOutputChars, (char) 0);
-//        Arrays.fill(mFrequencies, 0);
-//
-//        int count = getSuggestionsNative(mNativeDict, mInputCodes, codesSize,
-//                mOutputChars, mFrequencies,
-//                MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, -1);
-//
-//        // If there aren't sufficient suggestions, search for words by allowing wild cards at
-//        // the different character positions. This feature is not ready for prime-time as we need
-//        // to figure out the best ranking for such words compared to proximity corrections and
-//        // completions.
-//        if (ENABLE_MISSED_CHARACTERS && count < 5) {
-//            for (int skip = 0; skip < codesSize; skip++) {
-//                int tempCount = getSuggestionsNative(mNativeDict, mInputCodes, codesSize,
-//                        mOutputChars, mFrequencies,
-//                        MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, skip);
-//                count = Math.max(count, tempCount);
-//                if (tempCount > 0) break;
-//            }
-//        }
-//
-//        for (int j = 0; j < count; j++) {
-//            if (mFrequencies[j] < 1) break;
-//            int start = j * MAX_WORD_LENGTH;
-//            int len = 0;
-//            while (mOutputChars[start + len] != 0) {
-//                len++;
-//            }
-//            if (len > 0) {
-//                callback.addWord(mOutputChars, start, len, mFrequencies[j]);
-//            }
-//        }
+  public synchronized void getWords(final WordComposer codes, final WordCallback callback) {
+    final ByteBuffer dict = mDict;
+    if (dict == null) return;
+    final int codesSize = codes.size();
+    // Wont deal with really long words.
+    if (codesSize > MAX_WORD_LENGTH - 1) return;
+
+    Arrays.fill(mInputCodes, -1);
+    for (int i = 0; i < codesSize; i++) {
+      int[] alternatives = codes.getCodesAt(i);
+      System.arraycopy(alternatives, 0, mInputCodes, i * MAX_ALTERNATIVES,
+          Math.min(alternatives.length, MAX_ALTERNATIVES));
+    }
+    Arrays.fill(mOutputChars, (char) 0);
+    Arrays.fill(mFrequencies, 0);
+    mNodesVisited = 0;
+
+    int count = getSuggestions(dict, codesSize, -1);
+
+    // If there aren't sufficient suggestions, search for words by allowing wild cards at
+    // the different character positions. This feature is not ready for prime-time as we need
+    // to figure out the best ranking for such words compared to proximity corrections and
+    // completions.
+    if (ENABLE_MISSED_CHARACTERS && count < 5) {
+      for (int skip = 0; skip < codesSize; skip++) {
+        int tempCount = getSuggestions(dict, codesSize, skip);
+        count = Math.max(count, tempCount);
+        if (tempCount > 0) break;
+      }
+    }
+
+    for (int j = 0; j < count; j++) {
+      if (mFrequencies[j] < 1) break;
+      int start = j * MAX_WORD_LENGTH;
+      int len = 0;
+      while (len < MAX_WORD_LENGTH && mOutputChars[start + len] != 0) {
+        len++;
+      }
+      if (len > 0) {
+        callback.addWord(mOutputChars, start, len, mFrequencies[j]);
+      }
+    }
+  }
+
+  @Override
+  public synchronized int getNodesVisited() {
+    return mNodesVisited;
+  }
+
+  private int getSuggestions(ByteBuffer dict, int inputLength, int skipPos) {
+    mInputLength = inputLength;
+    mMaxDepth = Math.min(inputLength * 3, MAX_WORD_LENGTH - 1);
+    mSkipPos = skipPos;
+    getWordsRec(dict, mRoot, 0, false, 1, 0);
+
+    int count = 0;
+    while (count < MAX_WORDS && mFrequencies[count] > 0) count++;
+    return count;
+  }
+
+  /**
+   * Walks the mapped trie the same way {@link ExpandableDictionary} walks its nodes, reading
+   * each child in place instead of materializing it.
+   *
+   * @param dict       the mapped dictionary
+   * @param pos        offset of the node whose children have to be searched
+   * @param depth      the length of the word being composed thus far
+   * @param completion whether the input has been exhausted and we're collecting suffixes
+   * @param snr        current weight of the word being formed
+   * @param inputIndex position in the input characters, which trails depth for skipped quotes
+   */
+  private void getWordsRec(ByteBuffer dict, int pos, int depth, boolean completion, int snr,
+                           int inputIndex) {
+    // Optimization: Prune out words that are too long compared to how much was typed.
+    if (depth > mMaxDepth) {
+      return;
+    }
+    int currentChars = -1;
+    if (mInputLength <= inputIndex) {
+      completion = true;
+    } else {
+      currentChars = inputIndex * MAX_ALTERNATIVES;
+    }
+
+    final int count = dict.get(pos++) & 0xFF;
+    mNodesVisited += count;
+    for (int i = 0; i < count; i++) {
+      char c = (char) (dict.get(pos++) & 0xFF);
+      if (c == CHAR_ESCAPE) {
+        c = (char) (((dict.get(pos) & 0xFF) << 8) | (dict.get(pos + 1) & 0xFF));
+        pos += 2;
+      }
+      final int flags = dict.get(pos++) & 0xFF;
+      final boolean terminal = (flags & FLAG_TERMINAL_MASK) != 0;
+      int childPos = 0;
+      if ((flags & FLAG_ADDRESS_MASK) != 0) {
+        childPos = ((flags & ADDRESS_HIGH_MASK) << 16)
+            | ((dict.get(pos) & 0xFF) << 8) | (dict.get(pos + 1) & 0xFF);
+        pos += 2;
+      }
+      final int freq = terminal ? dict.get(pos++) & 0xFF : 1;
+      final char lowerC = ExpandableDictionary.toLowerCase(c);
+
+      if (completion) {
+        mWord[depth] = c;
+        if (terminal) {
+          addWord(mWord, depth + 1, freq * snr);
+        }
+        if (childPos != 0) {
+          getWordsRec(dict, childPos, depth + 1, true, snr, inputIndex);
+        }
+      } else if ((c == QUOTE && mInputCodes[currentChars] != QUOTE) || depth == mSkipPos) {
+        // Skip the ' or the missing character and continue deeper
+        mWord[depth] = c;
+        if (childPos != 0) {
+          getWordsRec(dict, childPos, depth + 1, false, snr, inputIndex);
+        }
+      } else {
+        for (int j = 0; j < MAX_ALTERNATIVES; j++) {
+          final int currentChar = mInputCodes[currentChars + j];
+          if (currentChar <= 0) break;
+          final int addedWeight = j == 0 ? TYPED_LETTER_MULTIPLIER : 1;
+          if (currentChar == lowerC || currentChar == c) {
+            mWord[depth] = c;
+            if (mInputLength == inputIndex + 1) {
+              if (terminal && !sameAsTyped(mWord, depth + 1)) {
+                int finalFreq = freq * snr * addedWeight;
+                if (mSkipPos < 0) finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
+                addWord(mWord, depth + 1, finalFreq);
+              }
+              if (childPos != 0) {
+                getWordsRec(dict, childPos, depth + 1, true, snr * addedWeight, inputIndex + 1);
+              }
+            } else if (childPos != 0) {
+              getWordsRec(dict, childPos, depth + 1, false, snr * addedWeight, inputIndex + 1);
+            }
+          }
+          // Don't use alternatives if we're looking for missing characters
+          if (mSkipPos >= 0) break;
+        }
+      }
+    }
+  }
+
+  private boolean sameAsTyped(char[] word, int length) {
+    if (length != mInputLength) return false;
+    for (int i = 0; i < length; i++) {
+      if (word[i] != mInputCodes[i * MAX_ALTERNATIVES]) return false;
+    }
+    return true;
+  }
+
+  private boolean addWord(char[] word, int length, int frequency) {
+    if (length >= MAX_WORD_LENGTH) return false;
+    int insertAt = 0;
+    while (insertAt < MAX_WORDS) {
+      if (frequency > mFrequencies[insertAt]
+          || (frequency == mFrequencies[insertAt]
+          && length < wordLength(insertAt * MAX_WORD_LENGTH))) {
+        break;
+      }
+      insertAt++;
+    }
+    if (insertAt >= MAX_WORDS) return false;
+    System.arraycopy(mFrequencies, insertAt, mFrequencies, insertAt + 1,
+        MAX_WORDS - insertAt - 1);
+    System.arraycopy(mOutputChars, insertAt * MAX_WORD_LENGTH,
+        mOutputChars, (insertAt + 1) * MAX_WORD_LENGTH,
+        (MAX_WORDS - insertAt - 1) * MAX_WORD_LENGTH);
+    mFrequencies[insertAt] = frequency;
+    final int start = insertAt * MAX_WORD_LENGTH;
+    System.arraycopy(word, 0, mOutputChars, start, length);
+    mOutputChars[start + length] = 0;
+    return true;
+  }
+
+  private int wordLength(int start) {
+    int len = 0;
+    while (len < MAX_WORD_LENGTH && mOutputChars[start + len] != 0) len++;
+    return len;
   }
 
   @Override
-  public boolean isValidWord(CharSequence word) {
-//        if (word == null) return false;
-//        char[] chars = word.toString().toCharArray();
-//        return isValidWordNative(mNativeDict, chars, chars.length);
+  public synchronized boolean isValidWord(CharSequence word) {
+    final ByteBuffer dict = mDict;
+    if (word == null || dict == null) return false;
+    final int length = word.length();
+    if (length == 0) return false;
+    int pos = mRoot;
+    for (int offset = 0; offset < length; offset++) {
+      final char currentChar = word.charAt(offset);
+      final int count = dict.get(pos++) & 0xFF;
+      int next = -1;
+      for (int i = 0; i < count && next < 0; i++) {
+        char c = (char) (dict.get(pos++) & 0xFF);
+        if (c == CHAR_ESCAPE) {
+          c = (char) (((dict.get(pos) & 0xFF) << 8) | (dict.get(pos + 1) & 0xFF));
+          pos += 2;
+        }
+        final int flags = dict.get(pos++) & 0xFF;
+        int childPos = 0;
+        if ((flags & FLAG_ADDRESS_MASK) != 0) {
+          childPos = ((flags & ADDRESS_HIGH_MASK) << 16)
+              | ((dict.get(pos) & 0xFF) << 8) | (dict.get(pos + 1) & 0xFF);
+          pos += 2;
+        }
+        final boolean terminal = (flags & FLAG_TERMINAL_MASK) != 0;
+        if (terminal) pos++;
+        if (c == currentChar) {
+          if (offset == length - 1) return terminal;
+          next = childPos;
+        }
+      }
+      if (next <= 0) return false;
+      pos = next;
+    }
     return false;
   }
 
   public synchronized void close() {
-//        if (mNativeDict != 0) {
-//            closeNative(mNativeDict);
-//            mNativeDict = 0;
-//        }
+    // A mapping can't be unmapped explicitly; dropping it lets the collector release it
+    mDict = null;
   }
 
   @Override
@@ -41,10 +41,12 @@ import android.widget.TextView;
 public class CandidateView extends View {
 
   private static final int OUT_OF_BOUNDS = -1;
-  private static final List<CharSequence> EMPTY_LIST = new ArrayList<CharSequence>();
 
   private LatinIME mService;
-  private List<CharSequence> mSuggestions = EMPTY_LIST;
+  // The words shown, copied into builders of our own that the next set reuses; a picked word
+  // is handed over as a String, since picking it sets the strip that follows
+  private final ArrayList<CharSequence> mSuggestions = new ArrayList<CharSequence>();
+  private final ArrayList<StringBuilder> mWordBuilders = new ArrayList<StringBuilder>();
   private boolean mShowingCompletions;
   private CharSequence mSelectedString;
   private int mSelectedIndex;
@@ -289,7 +291,15 @@ public class CandidateView extends View {
                              boolean typedWordValid, boolean haveMinimalSuggestion) {
     clear();
     if (suggestions != null) {
-      mSuggestions = new ArrayList<CharSequence>(suggestions);
+      for (int i = 0; i < suggestions.size(); i++) {
+        if (i == mWordBuilders.size()) {
+          mWordBuilders.add(new StringBuilder());
+        }
+        final StringBuilder word = mWordBuilders.get(i);
+        word.setLength(0);
+        word.append(suggestions.get(i));
+        mSuggestions.add(word);
+      }
     }
     mShowingCompletions = completions;
     mTypedWordValid = typedWordValid;
@@ -346,7 +356,7 @@ public class CandidateView extends View {
   }
 
   public void clear() {
-    mSuggestions = EMPTY_LIST;
+    mSuggestions.clear();
     mTouchX = OUT_OF_BOUNDS;
     mSelectedString = null;
     mSelectedIndex = -1;
@@ -383,7 +393,7 @@ public class CandidateView extends View {
               TextEntryState.acceptedSuggestion(mSuggestions.get(0),
                   mSelectedString);
             }
-            mService.pickSuggestionManually(mSelectedIndex, mSelectedString);
+            mService.pickSuggestionManually(mSelectedIndex, mSelectedString.toString());
             mSelectedString = null;
             mSelectedIndex = -1;
           }
@@ -397,7 +407,7 @@ public class CandidateView extends View {
               TextEntryState.acceptedSuggestion(mSuggestions.get(0),
                   mSelectedString);
             }
-            mService.pickSuggestionManually(mSelectedIndex, mSelectedString);
+            mService.pickSuggestionManually(mSelectedIndex, mSelectedString.toString());
           }
         }
         mSelectedString = null;
@@ -424,7 +434,7 @@ public class CandidateView extends View {
       if (!mShowingCompletions) {
         TextEntryState.acceptedSuggestion(mSuggestions.get(0), mSelectedString);
       }
-      mService.pickSuggestionManually(mSelectedIndex, mSelectedString);
+      mService.pickSuggestionManually(mSelectedIndex, mSelectedString.toString());
     }
     invalidate();
     mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_REMOVE_THROUGH_PREVIEW), 200);
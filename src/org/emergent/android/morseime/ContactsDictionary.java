@@ -20,7 +20,6 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
-import android.os.AsyncTask;
 import android.os.SystemClock;
 import android.provider.ContactsContract.Contacts;
 
@@ -35,14 +34,9 @@ public class ContactsDictionary extends ExpandableDictionary {
 
   private ContentObserver mObserver;
 
-  private boolean mRequiresReload;
+  private volatile boolean mRequiresReload;
 
-  private long mLastLoadedContacts;
-
-  private boolean mUpdatingContacts;
-
-  // Use this lock before touching mUpdatingContacts & mRequiresDownload
-  private Object mUpdatingLock = new Object();
+  private volatile long mLastLoadedContacts;
 
   public ContactsDictionary(Context context) {
     super(context);
@@ -53,15 +47,11 @@ public class ContactsDictionary extends ExpandableDictionary {
     cres.registerContentObserver(Contacts.CONTENT_URI, true, mObserver = new ContentObserver(null) {
       @Override
       public void onChange(boolean self) {
-        synchronized (mUpdatingLock) {
-          mRequiresReload = true;
-        }
+        mRequiresReload = true;
       }
     });
 
-    synchronized (mUpdatingLock) {
-      loadDictionaryAsyncLocked();
-    }
+    reloadAsync();
   }
 
   public synchronized void close() {
@@ -71,43 +61,40 @@ public class ContactsDictionary extends ExpandableDictionary {
     }
   }
 
-  private synchronized void loadDictionaryAsyncLocked() {
+  private void loadDictionaryIfStale() {
     long now = SystemClock.uptimeMillis();
     if (mLastLoadedContacts == 0
         || now - mLastLoadedContacts > 30 * 60 * 1000 /* 30 minutes */) {
-      if (!mUpdatingContacts) {
-        mUpdatingContacts = true;
-        mRequiresReload = false;
-        new LoadContactsTask().execute();
-      }
+      mRequiresReload = false;
+      reloadAsync();
     }
   }
 
   @Override
-  public synchronized void getWords(final WordComposer codes, final WordCallback callback) {
-    synchronized (mUpdatingLock) {
-      // If we need to update, start off a background task
-      if (mRequiresReload) loadDictionaryAsyncLocked();
-      // Currently updating contacts, don't return any results.
-      if (mUpdatingContacts) return;
-    }
+  public void getWords(final WordComposer codes, final WordCallback callback) {
+    // If we need to update, start off a background load. The current contacts are used until
+    // it's done.
+    if (mRequiresReload) loadDictionaryIfStale();
     super.getWords(codes, callback);
   }
 
   @Override
-  public synchronized boolean isValidWord(CharSequence word) {
-    synchronized (mUpdatingLock) {
-      // If we need to update, start off a background task
-      if (mRequiresReload) loadDictionaryAsyncLocked();
-      if (mUpdatingContacts) return false;
-    }
-
+  public boolean isValidWord(CharSequence word) {
+    if (mRequiresReload) loadDictionaryIfStale();
     return super.isValidWord(word);
   }
 
-  private void addWords(Cursor cursor) {
-    clearDictionary();
+  @Override
+  protected void loadWords(NodeArray roots) {
+    Cursor cursor = getContext().getContentResolver()
+        .query(Contacts.CONTENT_URI, PROJECTION, null, null, null);
+    if (cursor != null) {
+      addWords(roots, cursor);
+    }
+    mLastLoadedContacts = SystemClock.uptimeMillis();
+  }
 
+  private void addWords(NodeArray roots, Cursor cursor) {
     final int maxWordLength = getMaxWordLength();
     if (cursor.moveToFirst()) {
       while (!cursor.isAfterLast()) {
@@ -138,7 +125,7 @@ public class ContactsDictionary extends ExpandableDictionary {
               // capitalization of i.
               final int wordLen = word.length();
               if (wordLen < maxWordLength && wordLen > 1) {
-                super.addWord(word, 128);
+                addWord(roots, word, 128);
               }
             }
           }
@@ -149,27 +136,4 @@ public class ContactsDictionary extends ExpandableDictionary {
     }
     cursor.close();
   }
-
-  private class LoadContactsTask extends AsyncTask<Void, Void, Void> {
-    @Override
-    protected Void doInBackground(Void... v) {
-      Cursor cursor = getContext().getContentResolver()
-          .query(Contacts.CONTENT_URI, PROJECTION, null, null, null);
-      if (cursor != null) {
-        addWords(cursor);
-      }
-      mLastLoadedContacts = SystemClock.uptimeMillis();
-      return null;
-    }
-
-    @Override
-    protected void onPostExecute(Void result) {
-      // TODO Auto-generated method stub
-      synchronized (mUpdatingLock) {
-        mUpdatingContacts = false;
-      }
-      super.onPostExecute(result);
-    }
-
-  }
 }
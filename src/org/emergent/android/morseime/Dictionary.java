@@ -50,6 +50,15 @@ abstract public class Dictionary {
      * @return true if the word was added, false if no more words are required
      */
     boolean addWord(char[] word, int wordOffset, int wordLength, int frequency);
+
+    /**
+     * Returns the frequency a word has to beat to be accepted by {@link #addWord} right now.
+     * Dictionaries can use this to skip words that would be rejected anyway, with the exception
+     * of the typed word itself, which may be accepted regardless.
+     *
+     * @return the current threshold, 0 while any word would be accepted
+     */
+    int getThreshold();
   }
 
   /**
@@ -70,6 +79,15 @@ abstract public class Dictionary {
    */
   abstract public boolean isValidWord(CharSequence word);
 
+  /**
+   * Returns how many trie nodes the last call to {@link #getWords} examined, for statistics.
+   *
+   * @return the number of nodes, or 0 if the dictionary doesn't keep count
+   */
+  public int getNodesVisited() {
+    return 0;
+  }
+
   /**
    * Compares the contents of the character array with the typed word and returns true if they
    * are the same.
@@ -17,6 +17,11 @@
 package org.emergent.android.morseime;
 
 import android.content.Context;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Base class for an in-memory dictionary that can grow dynamically and can
@@ -27,48 +32,201 @@ public class ExpandableDictionary extends Dictionary {
   private char[] mWordBuilder = new char[MAX_WORD_LENGTH];
   private int mMaxDepth;
   private int mInputLength;
+  private int mNodesVisited;
+  private CharSequence mTypedWord;
 
   public static final int MAX_WORD_LENGTH = 32;
-  private static final char QUOTE = '\'';
+  static final char QUOTE = '\'';
+
+  // Most edits a word may be away from the input: substituted, extra, missing or swapped keys
+  static final int MAX_EDITS = 2;
+  // Input characters that must be typed correctly between edits
+  static final int EDIT_SPACING = 1;
+  // Input length each edit of a suggestion takes, the first edit needing one character less
+  static final int EDITS_PER_LENGTH = 4;
+
+  // How much an input character weighs when it's the key that was typed or a nearby one
+  static final int TYPED_WEIGHT = 2;
+  static final int PROXIMITY_WEIGHT = 1;
+
+  // What each kind of edit divides a word's score by. On top of that an edited character only
+  // weighs as much as a nearby key, swapped ones excepted, and only words without edits get the
+  // full word bonus.
+  static final int SUBSTITUTION_PENALTY = 8;
+  static final int INSERTION_PENALTY = 8;
+  static final int DELETION_PENALTY = 4;
+  static final int TRANSPOSITION_PENALTY = 4;
 
   static class Node {
     char code;
     int frequency;
+    // Highest frequency of this node and any of its descendants, used to prune searches
+    int maxFrequency;
     boolean terminal;
     NodeArray children;
+
+    Node copy() {
+      final Node node = new Node();
+      node.code = code;
+      node.frequency = frequency;
+      node.maxFrequency = maxFrequency;
+      node.terminal = terminal;
+      node.children = children;
+      return node;
+    }
   }
 
+  /**
+   * Children of a node, kept sorted by their code so that lookups are a binary search.
+   */
   static class NodeArray {
     Node[] data;
     int length = 0;
-    private static final int INCREMENT = 2;
+    private static final int INITIAL_CAPACITY = 2;
+    private static final int LINEAR_SEARCH_LENGTH = 4;
 
     NodeArray() {
-      data = new Node[INCREMENT];
+      data = new Node[INITIAL_CAPACITY];
     }
 
-    void add(Node n) {
-      if (length + 1 > data.length) {
-        Node[] tempData = new Node[length + INCREMENT];
-        if (length > 0) {
-          System.arraycopy(data, 0, tempData, 0, length);
-        }
+    /**
+     * Returns a copy sharing the children, with room to add one more.
+     */
+    NodeArray copy() {
+      final NodeArray copy = new NodeArray();
+      copy.data = new Node[length + 1];
+      System.arraycopy(data, 0, copy.data, 0, length);
+      copy.length = length;
+      return copy;
+    }
+
+    /**
+     * Adds a child at the position a failed {@link #search(char)} for its code pointed at.
+     */
+    void add(Node n, int pos) {
+      if (length == data.length) {
+        // Grow geometrically so that bulk loads don't copy quadratically
+        Node[] tempData = new Node[data.length * 2];
+        System.arraycopy(data, 0, tempData, 0, pos);
+        System.arraycopy(data, pos, tempData, pos + 1, length - pos);
         data = tempData;
+      } else if (pos < length) {
+        System.arraycopy(data, pos, data, pos + 1, length - pos);
+      }
+      data[pos] = n;
+      length++;
+    }
+
+    void remove(int index) {
+      System.arraycopy(data, index + 1, data, index, length - index - 1);
+      data[--length] = null;
+    }
+
+    /**
+     * Returns the child with the given code, or null if there isn't one.
+     */
+    Node get(char code) {
+      final int index = indexOf(code);
+      return index < 0 ? null : data[index];
+    }
+
+    /**
+     * Returns the index of the child with the given code, or -1 if there isn't one.
+     */
+    int indexOf(char code) {
+      final int index = search(code);
+      return index < 0 ? -1 : index;
+    }
+
+    /**
+     * Returns the index of the child with the given code or, if there isn't one, -1 minus the
+     * index it would be added at.
+     */
+    int search(char code) {
+      if (length == 0 || code < data[0].code) return -1;
+      // The codes are distinct, so a child is no further in than its code is past the first
+      // child's. Where the codes run without gaps, as the letters near the root mostly do, that
+      // is exactly where it is.
+      int high = Math.min(length - 1, code - data[0].code);
+      final char last = data[high].code;
+      if (last == code) return high;
+      if (last < code) return -high - 2;
+      high--;
+      if (high < LINEAR_SEARCH_LENGTH) {
+        // Cheaper than bisecting the few children that make up most of the trie's lists
+        int i = 1;
+        while (i <= high && data[i].code < code) {
+          i++;
+        }
+        return i <= high && data[i].code == code ? i : -i - 1;
+      }
+      int low = 1;
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        final char c = data[mid].code;
+        if (c < code) {
+          low = mid + 1;
+        } else if (c > code) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
       }
-      data[length++] = n;
+      return -low - 1;
     }
   }
 
-  private NodeArray mRoots;
+  /**
+   * A position in the trie reached by matching a prefix of the input, with the weight of the
+   * path that led there. The characters of the prefix are found by following the parents.
+   */
+  static class Prefix {
+    Prefix parent;
+    Node node;
+    int depth;
+    int snr;
+    // Product of the penalties of the edits made so far
+    int penalty;
+    int edits;
+    // The first input character that may be edited
+    int editFrom;
+  }
+
+  /**
+   * The prefixes matching one more input character than the level before, along with the codes
+   * of that character. Prefixes are recycled along with the level that created them.
+   */
+  static class Level {
+    final ArrayList<Prefix> prefixes = new ArrayList<Prefix>();
+    // Prefixes only passed through, such as skipped apostrophes, still parents of the others
+    final ArrayList<Prefix> passed = new ArrayList<Prefix>();
+    int[] codes;
+  }
+
+  // The published trie. It's never changed once published, writers publish changed copies
+  // instead, so searches read it once and need no lock.
+  private volatile NodeArray mRoots;
+
+  // The trie the current search runs over
+  private NodeArray mSearchRoots;
 
-  private int[][] mCodes;
+  // mFrontier.get(i) holds the prefixes matching the first i input characters of mFrontierRoots
+  private final ArrayList<Level> mFrontier = new ArrayList<Level>();
+  private NodeArray mFrontierRoots;
+
+  // Whether a loader thread is running, and whether it has to load (again)
+  private final AtomicBoolean mReloading = new AtomicBoolean();
+  private volatile boolean mReloadRequested;
+
+  private final ArrayList<Level> mFreeLevels = new ArrayList<Level>();
+  private final ArrayList<Prefix> mFreePrefixes = new ArrayList<Prefix>();
 
   ExpandableDictionary(Context context) {
     mContext = context;
     clearDictionary();
-    mCodes = new int[MAX_WORD_LENGTH][];
   }
 
+
   Context getContext() {
     return mContext;
   }
@@ -77,197 +235,518 @@ public class ExpandableDictionary extends Dictionary {
     return MAX_WORD_LENGTH;
   }
 
-  public void addWord(String word, int frequency) {
-    addWordRec(mRoots, word, 0, frequency);
+  /**
+   * Adds a word to the published trie. The nodes along the word's path are copied, so
+   * searches running meanwhile carry on undisturbed with the trie they started with.
+   */
+  public synchronized void addWord(String word, int frequency) {
+    mRoots = addWordRec(mRoots, word, 0, frequency, true);
+  }
+
+  /**
+   * Adds a word to a trie that hasn't been published yet, changing it in place.
+   *
+   * @see #publish(NodeArray)
+   */
+  void addWord(NodeArray roots, String word, int frequency) {
+    final int last = word.length() - 1;
+    final int maxFrequency = Math.min(frequency, 255);
+    NodeArray children = roots;
+    for (int depth = 0; ; depth++) {
+      final char c = word.charAt(depth);
+      final int index = children.search(c);
+      final Node node;
+      if (index < 0) {
+        node = new Node();
+        node.code = c;
+        children.add(node, -index - 1);
+      } else {
+        node = children.data[index];
+      }
+      if (node.maxFrequency < maxFrequency) node.maxFrequency = maxFrequency;
+      if (depth == last) {
+        node.terminal = true;
+        if (node.frequency < maxFrequency) node.frequency = maxFrequency;
+        return;
+      }
+      if (node.children == null) node.children = new NodeArray();
+      children = node.children;
+    }
+  }
+
+  /**
+   * Makes a trie filled in by {@link #addWord(NodeArray, String, int)} the one searches use.
+   * The trie mustn't be changed after this.
+   */
+  synchronized void publish(NodeArray roots) {
+    mRoots = roots;
+  }
+
+  /**
+   * Rebuilds the dictionary from {@link #loadWords(NodeArray)} on a background thread and
+   * publishes it when done. Searches keep using the current words meanwhile. Requests made
+   * while a reload runs are folded into a single reload after it.
+   */
+  protected void reloadAsync() {
+    mReloadRequested = true;
+    if (!mReloading.compareAndSet(false, true)) return;
+    new Thread(getClass().getSimpleName() + "Loader") {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        do {
+          try {
+            while (mReloadRequested) {
+              mReloadRequested = false;
+              reload();
+            }
+          } finally {
+            mReloading.set(false);
+          }
+          // Pick up a request that came in between the last check and clearing the flag
+        } while (mReloadRequested && mReloading.compareAndSet(false, true));
+      }
+    }.start();
+  }
+
+  /**
+   * Brings the dictionary up to date for {@link #reloadAsync()}, on the loader thread. Fills
+   * in a new trie with {@link #loadWords(NodeArray)} and publishes it.
+   */
+  protected void reload() {
+    final NodeArray roots = new NodeArray();
+    loadWords(roots);
+    publish(roots);
+  }
+
+  /**
+   * Fills in a new trie for {@link #reload()}, using
+   * {@link #addWord(NodeArray, String, int)}. Called on the loader thread.
+   */
+  protected void loadWords(NodeArray roots) {
   }
 
-  private void addWordRec(NodeArray children, final String word,
-                          final int depth, final int frequency) {
+  /**
+   * Sets the frequency of a word in the published trie, or removes the word if the frequency
+   * is negative. Unlike {@link #addWord(String, int)} this can lower the frequency. The path is
+   * copied the same way.
+   */
+  synchronized void setWordFrequency(String word, int frequency) {
+    if (getWordFrequency(word) < 0) {
+      if (frequency >= 0) mRoots = addWordRec(mRoots, word, 0, frequency, true);
+      return;
+    }
+    mRoots = setWordFrequencyRec(mRoots, word, 0, Math.min(frequency, 255));
+  }
+
+  /**
+   * Copies the path to a word that's known to be below the given children and changes its
+   * frequency, fixing up the maximum frequencies on the way back and dropping nodes that no
+   * longer lead to a word.
+   */
+  private NodeArray setWordFrequencyRec(NodeArray children, final String word,
+                                        final int depth, final int frequency) {
+    children = children.copy();
+    final int index = children.indexOf(word.charAt(depth));
+    final Node node = children.data[index].copy();
+    if (word.length() == depth + 1) {
+      node.terminal = frequency >= 0;
+      node.frequency = Math.max(frequency, 0);
+    } else {
+      node.children = setWordFrequencyRec(node.children, word, depth + 1, frequency);
+    }
+    node.maxFrequency = node.terminal ? node.frequency : 0;
+    if (node.children != null) {
+      final int count = node.children.length;
+      for (int i = 0; i < count; i++) {
+        node.maxFrequency = Math.max(node.maxFrequency, node.children.data[i].maxFrequency);
+      }
+      if (count == 0) node.children = null;
+    }
+    if (!node.terminal && node.children == null) {
+      children.remove(index);
+    } else {
+      children.data[index] = node;
+    }
+    return children;
+  }
+
+  /**
+   * Adds a word below the given children.
+   *
+   * @param copy whether the children may be visible to searches, in which case the nodes on the
+   *             word's path are copied instead of changed
+   * @return the children to use from now on, a copy if copying
+   */
+  private NodeArray addWordRec(NodeArray children, final String word,
+                               final int depth, final int frequency, boolean copy) {
 
     final int wordLength = word.length();
     final char c = word.charAt(depth);
+    if (copy) children = children.copy();
     // Does children have the current character?
-    final int childrenLength = children.length;
-    Node childNode = null;
-    boolean found = false;
-    for (int i = 0; i < childrenLength; i++) {
-      childNode = children.data[i];
-      if (childNode.code == c) {
-        found = true;
-        break;
-      }
-    }
-    if (!found) {
+    final int index = children.search(c);
+    Node childNode;
+    if (index < 0) {
       childNode = new Node();
       childNode.code = c;
-      children.add(childNode);
+      children.add(childNode, -index - 1);
+      // Nothing below a new node can be visible
+      copy = false;
+    } else {
+      childNode = children.data[index];
+      if (copy) {
+        childNode = childNode.copy();
+        children.data[index] = childNode;
+      }
     }
+    childNode.maxFrequency = Math.max(childNode.maxFrequency, Math.min(frequency, 255));
     if (wordLength == depth + 1) {
       // Terminate this word
       childNode.terminal = true;
       childNode.frequency = Math.max(frequency, childNode.frequency);
       if (childNode.frequency > 255) childNode.frequency = 255;
-      return;
+      return children;
     }
     if (childNode.children == null) {
       childNode.children = new NodeArray();
+      copy = false;
     }
-    addWordRec(childNode.children, word, depth + 1, frequency);
+    childNode.children = addWordRec(childNode.children, word, depth + 1, frequency, copy);
+    return children;
   }
 
   @Override
   public void getWords(final WordComposer codes, final WordCallback callback) {
     mInputLength = codes.size();
-    if (mCodes.length < mInputLength) mCodes = new int[mInputLength][];
-    // Cache the codes so that we don't have to lookup an array list
-    for (int i = 0; i < mInputLength; i++) {
-      mCodes[i] = codes.getCodesAt(i);
-    }
     mMaxDepth = mInputLength * 3;
-    getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
-    for (int i = 0; i < mInputLength; i++) {
-      getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, i, callback);
+    mNodesVisited = 0;
+    mTypedWord = codes.getTypedWord();
+    mSearchRoots = mRoots;
+    updateFrontier(codes);
+
+    final char[] word = mWordBuilder;
+    final ArrayList<Prefix> frontier = mFrontier.get(mInputLength).prefixes;
+    final int count = frontier.size();
+    // Short input doesn't have enough left after an edit to say much about the word
+    final int maxEdits = Math.min(MAX_EDITS, (mInputLength + 1) / EDITS_PER_LENGTH);
+    // Exact prefixes go first, so the threshold is up before the edited ones are completed
+    for (int edits = 0; edits <= maxEdits; edits++) {
+      for (int i = 0; i < count; i++) {
+        final Prefix prefix = frontier.get(i);
+        final Node node = prefix.node;
+        // A prefix still at the root took all the input as typed by mistake
+        if (prefix.edits != edits || node == null) continue;
+        final int depth = prefix.depth;
+        // Optimization: Prune out words that are too long compared to how much was typed.
+        if (depth > mMaxDepth + 1) continue;
+        for (Prefix p = prefix; p.node != null; p = p.parent) {
+          word[p.depth - 1] = p.node.code;
+        }
+        if (node.terminal) {
+          if (INCLUDE_TYPED_WORD_IF_VALID || !same(word, depth, mTypedWord)) {
+            int finalFreq = node.frequency * prefix.snr / prefix.penalty;
+            if (edits == 0) finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
+            if (finalFreq > 0) callback.addWord(word, 0, depth, finalFreq);
+          }
+        }
+        if (node.children != null) {
+          getWordsRec(node.children, word, depth, prefix.snr, prefix.penalty, callback);
+        }
+      }
+    }
+  }
+
+  /**
+   * Brings the frontier in line with the composer. Levels matching input that hasn't changed
+   * since the last call are kept, so typing a character only matches that character and
+   * deleting one only drops the last level. Dropped levels and their prefixes are reused, so
+   * once the pools have grown to fit the input nothing is allocated.
+   * <p/>
+   * A level holds every prefix within {@link #MAX_EDITS} edits of the input so far, which makes
+   * the levels a Levenshtein automaton run over the trie: each new input character is matched
+   * as typed, as a nearby key or substituted for any character, is taken as an extra key
+   * pressed by mistake, or follows a character missing from the input. Two swapped characters
+   * are matched from the level before last. Edited prefixes only match the typed keys, which
+   * keeps the levels to a few dozen prefixes.
+   */
+  private void updateFrontier(WordComposer codes) {
+    if (mFrontierRoots != mSearchRoots || mFrontier.isEmpty()) {
+      // A different trie was published since the saved prefixes, start over
+      while (!mFrontier.isEmpty()) {
+        recycleLevel(mFrontier.remove(mFrontier.size() - 1));
+      }
+      final Level roots = obtainLevel();
+      roots.prefixes.add(obtainPrefix(null, null, 0, 1, 1, 0, 0));
+      mFrontier.add(roots);
+      mFrontierRoots = mSearchRoots;
+    }
+    int valid = 0;
+    final int max = Math.min(mInputLength, mFrontier.size() - 1);
+    while (valid < max && Arrays.equals(mFrontier.get(valid + 1).codes, codes.getCodesAt(valid))) {
+      valid++;
+    }
+    while (mFrontier.size() > valid + 1) {
+      recycleLevel(mFrontier.remove(mFrontier.size() - 1));
+    }
+    for (int i = valid; i < mInputLength; i++) {
+      final int[] currentChars = codes.getCodesAt(i);
+      final ArrayList<Prefix> from = mFrontier.get(i).prefixes;
+      final Level to = obtainLevel();
+      final int count = from.size();
+      for (int j = 0; j < count; j++) {
+        final Prefix prefix = from.get(j);
+        advance(prefix, prefix.node == null ? mSearchRoots : prefix.node.children, currentChars,
+            i, to);
+        if (canEdit(prefix, i)) {
+          // The character was typed by mistake, stay where we are
+          to.prefixes.add(obtainPrefix(prefix, prefix.node, prefix.depth, prefix.snr,
+              prefix.penalty * INSERTION_PENALTY, prefix.edits + 1, i + 1 + EDIT_SPACING));
+        }
+      }
+      if (i > 0) {
+        transpose(mFrontier.get(i - 1).prefixes, mFrontier.get(i).codes[0], currentChars[0],
+            i - 1, to);
+      }
+      if (to.codes == null || to.codes.length != currentChars.length) {
+        to.codes = new int[currentChars.length];
+      }
+      System.arraycopy(currentChars, 0, to.codes, 0, currentChars.length);
+      mFrontier.add(to);
+    }
+  }
+
+  private Level obtainLevel() {
+    final int size = mFreeLevels.size();
+    return size > 0 ? mFreeLevels.remove(size - 1) : new Level();
+  }
+
+  private void recycleLevel(Level level) {
+    // Not addAll, which copies the list into a new array first
+    for (int i = level.prefixes.size() - 1; i >= 0; i--) {
+      mFreePrefixes.add(level.prefixes.get(i));
+    }
+    for (int i = level.passed.size() - 1; i >= 0; i--) {
+      mFreePrefixes.add(level.passed.get(i));
+    }
+    level.prefixes.clear();
+    level.passed.clear();
+    mFreeLevels.add(level);
+  }
+
+  private Prefix obtainPrefix(Prefix parent, Node node, int depth, int snr, int penalty,
+                             int edits, int editFrom) {
+    final int size = mFreePrefixes.size();
+    final Prefix prefix = size > 0 ? mFreePrefixes.remove(size - 1) : new Prefix();
+    prefix.parent = parent;
+    prefix.node = node;
+    prefix.depth = depth;
+    prefix.snr = snr;
+    prefix.penalty = penalty;
+    prefix.edits = edits;
+    prefix.editFrom = editFrom;
+    return prefix;
+  }
+
+  private static boolean canEdit(Prefix prefix, int inputIndex) {
+    return prefix.edits < MAX_EDITS && inputIndex >= prefix.editFrom;
+  }
+
+  /**
+   * Matches one input character against the children of a prefix, adding every position it
+   * leads to. Apostrophes, and characters missing from the input, are stepped over without
+   * consuming the input. That is, if you type "wouldve", it could be matching "would've", so
+   * the depth will be one more than the input length.
+   */
+  private void advance(Prefix from, NodeArray children, int[] currentChars, int inputIndex,
+                       Level to) {
+    if (children == null) return;
+    final int count = children.length;
+    final int depth = from.depth;
+    // Substituting or adding to the first character fans out over the whole alphabet, so it's
+    // trusted apart from being swapped or typed by mistake
+    final boolean canEdit = inputIndex > 0 && canEdit(from, inputIndex);
+    for (int i = 0; i < count; i++) {
+      final Node node = children.data[i];
+      mNodesVisited++;
+      final char c = node.code;
+      if (c == QUOTE && currentChars[0] != QUOTE) {
+        // Skip the ' and continue deeper
+        final Prefix skipped = obtainPrefix(from, node, depth + 1, from.snr, from.penalty,
+            from.edits, from.editFrom);
+        to.passed.add(skipped);
+        advance(skipped, node.children, currentChars, inputIndex, to);
+        continue;
+      }
+      if (canEdit) {
+        // Try this character as one missing from the input
+        final Prefix missing = obtainPrefix(from, node, depth + 1, from.snr,
+            from.penalty * DELETION_PENALTY, from.edits + 1, inputIndex + 1 + EDIT_SPACING);
+        to.passed.add(missing);
+        advance(missing, node.children, currentChars, inputIndex, to);
+      }
+      final char lowerC = toLowerCase(c);
+      boolean matched = false;
+      // Don't use alternatives once the prefix has been edited
+      final int alternativesSize = from.edits == 0 ? currentChars.length : 1;
+      for (int j = 0; j < alternativesSize; j++) {
+        final int currentChar = currentChars[j];
+        if (currentChar == -1) {
+          break;
+        }
+        if (currentChar == lowerC || currentChar == c) {
+          final int weight = j > 0 ? PROXIMITY_WEIGHT : TYPED_WEIGHT;
+          to.prefixes.add(obtainPrefix(from, node, depth + 1, from.snr * weight, from.penalty,
+              from.edits, from.editFrom));
+          matched = true;
+        }
+      }
+      if (!matched && canEdit) {
+        to.prefixes.add(obtainPrefix(from, node, depth + 1, from.snr,
+            from.penalty * SUBSTITUTION_PENALTY, from.edits + 1, inputIndex + 1 + EDIT_SPACING));
+      }
+    }
+  }
+
+  /**
+   * Matches the last two input characters in swapped order, starting from the prefixes that
+   * matched the input before them.
+   *
+   * @param from       the level before last
+   * @param first      the typed key of the next to last input character
+   * @param second     the typed key of the last input character
+   * @param inputIndex the position of the first of the two characters in the input
+   */
+  private void transpose(ArrayList<Prefix> from, int first, int second, int inputIndex,
+                         Level to) {
+    if (first == second) return;
+    final int count = from.size();
+    for (int i = 0; i < count; i++) {
+      final Prefix prefix = from.get(i);
+      if (!canEdit(prefix, inputIndex)) continue;
+      final Node secondNode = find(prefix.node == null ? mSearchRoots : prefix.node.children,
+          second);
+      if (secondNode == null) continue;
+      final Node firstNode = find(secondNode.children, first);
+      if (firstNode == null) continue;
+      final Prefix swapped = obtainPrefix(prefix, secondNode, prefix.depth + 1, prefix.snr,
+          prefix.penalty, prefix.edits, prefix.editFrom);
+      to.passed.add(swapped);
+      to.prefixes.add(obtainPrefix(swapped, firstNode, prefix.depth + 2,
+          prefix.snr * TYPED_WEIGHT * TYPED_WEIGHT, prefix.penalty * TRANSPOSITION_PENALTY,
+          prefix.edits + 1, inputIndex + 2 + EDIT_SPACING));
+    }
+  }
+
+  /**
+   * Returns the child matching a typed key, in either case.
+   */
+  private Node find(NodeArray children, int key) {
+    if (children == null) return null;
+    final int count = children.length;
+    for (int i = 0; i < count; i++) {
+      final Node node = children.data[i];
+      mNodesVisited++;
+      final char c = node.code;
+      if (key == c || key == toLowerCase(c)) return node;
     }
+    return null;
   }
 
   @Override
-  public synchronized boolean isValidWord(CharSequence word) {
-    final int freq = getWordFrequencyRec(mRoots, word, 0, word.length());
-    return freq > -1;
+  public boolean isValidWord(CharSequence word) {
+    return getWordFrequency(word) > -1;
   }
 
   /**
-   * Returns the word's frequency or -1 if not found
+   * Returns the number of trie nodes examined by the last call to getWords
    */
-  public int getWordFrequency(CharSequence word) {
-    return getWordFrequencyRec(mRoots, word, 0, word.length());
+  @Override
+  public int getNodesVisited() {
+    return mNodesVisited;
   }
 
   /**
-   * Returns the word's frequency or -1 if not found
+   * Estimates the heap taken by the published trie, walking all of it. The sizes are those of
+   * a 32-bit VM: 8 byte object headers, 4 byte references, objects padded to 8 bytes.
    */
-  private int getWordFrequencyRec(final NodeArray children, final CharSequence word,
-                                  final int offset, final int length) {
+  public long getHeapBytes() {
+    return getHeapBytesRec(mRoots);
+  }
+
+  private static long getHeapBytesRec(NodeArray children) {
+    // The NodeArray, then its Node[] with a 12 byte header
+    long bytes = 16 + ((12 + 4 * children.data.length + 7) & ~7);
     final int count = children.length;
-    char currentChar = word.charAt(offset);
-    for (int j = 0; j < count; j++) {
-      final Node node = children.data[j];
-      if (node.code == currentChar) {
-        if (offset == length - 1) {
-          if (node.terminal) {
-            return node.frequency;
-          }
-        } else {
-          if (node.children != null) {
-            int freq = getWordFrequencyRec(node.children, word, offset + 1, length);
-            if (freq > -1) return freq;
-          }
-        }
-      }
+    for (int i = 0; i < count; i++) {
+      final Node node = children.data[i];
+      bytes += 24;
+      if (node.children != null) bytes += getHeapBytesRec(node.children);
     }
-    return -1;
+    return bytes;
   }
 
   /**
-   * Recursively traverse the tree for words that match the input. Input consists of
-   * a list of arrays. Each item in the list is one input character position. An input
-   * character is actually an array of multiple possible candidates. This function is not
-   * optimized for speed, assuming that the user dictionary will only be a few hundred words in
-   * size.
+   * Returns the word's frequency or -1 if not found
+   */
+  public int getWordFrequency(CharSequence word) {
+    final int length = word.length();
+    NodeArray children = mRoots;
+    Node node = null;
+    for (int i = 0; i < length; i++) {
+      if (children == null) return -1;
+      node = children.get(word.charAt(i));
+      if (node == null) return -1;
+      children = node.children;
+    }
+    return node != null && node.terminal ? node.frequency : -1;
+  }
+
+  /**
+   * Recursively collects the completions below a matched prefix, once all the input has been
+   * consumed. Subtrees that can't produce a word scoring above the callback's threshold are
+   * skipped.
    *
-   * @param roots      node whose children have to be search for matches
-   * @param codes      the input character codes
-   * @param word       the word being composed as a possible match
-   * @param depth      the depth of traversal - the length of the word being composed thus far
-   * @param completion whether the traversal is now in completion mode - meaning that we've
-   *                   exhausted the input and we're looking for all possible suffixes.
-   * @param snr        current weight of the word being formed
-   * @param inputIndex position in the input characters. This can be off from the depth in
-   *                   case we skip over some punctuations such as apostrophe in the traversal. That is, if you type
-   *                   "wouldve", it could be matching "would've", so the depth will be one more than the
-   *                   inputIndex
-   * @param callback   the callback class for adding a word
+   * @param roots    node whose children have to be search for matches
+   * @param word     the word being composed as a possible match
+   * @param depth    the depth of traversal - the length of the word being composed thus far
+   * @param snr      current weight of the word being formed
+   * @param penalty  what the edits made to reach the prefix divide the weight by
+   * @param callback the callback class for adding a word
    */
-  protected void getWordsRec(NodeArray roots, final WordComposer codes, final char[] word,
-                             final int depth, boolean completion, int snr, int inputIndex, int skipPos,
-                             WordCallback callback) {
-    final int count = roots.length;
-    final int codeSize = mInputLength;
+  protected void getWordsRec(NodeArray roots, final char[] word, final int depth, int snr,
+                             int penalty, WordCallback callback) {
     // Optimization: Prune out words that are too long compared to how much was typed.
     if (depth > mMaxDepth) {
       return;
     }
-    int[] currentChars = null;
-    if (codeSize <= inputIndex) {
-      completion = true;
-    } else {
-      currentChars = mCodes[inputIndex];
-    }
-
+    final int count = roots.length;
+    // Scores have to beat the threshold after dividing by the penalty, that is reach this. The
+    // threshold only moves when words are added, so it's only read again then.
+    long limit = ((long) callback.getThreshold() + 1) * penalty;
     for (int i = 0; i < count; i++) {
       final Node node = roots.data[i];
-      final char c = node.code;
-      final char lowerC = toLowerCase(c);
-      final boolean terminal = node.terminal;
-      final NodeArray children = node.children;
-      final int freq = node.frequency;
-      if (completion) {
-        word[depth] = c;
-        if (terminal) {
-          if (!callback.addWord(word, 0, depth + 1, freq * snr)) {
-            return;
-          }
-        }
-        if (children != null) {
-          getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex,
-              skipPos, callback);
-        }
-      } else if ((c == QUOTE && currentChars[0] != QUOTE) || depth == skipPos) {
-        // Skip the ' and continue deeper
-        word[depth] = c;
-        if (children != null) {
-          getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex,
-              skipPos, callback);
-        }
-      } else {
-        // Don't use alternatives if we're looking for missing characters
-        final int alternativesSize = skipPos >= 0 ? 1 : currentChars.length;
-        for (int j = 0; j < alternativesSize; j++) {
-          final int addedAttenuation = (j > 0 ? 1 : 2);
-          final int currentChar = currentChars[j];
-          if (currentChar == -1) {
-            break;
-          }
-          if (currentChar == lowerC || currentChar == c) {
-            word[depth] = c;
-
-            if (codeSize == depth + 1) {
-              if (terminal) {
-                if (INCLUDE_TYPED_WORD_IF_VALID
-                    || !same(word, depth + 1, codes.getTypedWord())) {
-                  int finalFreq = freq * snr * addedAttenuation;
-                  if (skipPos < 0) finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
-                  callback.addWord(word, 0, depth + 1, finalFreq);
-                }
-              }
-              if (children != null) {
-                getWordsRec(children, codes, word, depth + 1,
-                    true, snr * addedAttenuation, inputIndex + 1,
-                    skipPos, callback);
-              }
-            } else if (children != null) {
-              getWordsRec(children, codes, word, depth + 1,
-                  false, snr * addedAttenuation, inputIndex + 1,
-                  skipPos, callback);
-            }
-          }
+      mNodesVisited++;
+      if ((long) node.maxFrequency * snr < limit) {
+        continue;
+      }
+      word[depth] = node.code;
+      // An edited prefix can complete to the typed word itself, which isn't a suggestion
+      if (node.terminal && (penalty == 1 || !same(word, depth + 1, mTypedWord))) {
+        if (!callback.addWord(word, 0, depth + 1, node.frequency * snr / penalty)) {
+          return;
         }
+        limit = ((long) callback.getThreshold() + 1) * penalty;
+      }
+      if (node.children != null) {
+        getWordsRec(node.children, word, depth + 1, snr, penalty, callback);
+        limit = ((long) callback.getThreshold() + 1) * penalty;
       }
     }
   }
 
   protected void clearDictionary() {
-    mRoots = new NodeArray();
+    publish(new NodeArray());
   }
 
   static char toLowerCase(char c) {
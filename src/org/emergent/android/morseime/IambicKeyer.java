@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime;
+
+/**
+ * Generates dits and dahs from a pair of iambic paddles. Holding a paddle repeats its element,
+ * squeezing both alternates them, and a paddle pressed while the other element is being sent
+ * is remembered and sent next.
+ * <p/>
+ * The two Curtis modes differ only in what happens when a squeeze is released: mode A finishes
+ * the current element and stops, mode B sends one more element of the opposite kind.
+ * <p/>
+ * Like {@link MorseDecoder} the keyer has no Android dependencies. Each element starts exactly
+ * where the previous one's spacing ended, so a late call to {@link #advance(long)} does not
+ * move the elements it produces.
+ *
+ * @author Patrick Woodworth
+ */
+public class IambicKeyer {
+
+  public enum Mode {
+    A, B
+  }
+
+  public interface Listener {
+
+    void onKeyDown(long when);
+
+    void onKeyUp(boolean isDit, long when);
+  }
+
+  private static final int IDLE = 0;
+  private static final int ELEMENT = 1;
+  private static final int SPACE = 2;
+
+  private final Listener m_listener;
+
+  private Mode m_mode = Mode.B;
+  private long m_unitNanos = MorseDecoder.calcNanos(1, 10);
+
+  private boolean m_ditHeld = false;
+  private boolean m_dahHeld = false;
+
+  private boolean m_ditMemory = false;
+  private boolean m_dahMemory = false;
+  private boolean m_squeezed = false;
+
+  private int m_state = IDLE;
+  private boolean m_sendingDit;
+  private long m_phaseEnd;
+
+  public IambicKeyer(Listener listener) {
+    m_listener = listener;
+  }
+
+  public void setMode(Mode mode) {
+    m_mode = mode;
+  }
+
+  public Mode getMode() {
+    return m_mode;
+  }
+
+  public void setWordsPerMinute(long wpm) {
+    m_unitNanos = MorseDecoder.calcNanos(1, wpm);
+  }
+
+  /**
+   * Reports the paddles as they are from the given time on.
+   */
+  public void setPaddles(boolean dit, boolean dah, long when) {
+    advance(when);
+    m_ditHeld = dit;
+    m_dahHeld = dah;
+    if (m_state == IDLE) {
+      if (dit || dah)
+        startElement(dit, when);
+    } else {
+      latch();
+    }
+  }
+
+  public boolean isIdle() {
+    return m_state == IDLE;
+  }
+
+  /**
+   * @return the time at which {@link #advance(long)} next has work to do, or
+   *         {@link MorseDecoder#NO_DEADLINE}
+   */
+  public long getDeadline() {
+    return m_state == IDLE ? MorseDecoder.NO_DEADLINE : m_phaseEnd;
+  }
+
+  /**
+   * Sends everything that is due at or before the given time.
+   */
+  public void advance(long now) {
+    while (m_state != IDLE && m_phaseEnd <= now) {
+      long when = m_phaseEnd;
+      if (m_state == ELEMENT) {
+        m_state = SPACE;
+        m_phaseEnd = when + m_unitNanos;
+        m_listener.onKeyUp(m_sendingDit, when);
+      } else {
+        nextElement(when);
+      }
+    }
+  }
+
+  public void reset() {
+    m_state = IDLE;
+    m_ditHeld = false;
+    m_dahHeld = false;
+    m_ditMemory = false;
+    m_dahMemory = false;
+    m_squeezed = false;
+  }
+
+  private void nextElement(long when) {
+    if (m_mode == Mode.A && m_squeezed && !m_ditHeld && !m_dahHeld) {
+      m_ditMemory = false;
+      m_dahMemory = false;
+    }
+    boolean dit;
+    if (m_sendingDit) {
+      if (m_dahMemory || m_dahHeld)
+        dit = false;
+      else if (m_ditHeld)
+        dit = true;
+      else {
+        m_state = IDLE;
+        return;
+      }
+    } else {
+      if (m_ditMemory || m_ditHeld)
+        dit = true;
+      else if (m_dahHeld)
+        dit = false;
+      else {
+        m_state = IDLE;
+        return;
+      }
+    }
+    startElement(dit, when);
+  }
+
+  private void startElement(boolean dit, long when) {
+    m_state = ELEMENT;
+    m_sendingDit = dit;
+    m_phaseEnd = when + (dit ? 1 : 3) * m_unitNanos;
+    if (dit)
+      m_ditMemory = false;
+    else
+      m_dahMemory = false;
+    m_squeezed = false;
+    latch();
+    m_listener.onKeyDown(when);
+  }
+
+  /**
+   * Remembers the opposite paddle, and any squeeze, seen while an element or its spacing is
+   * being sent.
+   */
+  private void latch() {
+    if (m_ditHeld && !m_sendingDit)
+      m_ditMemory = true;
+    if (m_dahHeld && m_sendingDit)
+      m_dahMemory = true;
+    if (m_ditHeld && m_dahHeld)
+      m_squeezed = true;
+  }
+}
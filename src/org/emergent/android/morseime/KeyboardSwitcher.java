@@ -53,6 +53,7 @@ public class KeyboardSwitcher {
   private int mMode;
   private int mImeOptions;
   private int mTextMode = MODE_TEXT_ALPHA; // MODE_TEXT_QWERTY;
+  private int mMorseKeyboard = R.xml.kbd_morse;
   private boolean mIsSymbols;
   private boolean mPreferSymbols;
   private int mSymbolsModeState = SYMBOLS_MODE_STATE_NONE;
@@ -165,7 +166,7 @@ public class KeyboardSwitcher {
           ? new KeyboardId(R.xml.kbd_phone_symbols) : new KeyboardId(R.xml.kbd_symbols);
     }
 
-    int testKbdRes = mTextMode == MODE_TEXT_QWERTY ? R.xml.kbd_qwerty : R.xml.kbd_morse;
+    int testKbdRes = mTextMode == MODE_TEXT_QWERTY ? R.xml.kbd_qwerty : mMorseKeyboard;
 
     switch (mode) {
       case MODE_TEXT:
@@ -205,6 +206,18 @@ public class KeyboardSwitcher {
     }
   }
 
+  /**
+   * Sets the layout used for morse text entry, switching to it straight away if a morse
+   * keyboard is showing.
+   */
+  void setMorseKeyboard(int xml) {
+    if (xml == mMorseKeyboard) return;
+    mMorseKeyboard = xml;
+    if (mCurrentId != null && mTextMode == MODE_TEXT_ALPHA && isAlphabetMode()) {
+      setKeyboardMode(mMode, mImeOptions, mIsSymbols);
+    }
+  }
+
   int getTextModeCount() {
     return MODE_TEXT_COUNT;
   }
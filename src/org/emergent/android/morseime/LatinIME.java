@@ -30,7 +30,9 @@ import android.inputmethodservice.KeyboardView;
 import android.media.AudioManager;
 import android.os.Debug;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
 import android.os.SystemClock;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
@@ -71,6 +73,7 @@ public class LatinIME extends InputMethodService
   private static final int MSG_UPDATE_SUGGESTIONS = 0;
   private static final int MSG_START_TUTORIAL = 1;
   private static final int MSG_UPDATE_SHIFT_STATE = 2;
+  private static final int MSG_SHOW_SUGGESTIONS = 3;
 
   // How many continuous deletes at which to start deleting at a higher speed.
   private static final int DELETE_ACCELERATE_AT = 20;
@@ -95,6 +98,17 @@ public class LatinIME extends InputMethodService
   private CandidateViewContainer mCandidateViewContainer;
   private CandidateView mCandidateView;
   private Suggest mSuggest;
+
+  // Suggestions are computed on this thread so that dictionary searches don't hold up the
+  // main looper. Each request is tagged with mSuggestionGeneration, which moves on whenever the
+  // candidates shown become stale, and a request from an older generation is abandoned.
+  private HandlerThread mSuggestThread;
+  private Handler mSuggestHandler;
+  private final Object mSuggestLock = new Object();
+  private volatile int mSuggestionGeneration;
+  private int mShownGeneration;
+  // Requests are recycled once shown or abandoned, so typing allocates none
+  private final ArrayList<SuggestionRequest> mFreeRequests = new ArrayList<SuggestionRequest>();
   private CompletionInfo[] mCompletions;
 
   private AlertDialog mOptionsDialog;
@@ -103,7 +117,8 @@ public class LatinIME extends InputMethodService
 
   private UserDictionary mUserDictionary;
   private ContactsDictionary mContactsDictionary;
-  private ExpandableDictionary mAutoDictionary;
+  private AutoDictionary mAutoDictionary;
+  private final NextWordPredictor mNextWords = new NextWordPredictor();
 
   private String mLocale;
 
@@ -112,6 +127,7 @@ public class LatinIME extends InputMethodService
   private int mCommittedLength;
   private boolean mPredicting;
   private CharSequence mBestWord;
+  private final StringBuilder mBestWordBuffer = new StringBuilder();
   private boolean mPredictionOn;
   private boolean mCompletionOn;
   private boolean mAutoSpace;
@@ -165,6 +181,11 @@ public class LatinIME extends InputMethodService
         case MSG_UPDATE_SHIFT_STATE:
           updateShiftKeyState(getCurrentInputEditorInfo());
           break;
+        case MSG_SHOW_SUGGESTIONS:
+          SuggestionRequest request = (SuggestionRequest) msg.obj;
+          showSuggestions(request);
+          recycleRequest(request);
+          break;
       }
     }
   };
@@ -178,6 +199,10 @@ public class LatinIME extends InputMethodService
     initSuggest(conf.locale.toString());
     mOrientation = conf.orientation;
 
+    mSuggestThread = new HandlerThread("Suggest", Process.THREAD_PRIORITY_BACKGROUND);
+    mSuggestThread.start();
+    mSuggestHandler = new Handler(mSuggestThread.getLooper());
+
     mVibrateDuration = getResources().getInteger(R.integer.vibrate_duration_ms);
 
     // register to receive ringer mode changes for silent mode
@@ -187,22 +212,37 @@ public class LatinIME extends InputMethodService
 
   private void initSuggest(String locale) {
     mLocale = locale;
-    mSuggest = new Suggest(this, R.raw.main);
-    mSuggest.setCorrectionMode(mCorrectionMode);
+    final UserDictionary oldUserDictionary = mUserDictionary;
+    final ContactsDictionary oldContactsDictionary = mContactsDictionary;
+    // Set up the new engine completely before the suggest thread can see it
+    final Suggest suggest = new Suggest(this, R.raw.main);
+    suggest.setCorrectionMode(mCorrectionMode);
     mUserDictionary = new UserDictionary(this);
     mContactsDictionary = new ContactsDictionary(this);
-    mAutoDictionary = new AutoDictionary(this);
-    mSuggest.setUserDictionary(mUserDictionary);
-    mSuggest.setContactsDictionary(mContactsDictionary);
-    mSuggest.setAutoDictionary(mAutoDictionary);
+    // Learned words aren't tied to the locale, and may not be written out yet
+    if (mAutoDictionary == null) mAutoDictionary = new AutoDictionary(this);
+    suggest.setUserDictionary(mUserDictionary);
+    suggest.setContactsDictionary(mContactsDictionary);
+    suggest.setAutoDictionary(mAutoDictionary);
+    // Abandon a query on the old engine rather than wait for it
+    mSuggestionGeneration++;
+    synchronized (mSuggestLock) {
+      mSuggest = suggest;
+    }
+    // Their observers would otherwise go on reloading them
+    if (oldUserDictionary != null) oldUserDictionary.close();
+    if (oldContactsDictionary != null) oldContactsDictionary.close();
     mWordSeparators = getResources().getString(R.string.word_separators);
     mSentenceSeparators = getResources().getString(R.string.sentence_separators);
   }
 
   @Override
   public void onDestroy() {
+    mSuggestionGeneration++;
+    mSuggestThread.quit();
     mUserDictionary.close();
     mContactsDictionary.close();
+    mAutoDictionary.flushAsync();
     unregisterReceiver(mReceiver);
     super.onDestroy();
   }
@@ -257,6 +297,8 @@ public class LatinIME extends InputMethodService
     mKeyboardSwitcher.makeKeyboards(false);
 
     TextEntryState.newSession(this);
+    if (!restarting) mAutoDictionary.startSession();
+    mNextWords.reset();
 
     boolean disableAutoCorrect = false;
     mPredictionOn = false;
@@ -337,7 +379,7 @@ public class LatinIME extends InputMethodService
     mPredicting = false;
     mDeleteCount = 0;
     setCandidatesViewShown(false);
-    if (mCandidateView != null) mCandidateView.setSuggestions(null, false, false, false);
+    if (mCandidateView != null) setSuggestions(null, false, false, false);
     loadSettings();
     // Override auto correct
     if (disableAutoCorrect) {
@@ -361,6 +403,7 @@ public class LatinIME extends InputMethodService
     if (mInputView != null) {
       mInputView.closing();
     }
+    mAutoDictionary.flushAsync();
   }
 
   @Override
@@ -375,6 +418,7 @@ public class LatinIME extends InputMethodService
         || newSelEnd != candidatesEnd)) {
       mComposing.setLength(0);
       mPredicting = false;
+      mNextWords.reset();
       updateSuggestions();
       TextEntryState.reset();
       InputConnection ic = getCurrentInputConnection();
@@ -415,7 +459,7 @@ public class LatinIME extends InputMethodService
     if (mCompletionOn) {
       mCompletions = completions;
       if (completions == null) {
-        mCandidateView.setSuggestions(null, false, false, false);
+        setSuggestions(null, false, false, false);
         return;
       }
 
@@ -425,7 +469,7 @@ public class LatinIME extends InputMethodService
         if (ci != null) stringList.add(ci.getText());
       }
       //CharSequence typedWord = mWord.getTypedWord();
-      mCandidateView.setSuggestions(stringList, true, true, true);
+      setSuggestions(stringList, true, true, true);
       mBestWord = null;
       setCandidatesViewShown(isCandidateStripVisible() || mCompletionOn);
     }
@@ -509,6 +553,7 @@ public class LatinIME extends InputMethodService
         mCommittedLength = mComposing.length();
         TextEntryState.acceptedTyped(mComposing);
         mAutoDictionary.addWord(mComposing.toString(), FREQUENCY_FOR_TYPED);
+        mNextWords.learn(mComposing);
       }
       updateSuggestions();
     }
@@ -753,6 +798,11 @@ public class LatinIME extends InputMethodService
     if (pickedDefault && mBestWord != null) {
       TextEntryState.acceptedDefault(mWord.getTypedWord(), mBestWord);
     }
+    if (isSentenceSeparator(primaryCode)) {
+      // The next sentence doesn't follow on from the last word
+      mNextWords.reset();
+      updateSuggestions();
+    }
     updateShiftKeyState(getCurrentInputEditorInfo());
     if (ic != null) {
       ic.endBatchEdit();
@@ -780,6 +830,8 @@ public class LatinIME extends InputMethodService
   }
 
   private void postUpdateSuggestions() {
+    // The composition changed, abandon whatever is being computed for the old one
+    mSuggestionGeneration++;
     mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
     mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_UPDATE_SUGGESTIONS), 100);
   }
@@ -801,41 +853,136 @@ public class LatinIME extends InputMethodService
     }
 
     if (!mPredicting) {
-      mCandidateView.setSuggestions(null, false, false, false);
+      showNextWords();
       return;
     }
 
-    List<CharSequence> stringList = mSuggest.getSuggestions(mInputView, mWord, false);
-    boolean correctionAvailable = mSuggest.hasMinimalCorrection();
-    //|| mCorrectionMode == mSuggest.CORRECTION_FULL;
-    CharSequence typedWord = mWord.getTypedWord();
-    // If we're in basic correct
-    boolean typedWordValid = mSuggest.isValidWord(typedWord) ||
-        (preferCapitalization() && mSuggest.isValidWord(typedWord.toString().toLowerCase()));
-    if (mCorrectionMode == Suggest.CORRECTION_FULL) {
-      correctionAvailable |= typedWordValid;
-    }
-    // Don't auto-correct words with multiple capital letter
-    correctionAvailable &= !mWord.isMostlyCaps();
+    final SuggestionRequest request = obtainRequest();
+    request.generation = ++mSuggestionGeneration;
+    request.word.set(mWord);
+    request.keyTime = mLastKeyTime;
+    mSuggestHandler.post(request);
+  }
 
-    mCandidateView.setSuggestions(stringList, false, typedWordValid, correctionAvailable);
-    if (stringList.size() > 0) {
-      if (correctionAvailable && !typedWordValid && stringList.size() > 1) {
-        mBestWord = stringList.get(1);
-      } else {
-        mBestWord = typedWord;
+  private SuggestionRequest obtainRequest() {
+    synchronized (mFreeRequests) {
+      if (!mFreeRequests.isEmpty()) {
+        return mFreeRequests.remove(mFreeRequests.size() - 1);
+      }
+    }
+    return new SuggestionRequest();
+  }
+
+  private void recycleRequest(SuggestionRequest request) {
+    synchronized (mFreeRequests) {
+      mFreeRequests.add(request);
+    }
+  }
+
+  /**
+   * Computes the suggestions for a request's composition, on whichever thread asks.
+   *
+   * @return false if the generation was superseded before they were ready
+   */
+  private boolean computeSuggestions(SuggestionRequest request) {
+    final WordComposer word = request.word;
+    synchronized (mSuggestLock) {
+      if (request.isCancelled()) return false;
+      List<CharSequence> stringList =
+          mSuggest.getSuggestions(mInputView, word, false, request);
+      if (request.isCancelled()) return false;
+      boolean correctionAvailable = mSuggest.hasMinimalCorrection();
+      //|| mCorrectionMode == mSuggest.CORRECTION_FULL;
+      CharSequence typedWord = word.getTypedWord();
+      // If we're in basic correct
+      boolean typedWordValid = mSuggest.isValidWord(typedWord);
+      if (!typedWordValid && word.isCapitalized()) {
+        final StringBuilder lower = request.lowerTypedWord;
+        lower.setLength(0);
+        for (int i = 0; i < typedWord.length(); i++) {
+          lower.append(Character.toLowerCase(typedWord.charAt(i)));
+        }
+        typedWordValid = mSuggest.isValidWord(lower);
+      }
+      if (mCorrectionMode == Suggest.CORRECTION_FULL) {
+        correctionAvailable |= typedWordValid;
       }
+      // Don't auto-correct words with multiple capital letter
+      correctionAvailable &= !word.isMostlyCaps();
+
+      // Suggest reuses its list and pooled builders on the next query, so hand over copies
+      request.setWords(stringList);
+      request.typedWordValid = typedWordValid;
+      request.correctionAvailable = correctionAvailable;
+      request.bestWord.setLength(0);
+      if (stringList.size() > 0) {
+        if (correctionAvailable && !typedWordValid && stringList.size() > 1) {
+          request.bestWord.append(stringList.get(1));
+        } else {
+          request.bestWord.append(typedWord);
+        }
+      }
+      return true;
+    }
+  }
+
+  private void showSuggestions(SuggestionRequest suggestions) {
+    // Drop results for a composition that has since changed
+    if (suggestions.generation != mSuggestionGeneration) return;
+    mShownGeneration = suggestions.generation;
+    // The candidate view copies the words, so the request can be recycled after this
+    mCandidateView.setSuggestions(suggestions.words, false, suggestions.typedWordValid,
+        suggestions.correctionAvailable);
+    if (suggestions.bestWord.length() > 0) {
+      mBestWordBuffer.setLength(0);
+      mBestWordBuffer.append(suggestions.bestWord);
+      mBestWord = mBestWordBuffer;
     } else {
       mBestWord = null;
     }
     setCandidatesViewShown(isCandidateStripVisible() || mCompletionOn);
+    if (suggestions.keyTime != 0 && mSuggest != null) {
+      mSuggest.getStats().record(SuggestStats.STAGE_RENDER,
+          (SystemClock.uptimeMillis() - suggestions.keyTime) * 1000000L);
+    }
+  }
+
+  /**
+   * Offers the words likely to follow the last one committed, if any, in place of suggestions.
+   */
+  private void showNextWords() {
+    // The predictor reuses its list and builders, which the candidate view copies
+    setSuggestions(mNextWords.getNextWords(), false, false, false);
+  }
+
+  /**
+   * Sets the candidate strip directly, superseding any suggestions still being computed.
+   */
+  private void setSuggestions(List<CharSequence> suggestions, boolean completions,
+                              boolean typedWordValid, boolean haveMinimalSuggestion) {
+    mShownGeneration = ++mSuggestionGeneration;
+    mCandidateView.setSuggestions(suggestions, completions, typedWordValid,
+        haveMinimalSuggestion);
   }
 
   private void pickDefaultSuggestion() {
-    // Complete any pending candidate query first
-    if (mHandler.hasMessages(MSG_UPDATE_SUGGESTIONS)) {
+    // Complete any pending candidate query first, waiting out a cancelled search that's
+    // still running on the suggestion thread
+    if (mHandler.hasMessages(MSG_UPDATE_SUGGESTIONS)
+        || (mPredicting && mShownGeneration != mSuggestionGeneration)) {
       mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
-      updateSuggestions();
+      if (mSuggest != null && isPredictionOn() && mPredicting) {
+        final SuggestionRequest request = obtainRequest();
+        request.generation = ++mSuggestionGeneration;
+        request.word.set(mWord);
+        request.keyTime = 0;
+        if (computeSuggestions(request)) {
+          showSuggestions(request);
+        }
+        recycleRequest(request);
+      } else {
+        updateSuggestions();
+      }
     }
     if (mBestWord != null) {
       TextEntryState.acceptedDefault(mWord.getTypedWord(), mBestWord);
@@ -869,26 +1016,51 @@ public class LatinIME extends InputMethodService
     TextEntryState.typedCharacter((char) KEYCODE_SPACE, true);
   }
 
+  /**
+   * Called when a suggestion replaces what was typed of the current word.
+   */
+  protected void onSuggestionPicked(CharSequence typedWord, CharSequence suggestion) {
+  }
+
   private void pickSuggestion(CharSequence suggestion) {
+    if (!mPredicting) {
+      // A predicted next word, none of which was typed
+      mComposing.setLength(0);
+    }
     if (mCapsLock) {
       suggestion = suggestion.toString().toUpperCase();
-    } else if (preferCapitalization()
+    } else if ((mPredicting && preferCapitalization())
         || (mKeyboardSwitcher.isAlphabetMode() && mInputView.isShifted())) {
       suggestion = suggestion.toString().toUpperCase().charAt(0)
           + suggestion.subSequence(1, suggestion.length()).toString();
     }
     InputConnection ic = getCurrentInputConnection();
     if (ic != null) {
+      ic.beginBatchEdit();
+      if (!mPredicting) {
+        // Without auto space nothing separates the predicted word from the last one yet
+        CharSequence toLeft = ic.getTextBeforeCursor(1, 0);
+        if (!TextUtils.isEmpty(toLeft) && !isWordSeparator(toLeft.charAt(0))) {
+          ic.commitText(" ", 1);
+        }
+      }
       ic.commitText(suggestion, 1);
+      ic.endBatchEdit();
     }
+    onSuggestionPicked(mComposing, suggestion);
     // Add the word to the auto dictionary if it's not a known word
     if (mAutoDictionary.isValidWord(suggestion) || !mSuggest.isValidWord(suggestion)) {
       mAutoDictionary.addWord(suggestion.toString(), FREQUENCY_FOR_PICKED);
     }
+    mNextWords.learn(suggestion);
     mPredicting = false;
     mCommittedLength = suggestion.length();
     if (mCandidateView != null) {
-      mCandidateView.setSuggestions(null, false, false, false);
+      if (isPredictionOn()) {
+        showNextWords();
+      } else {
+        setSuggestions(null, false, false, false);
+      }
     }
     updateShiftKeyState(getCurrentInputEditorInfo());
   }
@@ -1154,6 +1326,16 @@ public class LatinIME extends InputMethodService
     p.println("  TextEntryState.state=" + TextEntryState.getState());
     p.println("  mSoundOn=" + mSoundOn);
     p.println("  mVibrateOn=" + mVibrateOn);
+    if (mSuggest != null) {
+      p.println("Suggestion pipeline :");
+      mSuggest.getStats().snapshot().dump(p, "  ");
+    }
+    if (mAutoDictionary != null) {
+      p.println("Auto dictionary :");
+      mAutoDictionary.dump(p, "  ");
+    }
+    p.println("Next word predictor :");
+    mNextWords.dump(p, "  ");
   }
 
   // Characters per second measurement
@@ -1176,31 +1358,45 @@ public class LatinIME extends InputMethodService
     System.out.println("CPS = " + ((CPS_BUFFER_SIZE * 1000f) / total));
   }
 
-  class AutoDictionary extends ExpandableDictionary {
-    // If the user touches a typed word 2 times or more, it will become valid.
-    private static final int VALIDITY_THRESHOLD = 2 * FREQUENCY_FOR_PICKED;
-    // If the user touches a typed word 5 times or more, it will be added to the user dict.
-    private static final int PROMOTION_THRESHOLD = 5 * FREQUENCY_FOR_PICKED;
-
-    public AutoDictionary(Context context) {
-      super(context);
+  /**
+   * One suggestion request, run on the suggestion thread and handed back to the main one with
+   * its result. Everything in it is reused once the request is recycled.
+   */
+  class SuggestionRequest implements Runnable, Suggest.Cancellation {
+    final WordComposer word = new WordComposer();
+    int generation;
+    // Uptime of the keystroke these suggestions answer, 0 if they don't answer one
+    long keyTime;
+    final ArrayList<CharSequence> words = new ArrayList<CharSequence>();
+    private final ArrayList<StringBuilder> mWordBuilders = new ArrayList<StringBuilder>();
+    boolean typedWordValid;
+    boolean correctionAvailable;
+    // Empty if there is no best word
+    final StringBuilder bestWord = new StringBuilder();
+    final StringBuilder lowerTypedWord = new StringBuilder();
+
+    void setWords(List<CharSequence> suggestions) {
+      words.clear();
+      for (int i = 0; i < suggestions.size(); i++) {
+        if (i == mWordBuilders.size()) {
+          mWordBuilders.add(new StringBuilder());
+        }
+        final StringBuilder copy = mWordBuilders.get(i);
+        copy.setLength(0);
+        copy.append(suggestions.get(i));
+        words.add(copy);
+      }
     }
 
-    @Override
-    public boolean isValidWord(CharSequence word) {
-      final int frequency = getWordFrequency(word);
-      return frequency > VALIDITY_THRESHOLD;
+    public boolean isCancelled() {
+      return generation != mSuggestionGeneration;
     }
 
-    @Override
-    public void addWord(String word, int addFrequency) {
-      final int length = word.length();
-      // Don't add very short or very long words.
-      if (length < 2 || length > getMaxWordLength()) return;
-      super.addWord(word, addFrequency);
-      final int freq = getWordFrequency(word);
-      if (freq > PROMOTION_THRESHOLD) {
-        LatinIME.this.promoteToUserDictionary(word, FREQUENCY_FOR_AUTO_ADD);
+    public void run() {
+      if (computeSuggestions(this)) {
+        mHandler.obtainMessage(MSG_SHOW_SUGGESTIONS, this).sendToTarget();
+      } else {
+        recycleRequest(this);
       }
     }
   }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.emergent.android.morseime;
+
+/**
+ * Time source for the morse timing engine. All times are in nanoseconds and only meaningful
+ * relative to one another.
+ *
+ * @author Patrick Woodworth
+ */
+
+public abstract class MorseClock {
+
+  public static final long NANOS_PER_MILLI = 1000000L;
+
+  /**
+   * Monotonic device clock. On Android System.nanoTime() reads CLOCK_MONOTONIC, the same
+   * timebase as SystemClock.uptimeMillis() and input event times, so it never jumps with
+   * wall clock changes.
+   */
+  public static final MorseClock SYSTEM = new MorseClock() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  public abstract long nanoTime();
+
+  /**
+   * @return whole milliseconds from now until the given time, rounded up so a callback
+   *         posted with the result never runs early; 0 if the time has passed
+   */
+  public long millisUntil(long when) {
+    long remaining = when - nanoTime();
+    if (remaining <= 0)
+      return 0;
+    return (remaining + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI;
+  }
+
+  public static long toMillis(long nanos) {
+    return nanos / NANOS_PER_MILLI;
+  }
+
+  public static long fromMillis(long millis) {
+    return millis * NANOS_PER_MILLI;
+  }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime;
+
+import java.util.Arrays;
+
+/**
+ * Turns timed dits and dahs into characters and word breaks. The decoder has no Android
+ * dependencies; whoever owns it feeds it elements and calls {@link #advance()} once the time
+ * returned by {@link #getDeadline()} has passed.
+ * <p/>
+ * Elements either arrive ready made from the dit and dah keys, or are keyed through
+ * {@link #keyDown(long)} and {@link #keyUp(long)}. For a straight key the hold time decides
+ * between dit and dah; a keyer says which it sent.
+ *
+ * @author Patrick Woodworth
+ */
+public class MorseDecoder {
+
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  private static final int WPM_MILLIS_EQUATION_NUMERATOR = 1200;
+  private static final int CHAR_SEP_UNITS = 3;
+  private static final int WORD_SEP_UNITS = 7;
+
+  /**
+   * PARIS is 50 units, 19 of them character and word spacing: 4 character gaps of 3 and a
+   * word gap of 7.
+   */
+  private static final int FARNSWORTH_GAP_UNITS = 19;
+
+  /**
+   * Hold time, in units, from which a keyed element counts as a dah; halfway between the
+   * nominal dit and dah.
+   */
+  private static final int DAH_UNITS = 2;
+
+  /**
+   * How sure the speed estimate must be before it replaces the configured timing.
+   */
+  public static final float MIN_CONFIDENCE = 0.5f;
+
+  /**
+   * Most codes handed over per character, the decoded one included.
+   */
+  static final int MAX_CODES = 4;
+
+  /**
+   * An element or gap counts as possibly misread when it came within this ratio of the
+   * threshold that classified it. Nominal timing stays outside it, and tapped elements,
+   * which cannot be mistimed into the other kind, are never flipped.
+   */
+  private static final float MAX_CONFUSION_RATIO = 1.5f;
+
+  private static final int MIN_WPM = 1;
+  private static final int MAX_WPM = 60;
+
+  public interface Listener {
+
+    /**
+     * Called when a character gap ends a sequence.
+     *
+     * @param theChar the most likely character, or {@link MorseDigraph#NO_CHAR} if neither
+     *                the sequence nor any near miss of it was valid morse
+     * @param codes   theChar followed by the characters the sequence could have been meant
+     *                as, most likely first, padded with -1; in the form keyboards hand
+     *                nearby keys to {@link WordComposer#add(int, int[])}. Null along with
+     *                {@link MorseDigraph#NO_CHAR}. The array is reused for the next
+     *                character, so copy whatever is kept of it.
+     */
+    void onCharacter(char theChar, int[] codes, int ditDahBits, int ditDahCount);
+
+    /**
+     * Called when a word gap follows a decoded character.
+     */
+    void onWordGap();
+  }
+
+  private final MorseClock m_clock;
+  private final Listener m_listener;
+
+  private boolean m_autoSpace = false;
+  private boolean m_keyed = false;
+  private boolean m_adaptive = false;
+
+  private final MorseSpeedEstimator m_estimator = new MorseSpeedEstimator();
+
+  private long m_unitNanos;
+
+  /**
+   * The unit and the nominal spacing between characters and words at the configured speeds.
+   */
+  private long m_configuredUnitNanos;
+  private long m_charGapNanos;
+  private long m_wordGapNanos;
+
+  private long m_charSepNanos;
+  private long m_wordSepNanos;
+
+  private boolean m_keyDown = false;
+  private long m_keyDownAt = 0;
+
+  private int m_ditDahBits = 0;
+  private int m_ditDahCount = 0;
+
+  /**
+   * How far each element's hold time, and the gap before it, was from the threshold that
+   * classified it, as a ratio of at least 1; 1 is right on the threshold.
+   */
+  private final float[] m_markRatios = new float[MorseDigraph.MAX_ELEMENTS];
+  private final float[] m_gapRatios = new float[MorseDigraph.MAX_ELEMENTS];
+
+  private final float[] m_candidateRatios = new float[MAX_CODES];
+  private final int[] m_codes = new int[MAX_CODES];
+
+  private long m_lastDitOrDah = 0;
+  private boolean m_hasLastDitOrDah = false;
+
+  /**
+   * Whether a character or word gap after the last element is still to be handled.
+   */
+  private boolean m_gapPending = false;
+
+  private long m_commitCount = 0;
+  private long m_commitLatencyTotal = 0;
+  private long m_commitLatencyMax = 0;
+
+  public MorseDecoder(MorseClock clock, Listener listener) {
+    m_clock = clock;
+    m_listener = listener;
+    setWordsPerMinute(10);
+  }
+
+  public MorseClock getClock() {
+    return m_clock;
+  }
+
+  public void setWordsPerMinute(long wpm) {
+    setWordsPerMinute(wpm, wpm);
+  }
+
+  /**
+   * Sets Farnsworth timing: characters are sent at one speed and spaced out so the text as
+   * a whole comes at a slower effective speed. An effective speed at or above the character
+   * speed gives standard spacing.
+   */
+  public void setWordsPerMinute(long wpm, long effectiveWpm) {
+    m_configuredUnitNanos = calcNanos(1, wpm);
+    if (effectiveWpm >= wpm) {
+      m_charGapNanos = CHAR_SEP_UNITS * m_configuredUnitNanos;
+      m_wordGapNanos = WORD_SEP_UNITS * m_configuredUnitNanos;
+    } else {
+      long farnsworthNanos = calcFarnsworthNanos(wpm, effectiveWpm);
+      m_charGapNanos = CHAR_SEP_UNITS * farnsworthNanos / FARNSWORTH_GAP_UNITS;
+      m_wordGapNanos = WORD_SEP_UNITS * farnsworthNanos / FARNSWORTH_GAP_UNITS;
+    }
+    m_unitNanos = m_configuredUnitNanos;
+    updateGaps();
+  }
+
+  /**
+   * Sets whether elements are keyed with a real duration rather than tapped. Keyed gaps are
+   * measured from the end of an element, so they are split halfway between the nominal
+   * element, character and word spacings instead of at the nominal spacing itself.
+   */
+  public void setKeyed(boolean keyed) {
+    m_keyed = keyed;
+    updateGaps();
+  }
+
+  /**
+   * Sets whether the timing follows the speed actually keyed, starting from the configured
+   * speed each time the settings are applied.
+   */
+  public void setAdaptive(boolean adaptive) {
+    m_adaptive = adaptive;
+    updateGaps();
+  }
+
+  private void updateGaps() {
+    setNominalGaps();
+    m_estimator.reset(m_unitNanos, m_charSepNanos, m_keyed);
+  }
+
+  /**
+   * Derives the gap thresholds from the nominal spacing, scaled by how far an adapted unit
+   * has moved from the configured one.
+   */
+  private void setNominalGaps() {
+    long charGap = m_charGapNanos * m_unitNanos / m_configuredUnitNanos;
+    long wordGap = m_wordGapNanos * m_unitNanos / m_configuredUnitNanos;
+    if (m_keyed) {
+      m_charSepNanos = (m_unitNanos + charGap) / 2;
+      m_wordSepNanos = (charGap + wordGap) / 2;
+    } else {
+      m_charSepNanos = charGap;
+      m_wordSepNanos = wordGap;
+    }
+  }
+
+  /**
+   * Feeds an element to the speed estimate and takes up whatever part of the estimate is
+   * sure enough. Keyed marks alone can move the unit, and the gaps with it, before the
+   * gaps themselves are learned.
+   */
+  private void observe(long start, long end) {
+    if (m_keyed)
+      m_estimator.addMark(end - start);
+    // stay well clear of word gaps, or they would drag the character gaps up with them
+    long gap = start - m_lastDitOrDah;
+    long wordGapCutoff = Math.max((m_charSepNanos + m_wordSepNanos) / 2, 3 * m_estimator.getElementGapNanos());
+    if (m_hasLastDitOrDah && gap < wordGapCutoff)
+      m_estimator.addGap(gap);
+    if (m_estimator.getConfidence() >= MIN_CONFIDENCE) {
+      m_unitNanos = Math.max(calcNanos(1, MAX_WPM), Math.min(calcNanos(1, MIN_WPM), m_estimator.getUnitNanos()));
+      setNominalGaps();
+    }
+    if (m_estimator.getGapConfidence() >= MIN_CONFIDENCE) {
+      m_charSepNanos = Math.max(m_unitNanos, m_estimator.getCharSepNanos());
+      m_wordSepNanos = Math.max(m_charSepNanos + m_unitNanos, m_estimator.getWordSepNanos());
+    }
+  }
+
+  public boolean isAdaptive() {
+    return m_adaptive;
+  }
+
+  /**
+   * @return the speed the decoder is currently timing for, in words per minute
+   */
+  public long getWordsPerMinute() {
+    return Math.round(calcNanos(1, 1) / (double) m_unitNanos);
+  }
+
+  public float getSpeedConfidence() {
+    return m_estimator.getConfidence();
+  }
+
+  public void setAutoSpace(boolean autoSpace) {
+    m_autoSpace = autoSpace;
+  }
+
+  public long getUnitNanos() {
+    return m_unitNanos;
+  }
+
+  public long getCharSepNanos() {
+    return m_charSepNanos;
+  }
+
+  public long getWordSepNanos() {
+    return m_wordSepNanos;
+  }
+
+  public void addElement(boolean isDit) {
+    addElement(isDit, m_clock.nanoTime());
+  }
+
+  public void addElement(boolean isDit, long when) {
+    // a gap that ran out before this element was handled still counts, however late we are
+    advance(when);
+    appendElement(isDit, when, when);
+  }
+
+  private void appendElement(boolean isDit, long start, long end) {
+    int index = m_ditDahCount;
+    if (index < MorseDigraph.MAX_ELEMENTS) {
+      m_markRatios[index] = m_keyed ? ratio(end - start, DAH_UNITS * m_unitNanos) : Float.MAX_VALUE;
+      m_gapRatios[index] = index > 0 ? ratio(start - m_lastDitOrDah, m_charSepNanos) : Float.MAX_VALUE;
+    }
+    if (m_adaptive)
+      observe(start, end);
+    m_lastDitOrDah = end;
+    m_hasLastDitOrDah = true;
+    m_gapPending = true;
+    m_ditDahBits = MorseDigraph.appendElement(m_ditDahBits, isDit);
+    m_ditDahCount++;
+  }
+
+  public void keyDown() {
+    keyDown(m_clock.nanoTime());
+  }
+
+  /**
+   * Starts a keyed element. No gap can end while the key is held.
+   */
+  public void keyDown(long when) {
+    advance(when);
+    m_keyDown = true;
+    m_keyDownAt = when;
+  }
+
+  public void keyUp() {
+    keyUp(m_clock.nanoTime());
+  }
+
+  /**
+   * Ends a keyed element, adding a dit or a dah depending on how long the key was held.
+   */
+  public void keyUp(long when) {
+    if (!m_keyDown)
+      return;
+    keyUp(when, when - m_keyDownAt < DAH_UNITS * m_unitNanos);
+  }
+
+  /**
+   * Ends a keyed element whose kind is already known, as when a keyer generated it.
+   */
+  public void keyUp(long when, boolean isDit) {
+    if (!m_keyDown)
+      return;
+    m_keyDown = false;
+    // the gap before this element already ended in keyDown()
+    appendElement(isDit, m_keyDownAt, when);
+  }
+
+  public boolean isKeyDown() {
+    return m_keyDown;
+  }
+
+  /**
+   * @return the time at which {@link #advance()} next has work to do, or {@link #NO_DEADLINE}
+   */
+  public long getDeadline() {
+    if (!m_gapPending || m_keyDown)
+      return NO_DEADLINE;
+    if (m_ditDahCount > 0)
+      return m_lastDitOrDah + m_charSepNanos;
+    return m_autoSpace ? m_lastDitOrDah + m_wordSepNanos : NO_DEADLINE;
+  }
+
+  public void advance() {
+    advance(m_clock.nanoTime());
+  }
+
+  /**
+   * Handles every deadline at or before the given time.
+   */
+  public void advance(long now) {
+    if (!m_gapPending || m_keyDown)
+      return;
+    long elapsed = now - m_lastDitOrDah;
+    if (m_ditDahCount > 0) {
+      if (elapsed < m_charSepNanos)
+        return;
+      int bits = m_ditDahBits;
+      int count = m_ditDahCount;
+      m_ditDahBits = 0;
+      m_ditDahCount = 0;
+      recordCommitLatency(elapsed);
+      m_gapPending = m_autoSpace;
+      int[] codes = buildCodes(bits, count);
+      char theChar = codes != null ? (char) codes[0] : MorseDigraph.NO_CHAR;
+      m_listener.onCharacter(theChar, codes, bits, count);
+    }
+    if (m_gapPending && m_ditDahCount == 0 && m_autoSpace && elapsed >= m_wordSepNanos) {
+      m_gapPending = false;
+      m_listener.onWordGap();
+    }
+  }
+
+  /**
+   * Ranks what a sequence could have been meant as: the sequence as classified, then single
+   * elements flipped between dit and dah, then the part before an intra-character gap that
+   * may have been a character gap, each ranked by how near its threshold it came.
+   *
+   * @return the codes for {@link Listener#onCharacter}, or null if none is valid morse
+   */
+  private int[] buildCodes(int bits, int count) {
+    int[] codes = null;
+    int size = 0;
+    char primary = MorseDigraph.charOfPattern(bits, count);
+    if (primary != MorseDigraph.NO_CHAR) {
+      codes = newCodes();
+      codes[size++] = primary;
+    }
+    if (count > MorseDigraph.MAX_ELEMENTS)
+      return codes;
+    int first = size;
+    for (int i = 0; i < count; i++) {
+      if (m_markRatios[i] < MAX_CONFUSION_RATIO) {
+        char flipped = MorseDigraph.charOfPattern(bits ^ (1 << (count - 1 - i)), count);
+        if (codes == null && flipped != MorseDigraph.NO_CHAR)
+          codes = newCodes();
+        size = insertCandidate(codes, size, first, flipped, m_markRatios[i]);
+      }
+      if (i > 0 && m_gapRatios[i] < MAX_CONFUSION_RATIO) {
+        char split = MorseDigraph.charOfPattern(bits >> (count - i), i);
+        if (codes == null && split != MorseDigraph.NO_CHAR)
+          codes = newCodes();
+        size = insertCandidate(codes, size, first, split, m_gapRatios[i]);
+      }
+    }
+    return codes;
+  }
+
+  private int[] newCodes() {
+    Arrays.fill(m_codes, -1);
+    return m_codes;
+  }
+
+  /**
+   * Inserts a candidate among those from first on, in order of ratio, dropping whichever
+   * falls off the end.
+   *
+   * @return the new number of codes
+   */
+  private int insertCandidate(int[] codes, int size, int first, char candidate, float ratio) {
+    if (candidate == MorseDigraph.NO_CHAR)
+      return size;
+    for (int i = 0; i < size; i++) {
+      if (codes[i] == candidate)
+        return size;
+    }
+    int pos = size;
+    while (pos > first && m_candidateRatios[pos - 1] > ratio)
+      pos--;
+    if (pos >= MAX_CODES)
+      return size;
+    int last = Math.min(size, MAX_CODES - 1);
+    for (int i = last; i > pos; i--) {
+      codes[i] = codes[i - 1];
+      m_candidateRatios[i] = m_candidateRatios[i - 1];
+    }
+    codes[pos] = candidate;
+    m_candidateRatios[pos] = ratio;
+    return last + 1;
+  }
+
+  private static float ratio(long value, long threshold) {
+    if (value <= 0 || threshold <= 0)
+      return Float.MAX_VALUE;
+    return value > threshold ? value / (float) threshold : threshold / (float) value;
+  }
+
+  /**
+   * Moves a virtual clock forward to the given time, stopping at each deadline on the way
+   * exactly as a scheduler on the device would.
+   */
+  public void runUntil(VirtualMorseClock clock, long until) {
+    long deadline;
+    while ((deadline = getDeadline()) != NO_DEADLINE && deadline <= until) {
+      clock.advanceTo(deadline);
+      advance(clock.nanoTime());
+    }
+    if (until != NO_DEADLINE)
+      clock.advanceTo(until);
+  }
+
+  /**
+   * Runs the decoder on a virtual clock until it is idle.
+   */
+  public void drain(VirtualMorseClock clock) {
+    runUntil(clock, NO_DEADLINE);
+  }
+
+  public void reset() {
+    m_keyDown = false;
+    m_hasLastDitOrDah = false;
+    m_gapPending = false;
+    m_ditDahBits = 0;
+    m_ditDahCount = 0;
+  }
+
+  public int getPendingCount() {
+    return m_ditDahCount;
+  }
+
+  public long getCommitCount() {
+    return m_commitCount;
+  }
+
+  public long getCommitLatencyAverage() {
+    return m_commitCount > 0 ? m_commitLatencyTotal / m_commitCount : 0;
+  }
+
+  public long getCommitLatencyMax() {
+    return m_commitLatencyMax;
+  }
+
+  private void recordCommitLatency(long latency) {
+    m_commitCount++;
+    m_commitLatencyTotal += latency;
+    m_commitLatencyMax = Math.max(m_commitLatencyMax, latency);
+  }
+
+  public static long calcNanos(int units, long wpm) {
+    return MorseClock.fromMillis(WPM_MILLIS_EQUATION_NUMERATOR * units) / wpm;
+  }
+
+  /**
+   * The total spacing per PARIS word under the Farnsworth formula,
+   * t<sub>a</sub> = (60c - 37.2s) / (sc) seconds for character speed c and effective speed s.
+   */
+  public static long calcFarnsworthNanos(long wpm, long effectiveWpm) {
+    return (60000000000L * wpm - 37200000000L * effectiveWpm) / (effectiveWpm * wpm);
+  }
+}
@@ -16,8 +16,6 @@
 
 package org.emergent.android.morseime;
 
-import java.util.EnumSet;
-
 /**
  * @author Patrick Woodworth
  */
@@ -65,7 +63,7 @@ public enum MorseDigraph {
   APOSTROPHE('\'', ".----."),
   EXCLAMATION_MARK('!', "-.-.--"),
   SLASH('/', "-..-."),
-  PAREN_OPEN('(', "	-.--."),
+  PAREN_OPEN('(', "-.--."),
   PAREN_CLOSE(')', "-.--.-"),
   AMPERSAND('&', ".-..."),
   COLON(':', "---..."),
@@ -79,6 +77,36 @@ public enum MorseDigraph {
   AT_SIGN('@', ".--.-."),
   ;
 
+  /**
+   * The longest element sequence that can be packed into a pattern.
+   */
+  public static final int MAX_ELEMENTS = 7;
+
+  /**
+   * Returned by {@link #charOfPattern(int, int)} for sequences with no digraph.
+   */
+  public static final char NO_CHAR = 0;
+
+  /**
+   * Indexed by {@link #patternIndex(int, int)}, built once from the enum constants.
+   */
+  private static final MorseDigraph[] PATTERN_TABLE = new MorseDigraph[1 << (MAX_ELEMENTS + 1)];
+
+  /**
+   * Elements keyed per character, indexed by the character; 0 where there is no digraph.
+   */
+  private static final byte[] ELEMENT_COUNTS = new byte[128];
+
+  static {
+    for (MorseDigraph digraph : values()) {
+      int index = digraph.patternIndex();
+      if (PATTERN_TABLE[index] == null)
+        PATTERN_TABLE[index] = digraph;
+      if (digraph.m_char < ELEMENT_COUNTS.length && ELEMENT_COUNTS[digraph.m_char] == 0)
+        ELEMENT_COUNTS[digraph.m_char] = (byte) digraph.m_encoding.length();
+    }
+  }
+
   private final char m_char;
   private final String m_encoding;
 
@@ -87,6 +115,14 @@ public enum MorseDigraph {
     m_encoding = encoding;
   }
 
+  private int patternIndex() {
+    int bits = 0;
+    for (int ii = 0; ii < m_encoding.length(); ii++) {
+      bits = appendElement(bits, m_encoding.charAt(ii) == '.');
+    }
+    return patternIndex(bits, m_encoding.length());
+  }
+
   public char getChar() {
     return m_char;
   }  
@@ -95,11 +131,63 @@ public enum MorseDigraph {
     return m_encoding;
   }
 
+  /**
+   * Shifts one element onto a packed pattern. Dits are stored as 0 bits and dahs as 1 bits,
+   * with the first element keyed in the most significant position.
+   */
+  public static int appendElement(int bits, boolean isDit) {
+    return (bits << 1) | (isDit ? 0 : 1);
+  }
+
+  /**
+   * Returns the decode table slot for a packed pattern. A leading 1 bit above the elements
+   * keeps sequences of different lengths (e.g. "." and "..") from sharing a slot.
+   */
+  private static int patternIndex(int bits, int length) {
+    return (1 << length) | (bits & ((1 << length) - 1));
+  }
+
+  /**
+   * @return the digraph for the packed pattern, or null if the sequence is not valid morse
+   */
+  public static MorseDigraph valueOfPattern(int bits, int length) {
+    if (length < 1 || length > MAX_ELEMENTS)
+      return null;
+    return PATTERN_TABLE[patternIndex(bits, length)];
+  }
+
+  /**
+   * @return the character for the packed pattern, or {@link #NO_CHAR} if there is none
+   */
+  public static char charOfPattern(int bits, int length) {
+    MorseDigraph digraph = valueOfPattern(bits, length);
+    return digraph != null ? digraph.m_char : NO_CHAR;
+  }
+
+  /**
+   * @return how many dits and dahs it takes to key the character, ignoring case, or 0 if
+   *         it has no digraph
+   */
+  public static int elementCountOf(char theChar) {
+    char lower = Character.toLowerCase(theChar);
+    return lower < ELEMENT_COUNTS.length ? ELEMENT_COUNTS[lower] : 0;
+  }
+
   public static MorseDigraph valueOfEncoding(String encoding) {
-    for (MorseDigraph digraph : EnumSet.allOf(MorseDigraph.class)) {
-      if (digraph.m_encoding.equals(encoding))
-        return digraph;
+    MorseDigraph digraph = null;
+    int length = encoding.length();
+    if (length <= MAX_ELEMENTS) {
+      int bits = 0;
+      for (int ii = 0; ii < length; ii++) {
+        char element = encoding.charAt(ii);
+        if (element != '.' && element != '-')
+          throw new IllegalArgumentException("Invalid digraph encoding \"" + encoding + "\"");
+        bits = appendElement(bits, element == '.');
+      }
+      digraph = valueOfPattern(bits, length);
     }
-    throw new IllegalArgumentException("Invalid digraph encoding \"" + encoding + "\"");
+    if (digraph == null)
+      throw new IllegalArgumentException("Invalid digraph encoding \"" + encoding + "\"");
+    return digraph;
   }
 }
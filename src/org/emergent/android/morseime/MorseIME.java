@@ -17,27 +17,45 @@
 package org.emergent.android.morseime;
 
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.PrintWriterPrinter;
+import android.util.Printer;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
  * @author Patrick Woodworth
  */
 public class MorseIME extends LatinIME {
 
+  private static final String PREF_KEYING_MODE = "keying_mode";
   private static final String PREF_WORDS_PER_MINUTE = "words_per_minute";
+  private static final String PREF_FARNSWORTH_ON = "farnsworth_on";
+  private static final String PREF_EFFECTIVE_WORDS_PER_MINUTE = "effective_words_per_minute";
+  private static final String PREF_ADAPTIVE_SPEED = "adaptive_speed";
+  private static final String PREF_ADAPTED_WPM = "adapted_words_per_minute";
   private static final String PREF_AUTO_SPACE_ON = "auto_space_on";
   private static final String PREF_FORCE_VISIBLE = "force_visible";
 
-  private static final int WPM_MILLIS_EQUATION_NUMERATOR = 1200;
-  private static final int CHAR_SEP_UNITS = 3;
-  private static final int WORD_SEP_UNITS = 7;
   private static final int DEFAULT_WPM = 10;
 
+  private static final String KEYING_MODE_BUTTONS = "buttons";
+  private static final String KEYING_MODE_STRAIGHT = "straight";
+  private static final String KEYING_MODE_IAMBIC_A = "iambic_a";
+  private static final String KEYING_MODE_IAMBIC_B = "iambic_b";
+
   private DitDahHandlerCallback m_ditDahHandlerCallback = new DitDahHandlerCallback();
 
   private boolean m_forceVisible = true;
   private boolean m_autoSpace = false;
+  private boolean m_straightKey = false;
+  private IambicKeyer.Mode m_iambicMode = null;
   private long m_wpm = 10;
+  private long m_effectiveWpm = 10;
+  private boolean m_adaptive = false;
+  private long m_adaptedWpm = 10;
 
   @Override
   public boolean onEvaluateInputViewShown() {
@@ -48,16 +66,66 @@ public class MorseIME extends LatinIME {
   public void onFinishInput() {
     super.onFinishInput();
     m_ditDahHandlerCallback.reset();
+    saveAdaptedSpeed();
+  }
+
+  /**
+   * Keeps the speed learned this session as the starting point for the next one.
+   */
+  private void saveAdaptedSpeed() {
+    long wpm = m_ditDahHandlerCallback.getAdaptedWordsPerMinute();
+    if (wpm <= 0 || wpm == m_adaptedWpm)
+      return;
+    m_adaptedWpm = wpm;
+    SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
+    SharedPreferences.Editor editor = sp.edit();
+    editor.putInt(PREF_ADAPTED_WPM, (int) wpm);
+    editor.commit();
+  }
+
+  @Override
+  public void onPress(int primaryCode) {
+    super.onPress(primaryCode);
+    m_ditDahHandlerCallback.handleKeyDown(primaryCode, getKeyEventTime());
   }
 
   @Override
   public void onKey(int primaryCode, int[] keyCodes) {
-    if (m_ditDahHandlerCallback.handleKeyPress(primaryCode))
+    if (m_ditDahHandlerCallback.handleKeyPress(primaryCode, getKeyEventTime()))
       return;
     else
       super.onKey(primaryCode, keyCodes);
   }
 
+  /**
+   * @return the uptime of the touch that produced the key being handled, or -1 if unknown
+   */
+  private long getKeyEventTime() {
+    MorseKeyboardView inputView = mKeyboardSwitcher != null ? mKeyboardSwitcher.mInputView : null;
+    return inputView != null ? inputView.getDispatchingEventTime() : -1;
+  }
+
+  @Override
+  public void pickSuggestionManually(int index, CharSequence suggestion) {
+    // the word is finished, so a word gap still pending must not add a second space
+    m_ditDahHandlerCallback.reset();
+    super.pickSuggestionManually(index, suggestion);
+  }
+
+  @Override
+  protected void onSuggestionPicked(CharSequence typedWord, CharSequence suggestion) {
+    super.onSuggestionPicked(typedWord, suggestion);
+    m_ditDahHandlerCallback.recordSavings(countElements(suggestion) - countElements(typedWord));
+  }
+
+  private static int countElements(CharSequence text) {
+    int count = 0;
+    for (int ii = 0; ii < text.length(); ii++) {
+      count += MorseDigraph.elementCountOf(text.charAt(ii));
+    }
+    return count;
+  }
+
   @Override
   protected void loadSettings() {
     super.loadSettings();
@@ -66,57 +134,132 @@ public class MorseIME extends LatinIME {
     m_forceVisible = sp.getBoolean(PREF_FORCE_VISIBLE, true);
     m_autoSpace = sp.getBoolean(PREF_AUTO_SPACE_ON, false);
     m_wpm = sp.getInt(PREF_WORDS_PER_MINUTE, DEFAULT_WPM);
+    m_effectiveWpm = sp.getBoolean(PREF_FARNSWORTH_ON, false)
+        ? sp.getInt(PREF_EFFECTIVE_WORDS_PER_MINUTE, (int) m_wpm) : m_wpm;
+    m_adaptive = sp.getBoolean(PREF_ADAPTIVE_SPEED, false);
+    m_adaptedWpm = sp.getInt(PREF_ADAPTED_WPM, (int) m_wpm);
+    String keyingMode = sp.getString(PREF_KEYING_MODE, KEYING_MODE_BUTTONS);
+    m_straightKey = KEYING_MODE_STRAIGHT.equals(keyingMode);
+    if (KEYING_MODE_IAMBIC_A.equals(keyingMode))
+      m_iambicMode = IambicKeyer.Mode.A;
+    else if (KEYING_MODE_IAMBIC_B.equals(keyingMode))
+      m_iambicMode = IambicKeyer.Mode.B;
+    else
+      m_iambicMode = null;
+    mKeyboardSwitcher.setMorseKeyboard(m_straightKey ? R.xml.kbd_morse_straight : R.xml.kbd_morse);
+    mKeyboardSwitcher.mInputView.setOnPaddleListener(m_iambicMode != null ? m_ditDahHandlerCallback : null);
+    m_ditDahHandlerCallback.applySettings();
+  }
+
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter fout, String[] args) {
+    super.dump(fd, fout, args);
+
+    final Printer p = new PrintWriterPrinter(fout);
+    p.println("MorseIME state :");
+    p.println("  m_wpm=" + m_wpm + " m_effectiveWpm=" + m_effectiveWpm);
+    p.println("  m_autoSpace=" + m_autoSpace);
+    p.println("  m_adaptive=" + m_adaptive + " m_adaptedWpm=" + m_adaptedWpm);
+    p.println("  m_straightKey=" + m_straightKey);
+    p.println("  m_iambicMode=" + m_iambicMode);
+    m_ditDahHandlerCallback.dump(p);
   }
 
 
-  public class DitDahHandlerCallback implements Runnable {
+  public class DitDahHandlerCallback
+      implements Runnable, MorseDecoder.Listener, IambicKeyer.Listener, MorseKeyboardView.OnPaddleListener {
+
+    private final Object m_lock = new Object();
 
-    private final StringBuilder m_ditDahBuf = new StringBuilder();
+    private final MorseDecoder m_decoder;
 
-    private long m_lastDitOrDah = 0;
+    private final IambicKeyer m_keyer = new IambicKeyer(this);
 
-    private boolean m_registered = false;
+    private long m_elementsKeyed = 0;
+    private long m_elementsSaved = 0;
+    private long m_suggestionsPicked = 0;
+
+    private long m_dispatchCount = 0;
+    private long m_dispatchDelayTotal = 0;
+    private long m_dispatchDelayMax = 0;
 
     public DitDahHandlerCallback() {
+      this(MorseClock.SYSTEM);
+    }
+
+    public DitDahHandlerCallback(MorseClock clock) {
+      m_decoder = new MorseDecoder(clock, this);
     }
 
+    /**
+     * Runs once per pending decoder deadline; nothing stays posted once the decoder is idle.
+     */
     public void run() {
-      long curTime = System.currentTimeMillis();
-      try {
-        synchronized (m_ditDahBuf) {
-          long elapsed = curTime - m_lastDitOrDah;
-          if (elapsed < calcMillis(CHAR_SEP_UNITS))
-            return;
-
-          if (m_ditDahBuf.length() == 0) {
-            if (!m_autoSpace || m_lastDitOrDah == 0 || elapsed < calcMillis(WORD_SEP_UNITS))
-              return;
-            m_lastDitOrDah = 0;
-            getCurrentInputConnection().commitText(String.valueOf((char) ' '), 1);
-//            sendKey(' ');
-          } else {
-            String encoding = m_ditDahBuf.toString();
-            m_ditDahBuf.setLength(0);
-            try {
-              MorseDigraph digraph = MorseDigraph.valueOfEncoding(encoding);
-              char theChar = digraph.getChar();
-              if (mKeyboardSwitcher.mInputView.getKeyboard().isShifted())
-                theChar = Character.toUpperCase(theChar);
-              getCurrentInputConnection().commitText(String.valueOf(theChar), 1);
-//              sendKey(digraph.getChar());
-            } catch (IllegalArgumentException e) {
-              LOG.warn(e, e.getMessage());
-            }
-          }
+      synchronized (m_lock) {
+        long now = m_decoder.getClock().nanoTime();
+        m_keyer.advance(now);
+        m_decoder.advance(now);
+        schedule();
+      }
+    }
+
+    /**
+     * Hands the character on as if its key had been pressed, with the near misses as the
+     * nearby keys, so dictionary correction can repair keying errors.
+     */
+    public void onCharacter(char theChar, int[] codes, int ditDahBits, int ditDahCount) {
+      m_elementsKeyed += ditDahCount;
+      if (theChar != MorseDigraph.NO_CHAR) {
+        MorseIME.super.onKey(theChar, codes);
+      } else if (LOG.LOGGING_ENABLED) {
+        LOG.warn("Invalid digraph pattern %s of length %d",
+            Integer.toBinaryString(ditDahBits), ditDahCount);
+      }
+    }
+
+    public void onKeyDown(long when) {
+      m_decoder.keyDown(when);
+    }
+
+    public void onKeyUp(boolean isDit, long when) {
+      m_decoder.keyUp(when, isDit);
+    }
+
+    public void onPaddles(boolean dit, boolean dah, long eventTime) {
+      synchronized (m_lock) {
+        m_keyer.setPaddles(dit, dah, toDecoderTime(eventTime));
+        schedule();
+      }
+    }
+
+    public void onWordGap() {
+      MorseIME.super.onKey(' ', null);
+    }
+
+    /**
+     * Notes the straight key going down; the element is classified once it is released.
+     */
+    public void handleKeyDown(int primaryCode, long eventTime) {
+      if (primaryCode == MorseKeyboardView.KEYCODE_STRAIGHT_KEY) {
+        synchronized (m_lock) {
+          m_decoder.keyDown(toDecoderTime(eventTime));
+          schedule();
         }
-      } finally {
-        mHandler.postDelayed(this, 200);
       }
     }
 
-    public boolean handleKeyPress(int primaryCode) {
+    /**
+     * @param eventTime uptime of the originating touch, or -1 to stamp the key on arrival
+     */
+    public boolean handleKeyPress(int primaryCode, long eventTime) {
       if (primaryCode == MorseKeyboardView.KEYCODE_DIT || primaryCode == MorseKeyboardView.KEYCODE_DAH) {
-        m_ditDahHandlerCallback.recordDitOrDah(primaryCode == MorseKeyboardView.KEYCODE_DIT);
+        m_ditDahHandlerCallback.recordDitOrDah(primaryCode == MorseKeyboardView.KEYCODE_DIT, eventTime);
+        return true;
+      } else if (primaryCode == MorseKeyboardView.KEYCODE_STRAIGHT_KEY) {
+        synchronized (m_lock) {
+          m_decoder.keyUp(toDecoderTime(eventTime));
+          schedule();
+        }
         return true;
       } else {
         m_ditDahHandlerCallback.reset();
@@ -125,28 +268,104 @@ public class MorseIME extends LatinIME {
     }
 
     public void reset() {
-      synchronized (m_ditDahBuf) {
+      synchronized (m_lock) {
         mHandler.removeCallbacks(this);
-        m_lastDitOrDah = 0;
-        m_ditDahBuf.setLength(0);
-        m_registered = false;
+        m_keyer.reset();
+        m_decoder.reset();
       }
     }
 
-    private void recordDitOrDah(boolean isDit) {
-      synchronized (m_ditDahBuf) {
-        m_lastDitOrDah = System.currentTimeMillis();
-        m_ditDahBuf.append(isDit ? '.' : '-');
-        if (!m_registered) {
-          mHandler.removeCallbacks(this);
-          mHandler.postDelayed(this, 200);
-          m_registered = true;
-        }
+    void applySettings() {
+      synchronized (m_lock) {
+        m_decoder.setWordsPerMinute(m_adaptive ? m_adaptedWpm : m_wpm, m_effectiveWpm);
+        m_decoder.setAdaptive(m_adaptive);
+        m_decoder.setKeyed(m_straightKey || m_iambicMode != null);
+        m_keyer.setWordsPerMinute(m_wpm);
+        if (m_iambicMode != null)
+          m_keyer.setMode(m_iambicMode);
+        m_decoder.setAutoSpace(m_autoSpace);
+        schedule();
+      }
+    }
+
+    private void recordDitOrDah(boolean isDit, long eventTime) {
+      synchronized (m_lock) {
+        m_decoder.addElement(isDit, toDecoderTime(eventTime));
+        schedule();
+      }
+    }
+
+    /**
+     * Maps an event uptime onto the decoder's clock by how long ago it happened, so the
+     * element is timed from the touch rather than from when the main thread got to it.
+     */
+    private long toDecoderTime(long eventTime) {
+      long now = m_decoder.getClock().nanoTime();
+      if (eventTime < 0)
+        return now;
+      long delay = Math.max(0, SystemClock.uptimeMillis() - eventTime);
+      m_dispatchCount++;
+      m_dispatchDelayTotal += delay;
+      m_dispatchDelayMax = Math.max(m_dispatchDelayMax, delay);
+      return now - MorseClock.fromMillis(delay);
+    }
+
+    /**
+     * Replaces any pending callback with one at the keyer's or decoder's next deadline,
+     * whichever is first, so at most one is ever posted.
+     */
+    private void schedule() {
+      mHandler.removeCallbacks(this);
+      long deadline = Math.min(m_keyer.getDeadline(), m_decoder.getDeadline());
+      if (deadline != MorseDecoder.NO_DEADLINE)
+        mHandler.postDelayed(this, m_decoder.getClock().millisUntil(deadline));
+    }
+
+    /**
+     * @return the speed learned this session, or 0 if it is not adapting or not sure yet
+     */
+    long getAdaptedWordsPerMinute() {
+      synchronized (m_lock) {
+        if (!m_decoder.isAdaptive() || m_decoder.getSpeedConfidence() < MorseDecoder.MIN_CONFIDENCE)
+          return 0;
+        return m_decoder.getWordsPerMinute();
       }
     }
 
-    private long calcMillis(int units) {
-      return (WPM_MILLIS_EQUATION_NUMERATOR * units) / m_wpm;
+    /**
+     * Counts the dits and dahs a picked suggestion keyed for the user; a correction that
+     * made the word shorter counts against it.
+     */
+    void recordSavings(int elements) {
+      m_suggestionsPicked++;
+      m_elementsSaved += elements;
+    }
+
+    void dump(Printer p) {
+      synchronized (m_lock) {
+        p.println("  pending elements=" + m_decoder.getPendingCount());
+        if (m_decoder.isAdaptive()) {
+          p.println("  speed estimate=" + m_decoder.getWordsPerMinute() + "wpm confidence="
+              + m_decoder.getSpeedConfidence());
+        }
+        p.println("  char gap=" + MorseClock.toMillis(m_decoder.getCharSepNanos())
+            + "ms word gap=" + MorseClock.toMillis(m_decoder.getWordSepNanos()) + "ms");
+        long commitCount = m_decoder.getCommitCount();
+        if (commitCount > 0) {
+          p.println("  commit latency avg=" + MorseClock.toMillis(m_decoder.getCommitLatencyAverage())
+              + "ms max=" + MorseClock.toMillis(m_decoder.getCommitLatencyMax())
+              + "ms over " + commitCount + " chars");
+        }
+        if (m_elementsKeyed > 0 && m_elementsKeyed + m_elementsSaved > 0) {
+          p.println("  elements keyed=" + m_elementsKeyed + " saved by " + m_suggestionsPicked
+              + " suggestions=" + m_elementsSaved + " ("
+              + (100 * m_elementsSaved / (m_elementsKeyed + m_elementsSaved)) + "%)");
+        }
+        if (m_dispatchCount > 0) {
+          p.println("  dispatch delay avg=" + (m_dispatchDelayTotal / m_dispatchCount)
+              + "ms max=" + m_dispatchDelayMax + "ms over " + m_dispatchCount + " keys");
+        }
+      }
     }
   }
 }
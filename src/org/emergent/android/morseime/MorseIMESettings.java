@@ -29,6 +29,9 @@ public class MorseIMESettings extends PreferenceActivity
   private static final String QUICK_FIXES_KEY = "quick_fixes";
   private static final String SHOW_SUGGESTIONS_KEY = "show_suggestions";
   private static final String PREDICTION_SETTINGS_KEY = "prediction_settings";
+  private static final String WORDS_PER_MINUTE_KEY = "words_per_minute";
+  private static final String ADAPTIVE_SPEED_KEY = "adaptive_speed";
+  private static final String ADAPTED_WPM_KEY = "adapted_words_per_minute";
 
   private CheckBoxPreference mQuickFixes;
   private CheckBoxPreference mShowSuggestions;
@@ -63,5 +66,10 @@ public class MorseIMESettings extends PreferenceActivity
   }
 
   public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+    // a speed learned from earlier keying must not outlast a speed picked since
+    if ((WORDS_PER_MINUTE_KEY.equals(key) || ADAPTIVE_SPEED_KEY.equals(key))
+        && sharedPreferences.contains(ADAPTED_WPM_KEY)) {
+      sharedPreferences.edit().remove(ADAPTED_WPM_KEY).commit();
+    }
   }
 }
@@ -22,6 +22,7 @@ import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.Keyboard.Key;
 import android.inputmethodservice.KeyboardView;
 import android.util.AttributeSet;
+import android.view.MotionEvent;
 
 /**
  * @author Patrick Woodworth
@@ -32,9 +33,28 @@ public class MorseKeyboardView extends KeyboardView {
   static final int KEYCODE_SHIFT_LONGPRESS = -101;
   static final int KEYCODE_DIT = -102;
   static final int KEYCODE_DAH = -103;
+  static final int KEYCODE_STRAIGHT_KEY = -104;
+
+  /**
+   * Receives the state of the dit and dah keys when they are used as iambic paddles.
+   */
+  interface OnPaddleListener {
+
+    void onPaddles(boolean dit, boolean dah, long eventTime);
+  }
 
   private Keyboard mPhoneKeyboard;
 
+  private OnPaddleListener mPaddleListener;
+  private boolean mPaddleGesture;
+  private boolean mDitPaddle;
+  private boolean mDahPaddle;
+
+  /**
+   * Uptime of the touch event being dispatched, or -1 outside of dispatch.
+   */
+  private long mEventTime = -1;
+
   public MorseKeyboardView(Context context, AttributeSet attrs) {
     super(context, attrs);
   }
@@ -47,6 +67,91 @@ public class MorseKeyboardView extends KeyboardView {
     mPhoneKeyboard = phoneKeyboard;
   }
 
+  /**
+   * @return the {@link android.os.SystemClock#uptimeMillis()} time of the touch that caused
+   *         the key press or key currently being delivered, or -1 if it was not delivered
+   *         from a touch
+   */
+  long getDispatchingEventTime() {
+    return mEventTime;
+  }
+
+  /**
+   * Turns the dit and dah keys into paddles that report being held rather than pressed, or
+   * back into ordinary keys if the listener is null.
+   */
+  void setOnPaddleListener(OnPaddleListener listener) {
+    mPaddleListener = listener;
+    mPaddleGesture = false;
+    mDitPaddle = false;
+    mDahPaddle = false;
+  }
+
+  @Override
+  public boolean onTouchEvent(MotionEvent me) {
+    if (mPaddleListener != null && handlePaddles(me)) {
+      return true;
+    }
+    // Keys are delivered synchronously from inside KeyboardView's own handling of the event
+    mEventTime = me.getEventTime();
+    try {
+      return super.onTouchEvent(me);
+    } finally {
+      mEventTime = -1;
+    }
+  }
+
+  /**
+   * Tracks every pointer of a gesture that started on a paddle, so both paddles can be
+   * squeezed at once.
+   */
+  private boolean handlePaddles(MotionEvent me) {
+    int action = me.getAction() & MotionEvent.ACTION_MASK;
+    if (action == MotionEvent.ACTION_DOWN) {
+      mPaddleGesture = getPaddleAt(me.getX(), me.getY()) != 0;
+    }
+    if (!mPaddleGesture) {
+      return false;
+    }
+    boolean dit = false;
+    boolean dah = false;
+    if (action != MotionEvent.ACTION_UP && action != MotionEvent.ACTION_CANCEL) {
+      int lifted = action == MotionEvent.ACTION_POINTER_UP
+          ? (me.getAction() & MotionEvent.ACTION_POINTER_ID_MASK) >> MotionEvent.ACTION_POINTER_ID_SHIFT
+          : -1;
+      for (int i = 0; i < me.getPointerCount(); i++) {
+        if (i == lifted) continue;
+        int code = getPaddleAt(me.getX(i), me.getY(i));
+        dit |= code == KEYCODE_DIT;
+        dah |= code == KEYCODE_DAH;
+      }
+    } else {
+      mPaddleGesture = false;
+    }
+    if (dit != mDitPaddle || dah != mDahPaddle) {
+      mDitPaddle = dit;
+      mDahPaddle = dah;
+      mPaddleListener.onPaddles(dit, dah, me.getEventTime());
+    }
+    return true;
+  }
+
+  private int getPaddleAt(float x, float y) {
+    Keyboard keyboard = getKeyboard();
+    if (keyboard == null) {
+      return 0;
+    }
+    int keyX = (int) x - getPaddingLeft();
+    int keyY = (int) y - getPaddingTop();
+    for (Key key : keyboard.getKeys()) {
+      int code = key.codes[0];
+      if ((code == KEYCODE_DIT || code == KEYCODE_DAH) && key.isInside(keyX, keyY)) {
+        return code;
+      }
+    }
+    return 0;
+  }
+
   @Override
   protected boolean onLongPress(Key key) {
     if (key.codes[0] == Keyboard.KEYCODE_MODE_CHANGE) {
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime;
+
+/**
+ * Follows the speed someone is actually keying at. Recent element (mark) durations and the
+ * gaps between elements are each split into a short and a long cluster by an incremental
+ * two-means over a sliding window; the dit unit and the character and word gap thresholds
+ * are read off the cluster means.
+ * <p/>
+ * Adding a sample is constant time and allocates nothing. Assignments made as samples arrive
+ * are revisited once per window, in case the means have moved since.
+ *
+ * @author Patrick Woodworth
+ */
+public class MorseSpeedEstimator {
+
+  static final int WINDOW = 32;
+
+  /**
+   * Samples per cluster before it counts as fully trained.
+   */
+  private static final int MIN_CLUSTER = 4;
+
+  private final TwoMeans m_marks = new TwoMeans();
+  private final TwoMeans m_gaps = new TwoMeans();
+
+  private boolean m_keyed;
+
+  /**
+   * Starts over from the given timing, which the estimate stays at until samples arrive.
+   */
+  public void reset(long unitNanos, long charSepNanos, boolean keyed) {
+    m_keyed = keyed;
+    m_marks.reset(unitNanos, 3 * unitNanos);
+    m_gaps.reset(charSepNanos / 2, 3 * charSepNanos / 2);
+  }
+
+  /**
+   * Adds how long a keyed element was held.
+   */
+  public void addMark(long nanos) {
+    m_marks.add(nanos);
+  }
+
+  /**
+   * Adds a gap that was shorter than a word gap, measured from the end of one keyed element,
+   * or from one tapped element, to the start of the next.
+   */
+  public void addGap(long nanos) {
+    m_gaps.add(nanos);
+  }
+
+  /**
+   * @return how sure {@link #getUnitNanos()} is, from 0, nothing learned yet, to 1, both
+   *         clusters it is read from trained and clearly apart
+   */
+  public float getConfidence() {
+    return m_keyed ? getMarkConfidence() : getGapConfidence();
+  }
+
+  public float getMarkConfidence() {
+    return m_marks.getConfidence();
+  }
+
+  /**
+   * @return how sure the character and word gap thresholds are
+   */
+  public float getGapConfidence() {
+    return m_gaps.getConfidence();
+  }
+
+  /**
+   * @return the typical gap between the elements of one character
+   */
+  public long getElementGapNanos() {
+    return m_gaps.getLowMean();
+  }
+
+  public long getUnitNanos() {
+    if (!m_keyed)
+      return getCharSepNanos() / 3;
+    // dahs are three units, so both clusters measure the unit
+    return (m_marks.getLowMean() + m_marks.getHighMean() / 3) / 2;
+  }
+
+  public long getCharSepNanos() {
+    return m_gaps.getThreshold();
+  }
+
+  public long getWordSepNanos() {
+    if (!m_keyed)
+      return 7 * getCharSepNanos() / 3;
+    // halfway between a character gap and a word gap of 7/3 of it
+    return 5 * m_gaps.getHighMean() / 3;
+  }
+
+  /**
+   * Two-means over the last {@link MorseSpeedEstimator#WINDOW} samples.
+   */
+  static class TwoMeans {
+
+    private final long[] m_samples = new long[WINDOW];
+    private final boolean[] m_isHigh = new boolean[WINDOW];
+    private int m_next;
+    private int m_size;
+
+    private long m_lowSum;
+    private long m_highSum;
+    private int m_lowCount;
+    private int m_highCount;
+
+    private long m_lowMean;
+    private long m_highMean;
+
+    void reset(long lowMean, long highMean) {
+      m_next = 0;
+      m_size = 0;
+      m_lowSum = m_highSum = 0;
+      m_lowCount = m_highCount = 0;
+      m_lowMean = lowMean;
+      m_highMean = highMean;
+    }
+
+    void add(long sample) {
+      if (m_size == WINDOW) {
+        if (m_isHigh[m_next]) {
+          m_highSum -= m_samples[m_next];
+          m_highCount--;
+        } else {
+          m_lowSum -= m_samples[m_next];
+          m_lowCount--;
+        }
+      } else {
+        m_size++;
+      }
+      boolean high = sample - m_lowMean > m_highMean - sample;
+      m_samples[m_next] = sample;
+      m_isHigh[m_next] = high;
+      if (high) {
+        m_highSum += sample;
+        m_highCount++;
+      } else {
+        m_lowSum += sample;
+        m_lowCount++;
+      }
+      m_next = (m_next + 1) % WINDOW;
+      updateMeans();
+      if (m_next == 0 || m_lowMean >= m_highMean || (m_size >= MIN_CLUSTER && (m_lowCount == 0 || m_highCount == 0)))
+        recluster();
+    }
+
+    /**
+     * One Lloyd pass over the window with the current means. If every sample fell into one
+     * cluster, the means are first moved out to the shortest and longest samples, so a speed
+     * far from the starting one can still be picked up.
+     */
+    private void recluster() {
+      long lowMean = Math.min(m_lowMean, m_highMean);
+      long highMean = Math.max(m_lowMean, m_highMean);
+      if (m_lowCount == 0 || m_highCount == 0) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < m_size; i++) {
+          min = Math.min(min, m_samples[i]);
+          max = Math.max(max, m_samples[i]);
+        }
+        if (max > min + min / 2) {
+          lowMean = min;
+          highMean = max;
+        }
+      }
+      m_lowSum = m_highSum = 0;
+      m_lowCount = m_highCount = 0;
+      for (int i = 0; i < m_size; i++) {
+        long sample = m_samples[i];
+        boolean high = sample - lowMean > highMean - sample;
+        m_isHigh[i] = high;
+        if (high) {
+          m_highSum += sample;
+          m_highCount++;
+        } else {
+          m_lowSum += sample;
+          m_lowCount++;
+        }
+      }
+      m_lowMean = lowMean;
+      m_highMean = highMean;
+      updateMeans();
+    }
+
+    /**
+     * An empty cluster keeps its last mean, so a run of nothing but dits does not lose
+     * track of how long a dah is.
+     */
+    private void updateMeans() {
+      if (m_lowCount > 0)
+        m_lowMean = m_lowSum / m_lowCount;
+      if (m_highCount > 0)
+        m_highMean = m_highSum / m_highCount;
+    }
+
+    long getLowMean() {
+      return m_lowMean;
+    }
+
+    long getHighMean() {
+      return m_highMean;
+    }
+
+    long getThreshold() {
+      return (m_lowMean + m_highMean) / 2;
+    }
+
+    /**
+     * How many samples each cluster holds, scaled by how far apart the means are: a ratio
+     * of 1.2 or less could be one cluster split in two, 2 or more is clearly two.
+     */
+    float getConfidence() {
+      if (m_lowMean <= 0)
+        return 0;
+      float fill = Math.min(1f, Math.min(m_lowCount, m_highCount) / (float) MIN_CLUSTER);
+      float ratio = m_highMean / (float) m_lowMean;
+      float separation = Math.max(0f, Math.min(1f, (ratio - 1.2f) / 0.8f));
+      return fill * separation;
+    }
+  }
+}
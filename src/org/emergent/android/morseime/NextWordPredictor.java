@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime;
+
+import android.util.Printer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Learns which words follow which from the words the user commits, and predicts the next word
+ * from the last one committed so the candidate strip has something to offer before any of the
+ * next word has been keyed.
+ * <p/>
+ * Everything lives in arrays allocated up front. Words are kept in an open addressed table of
+ * {@link #WORD_CAPACITY} slots, hashed without case and probed at most {@link #PROBES} slots
+ * from their home; when those are all taken, the least used of them is replaced. A word's slot
+ * index is its id, and each slot has room for the ids of {@link #SUCCESSORS} words that followed
+ * it, with a count quantized to a byte: a count that reaches 255 halves its neighbours and
+ * itself, and a new follower replaces the least counted one. Followers are checked against the
+ * hash of the word they were learned for, so a replaced word's pairs are simply ignored.
+ * Learning and predicting are O(1) and allocate nothing.
+ *
+ * @author Patrick Woodworth
+ */
+public class NextWordPredictor {
+
+  public static final int WORD_CAPACITY = 2048;
+  public static final int SUCCESSORS = 4;
+  public static final int MAX_WORD_LENGTH = 20;
+
+  private static final int PROBES = 8;
+  private static final int MAX_COUNT = 255;
+  private static final int NONE = -1;
+
+  private final char[] m_chars = new char[WORD_CAPACITY * MAX_WORD_LENGTH];
+  private final byte[] m_lengths = new byte[WORD_CAPACITY];
+  // 0 for an empty slot
+  private final int[] m_hashes = new int[WORD_CAPACITY];
+  private final byte[] m_uses = new byte[WORD_CAPACITY];
+
+  private final short[] m_next = new short[WORD_CAPACITY * SUCCESSORS];
+  private final int[] m_nextHashes = new int[WORD_CAPACITY * SUCCESSORS];
+  private final byte[] m_nextCounts = new byte[WORD_CAPACITY * SUCCESSORS];
+
+  // The last word learned, and its hash in case its slot has been taken since
+  private int m_previous = NONE;
+  private int m_previousHash;
+
+  private final StringBuilder[] m_builders = new StringBuilder[SUCCESSORS];
+  private final ArrayList<CharSequence> m_predictions = new ArrayList<CharSequence>(SUCCESSORS);
+  private final int[] m_order = new int[SUCCESSORS];
+
+  private long m_learned;
+  private long m_replaced;
+
+  public NextWordPredictor() {
+    for (int i = 0; i < SUCCESSORS; i++) {
+      m_builders[i] = new StringBuilder(MAX_WORD_LENGTH);
+    }
+    Arrays.fill(m_next, (short) NONE);
+  }
+
+  /**
+   * Forgets the last word, so that the next one learned doesn't count as following it.
+   */
+  public void reset() {
+    m_previous = NONE;
+  }
+
+  /**
+   * Counts the word as following the last one learned, and makes it the last one.
+   */
+  public void learn(CharSequence word) {
+    final int length = word.length();
+    if (length == 0 || length > MAX_WORD_LENGTH) {
+      m_previous = NONE;
+      return;
+    }
+    final int slot = find(word, true);
+    if ((m_uses[slot] & 0xFF) < MAX_COUNT) m_uses[slot]++;
+    // The previous word may have been the one replaced to make room
+    if (m_previous != NONE && m_hashes[m_previous] == m_previousHash) {
+      addPair(m_previous, slot);
+    }
+    m_previous = slot;
+    m_previousHash = m_hashes[slot];
+    m_learned++;
+  }
+
+  /**
+   * Returns the words most likely to follow the last one learned, best first. The list and its
+   * contents are reused by the next call.
+   */
+  public List<CharSequence> getNextWords() {
+    m_predictions.clear();
+    final int previous = m_previous;
+    if (previous == NONE || m_hashes[previous] != m_previousHash) return m_predictions;
+    final int base = previous * SUCCESSORS;
+    int count = 0;
+    for (int j = 0; j < SUCCESSORS; j++) {
+      if (!isValid(base + j)) continue;
+      // Insertion sort by count, there are only a few
+      final int c = m_nextCounts[base + j] & 0xFF;
+      int pos = count++;
+      while (pos > 0 && (m_nextCounts[m_order[pos - 1]] & 0xFF) < c) {
+        m_order[pos] = m_order[pos - 1];
+        pos--;
+      }
+      m_order[pos] = base + j;
+    }
+    for (int i = 0; i < count; i++) {
+      final int slot = m_next[m_order[i]];
+      final StringBuilder sb = m_builders[i];
+      sb.setLength(0);
+      sb.append(m_chars, slot * MAX_WORD_LENGTH, m_lengths[slot]);
+      m_predictions.add(sb);
+    }
+    return m_predictions;
+  }
+
+  /**
+   * @return whether the table holds the word
+   */
+  boolean contains(CharSequence word) {
+    return find(word, false) != NONE;
+  }
+
+  /**
+   * @return the quantized count of the next word following the previous one, 0 if the pair
+   *         isn't held
+   */
+  int getCount(CharSequence previous, CharSequence next) {
+    final int from = find(previous, false);
+    final int to = find(next, false);
+    if (from == NONE || to == NONE) return 0;
+    for (int j = from * SUCCESSORS; j < (from + 1) * SUCCESSORS; j++) {
+      if (m_next[j] == to && isValid(j)) return m_nextCounts[j] & 0xFF;
+    }
+    return 0;
+  }
+
+  private boolean isValid(int pair) {
+    final int next = m_next[pair];
+    return next != NONE && m_hashes[next] == m_nextHashes[pair];
+  }
+
+  private void addPair(int previous, int next) {
+    final int base = previous * SUCCESSORS;
+    final int hash = m_hashes[next];
+    int victim = NONE;
+    for (int j = base; j < base + SUCCESSORS; j++) {
+      if (m_next[j] == next && m_nextHashes[j] == hash) {
+        if ((m_nextCounts[j] & 0xFF) == MAX_COUNT) {
+          for (int k = base; k < base + SUCCESSORS; k++) {
+            m_nextCounts[k] = (byte) ((m_nextCounts[k] & 0xFF) >> 1);
+          }
+        }
+        m_nextCounts[j]++;
+        return;
+      }
+      if (!isValid(j)) {
+        if (victim == NONE || isValid(victim)) victim = j;
+      } else if (victim == NONE
+          || (isValid(victim) && (m_nextCounts[j] & 0xFF) < (m_nextCounts[victim] & 0xFF))) {
+        victim = j;
+      }
+    }
+    m_next[victim] = (short) next;
+    m_nextHashes[victim] = hash;
+    m_nextCounts[victim] = 1;
+  }
+
+  /**
+   * Returns the word's slot, or NONE if it has none and isn't to be added.
+   */
+  private int find(CharSequence word, boolean add) {
+    final int hash = hash(word);
+    final int mask = WORD_CAPACITY - 1;
+    final int home = hash & mask;
+    for (int p = 0; p < PROBES; p++) {
+      final int slot = (home + p) & mask;
+      final int h = m_hashes[slot];
+      if (h == 0) {
+        if (!add) return NONE;
+        store(slot, word, hash);
+        return slot;
+      }
+      if (h == hash && same(slot, word)) {
+        // Prefer the spelling used mid-sentence over a capitalized one
+        if (add && Character.isLowerCase(word.charAt(0))) copy(slot, word);
+        return slot;
+      }
+    }
+    if (!add) return NONE;
+    // Replace the least used word in reach, ageing the others so that they don't stay forever
+    int victim = home;
+    int victimUses = MAX_COUNT + 1;
+    for (int p = 0; p < PROBES; p++) {
+      final int slot = (home + p) & mask;
+      // Compared before ageing, the slots looked at already have been halved
+      final int uses = m_uses[slot] & 0xFF;
+      if (uses < victimUses) {
+        victim = slot;
+        victimUses = uses;
+      }
+      m_uses[slot] = (byte) (uses >> 1);
+    }
+    store(victim, word, hash);
+    m_replaced++;
+    return victim;
+  }
+
+  private void store(int slot, CharSequence word, int hash) {
+    copy(slot, word);
+    m_hashes[slot] = hash;
+    m_uses[slot] = 0;
+    final int base = slot * SUCCESSORS;
+    for (int j = base; j < base + SUCCESSORS; j++) {
+      m_next[j] = NONE;
+    }
+  }
+
+  private void copy(int slot, CharSequence word) {
+    final int length = word.length();
+    final int offset = slot * MAX_WORD_LENGTH;
+    for (int i = 0; i < length; i++) {
+      m_chars[offset + i] = word.charAt(i);
+    }
+    m_lengths[slot] = (byte) length;
+  }
+
+  private boolean same(int slot, CharSequence word) {
+    final int length = word.length();
+    if (m_lengths[slot] != length) return false;
+    final int offset = slot * MAX_WORD_LENGTH;
+    for (int i = 0; i < length; i++) {
+      if (ExpandableDictionary.toLowerCase(m_chars[offset + i])
+          != ExpandableDictionary.toLowerCase(word.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static int hash(CharSequence word) {
+    // FNV-1a over the folded characters
+    int hash = 0x811C9DC5;
+    final int length = word.length();
+    for (int i = 0; i < length; i++) {
+      hash ^= ExpandableDictionary.toLowerCase(word.charAt(i));
+      hash *= 0x01000193;
+    }
+    return hash == 0 ? 1 : hash;
+  }
+
+  public void dump(Printer p, String prefix) {
+    int words = 0;
+    int pairs = 0;
+    for (int slot = 0; slot < WORD_CAPACITY; slot++) {
+      if (m_hashes[slot] != 0) words++;
+    }
+    for (int j = 0; j < m_next.length; j++) {
+      if (isValid(j)) pairs++;
+    }
+    final long bytes = m_chars.length * 2L + m_lengths.length + m_hashes.length * 4L
+        + m_uses.length + m_next.length * 2L + m_nextHashes.length * 4L + m_nextCounts.length;
+    p.println(prefix + "words=" + words + "/" + WORD_CAPACITY + " pairs=" + pairs
+        + " learned=" + m_learned + " replaced=" + m_replaced + " tables=" + bytes + "B");
+  }
+}
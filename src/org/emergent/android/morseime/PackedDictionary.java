@@ -0,0 +1,960 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.content.Context;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An in-memory dictionary with the same contract as {@link ExpandableDictionary}, storing its
+ * trie in parallel primitive arrays instead of a Node object and NodeArray per character.
+ * <p/>
+ * Each trie node is an index into the arrays: its character, frequency, maximum frequency below
+ * it and a terminal bit. The children of a node sit next to each other in the arrays, sorted by
+ * their code as in ExpandableDictionary, so a node only keeps the index of its first child and
+ * how many there are. That's about 10 bytes per node, where a Node and its slot in its
+ * parent's NodeArray take 28 and more.
+ * <p/>
+ * A published trie is never changed, as in ExpandableDictionary. Writers copy the children
+ * blocks along a word's path to the free end of the arrays and publish a new root, and searches
+ * carry on with the trie they started with. Once the blocks left behind outweigh a quarter of the
+ * arrays, the trie is compacted into new ones.
+ * <p/>
+ * The search is ExpandableDictionary's, node for node: the same frontier, edits, weights and
+ * pruning, so both engines make the same suggestions, in the same order, from the same words.
+ * <p/>
+ * Subclasses load words with {@link #loadWords(NodeArray)} and
+ * {@link #addWord(NodeArray, String, int)} as they would into an ExpandableDictionary, so
+ * switching engines is a matter of changing the superclass.
+ *
+ * @author Patrick Woodworth
+ */
+public class PackedDictionary extends Dictionary {
+
+  public static final int MAX_WORD_LENGTH = ExpandableDictionary.MAX_WORD_LENGTH;
+
+  private static final char QUOTE = ExpandableDictionary.QUOTE;
+  private static final int MAX_EDITS = ExpandableDictionary.MAX_EDITS;
+  private static final int EDIT_SPACING = ExpandableDictionary.EDIT_SPACING;
+  private static final int EDITS_PER_LENGTH = ExpandableDictionary.EDITS_PER_LENGTH;
+  private static final int TYPED_WEIGHT = ExpandableDictionary.TYPED_WEIGHT;
+  private static final int PROXIMITY_WEIGHT = ExpandableDictionary.PROXIMITY_WEIGHT;
+  private static final int SUBSTITUTION_PENALTY = ExpandableDictionary.SUBSTITUTION_PENALTY;
+  private static final int INSERTION_PENALTY = ExpandableDictionary.INSERTION_PENALTY;
+  private static final int DELETION_PENALTY = ExpandableDictionary.DELETION_PENALTY;
+  private static final int TRANSPOSITION_PENALTY = ExpandableDictionary.TRANSPOSITION_PENALTY;
+
+  // The first child of a node without children
+  private static final int NONE = 0;
+  private static final int LINEAR_SEARCH_LENGTH = 4;
+
+  /**
+   * A published trie: the arrays and the node in them that's the root. Nodes from size on are
+   * free, so writers can add to the same arrays without disturbing searches of this trie.
+   */
+  static class Trie {
+    final char[] codes;
+    final int[] firstChild;
+    final char[] childCount;
+    final byte[] frequencies;
+    final byte[] maxFrequencies;
+    final int[] terminals;
+    final int root;
+    final int size;
+
+    Trie(char[] codes, int[] firstChild, char[] childCount, byte[] frequencies,
+         byte[] maxFrequencies, int[] terminals, int root, int size) {
+      this.codes = codes;
+      this.firstChild = firstChild;
+      this.childCount = childCount;
+      this.frequencies = frequencies;
+      this.maxFrequencies = maxFrequencies;
+      this.terminals = terminals;
+      this.root = root;
+      this.size = size;
+    }
+
+    boolean isTerminal(int node) {
+      return (terminals[node >>> 5] & (1 << node)) != 0;
+    }
+  }
+
+  /**
+   * A trie being loaded, filled in by {@link PackedDictionary#addWord(NodeArray, String, int)}.
+   * The words are only collected, and laid out in the arrays when the trie is published. Named
+   * after ExpandableDictionary.NodeArray so that loading code works with either engine.
+   */
+  static class NodeArray {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private String[] m_words = new String[INITIAL_CAPACITY];
+    private int[] m_wordFrequencies = new int[INITIAL_CAPACITY];
+    private int m_length;
+
+    // The trie being laid out by layout()
+    private char[] m_codes;
+    private int[] m_firstChild;
+    private char[] m_childCount;
+    private byte[] m_frequencies;
+    private byte[] m_maxFrequencies;
+    private int[] m_terminals;
+    private int m_size;
+
+    void add(String word, int frequency) {
+      if (m_length == m_words.length) {
+        m_words = copyOf(m_words, m_length * 2);
+        m_wordFrequencies = copyOf(m_wordFrequencies, m_length * 2);
+      }
+      m_words[m_length] = word;
+      m_wordFrequencies[m_length] = frequency;
+      m_length++;
+    }
+
+    /**
+     * Lays out the words collected so far. Each node's children are given a block of their own
+     * as the node is reached, parents before children, so the arrays take exactly the nodes of
+     * the trie. A word added more than once keeps its highest frequency.
+     */
+    Trie layout() {
+      final int[] order = new int[m_length];
+      for (int i = 0; i < m_length; i++) {
+        order[i] = i;
+      }
+      sort(order, new int[m_length], 0, m_length);
+      // Sorted, each word adds the nodes past the prefix it shares with the one before
+      int nodes = 1;
+      for (int i = 0; i < m_length; i++) {
+        final String word = m_words[order[i]];
+        nodes += word.length() - (i > 0 ? commonPrefix(word, m_words[order[i - 1]]) : 0);
+      }
+      m_codes = new char[nodes];
+      m_firstChild = new int[nodes];
+      m_childCount = new char[nodes];
+      m_frequencies = new byte[nodes];
+      m_maxFrequencies = new byte[nodes];
+      m_terminals = new int[(nodes + 31) >>> 5];
+      m_size = 1;
+      if (m_length > 0) {
+        m_maxFrequencies[0] = (byte) layoutRec(0, order, 0, m_length, 0);
+      }
+      return new Trie(m_codes, m_firstChild, m_childCount, m_frequencies, m_maxFrequencies,
+          m_terminals, 0, m_size);
+    }
+
+    /**
+     * Lays out the children of a node, given the sorted range of words below it.
+     *
+     * @return the highest frequency below the node
+     */
+    private int layoutRec(int node, int[] order, int start, int end, int depth) {
+      int count = 0;
+      for (int i = start; i < end; i++) {
+        if (i == start || m_words[order[i]].charAt(depth) != m_words[order[i - 1]].charAt(depth)) {
+          count++;
+        }
+      }
+      final int first = m_size;
+      m_size += count;
+      m_firstChild[node] = first;
+      m_childCount[node] = (char) count;
+      int max = 0;
+      int child = first;
+      for (int i = start; i < end; child++) {
+        final char c = m_words[order[i]].charAt(depth);
+        int groupEnd = i + 1;
+        while (groupEnd < end && m_words[order[groupEnd]].charAt(depth) == c) {
+          groupEnd++;
+        }
+        m_codes[child] = c;
+        // A word ending here sorts before the longer ones sharing its characters
+        int frequency = -1;
+        while (i < groupEnd && m_words[order[i]].length() == depth + 1) {
+          frequency = Math.max(frequency, clamp(m_wordFrequencies[order[i]]));
+          i++;
+        }
+        int childMax = 0;
+        if (frequency >= 0) {
+          m_terminals[child >>> 5] |= 1 << child;
+          m_frequencies[child] = (byte) frequency;
+          childMax = frequency;
+        }
+        if (i < groupEnd) {
+          childMax = Math.max(childMax, layoutRec(child, order, i, groupEnd, depth + 1));
+        }
+        m_maxFrequencies[child] = (byte) childMax;
+        max = Math.max(max, childMax);
+        i = groupEnd;
+      }
+      return max;
+    }
+
+    /**
+     * Merge sorts the given range of word indices by the words' codes, character by character,
+     * with a prefix before the words it starts.
+     */
+    private void sort(int[] order, int[] temp, int start, int end) {
+      if (end - start < 2) return;
+      final int mid = (start + end) >>> 1;
+      sort(order, temp, start, mid);
+      sort(order, temp, mid, end);
+      if (m_words[order[mid - 1]].compareTo(m_words[order[mid]]) <= 0) return;
+      System.arraycopy(order, start, temp, start, end - start);
+      int left = start;
+      int right = mid;
+      for (int i = start; i < end; i++) {
+        if (right == end || left < mid && m_words[temp[left]].compareTo(m_words[temp[right]]) <= 0) {
+          order[i] = temp[left++];
+        } else {
+          order[i] = temp[right++];
+        }
+      }
+    }
+
+    private static int commonPrefix(String a, String b) {
+      final int length = Math.min(a.length(), b.length());
+      int i = 0;
+      while (i < length && a.charAt(i) == b.charAt(i)) {
+        i++;
+      }
+      return i;
+    }
+  }
+
+  /**
+   * A position in the trie reached by matching a prefix of the input.
+   *
+   * @see ExpandableDictionary.Prefix
+   */
+  private static class Prefix {
+    Prefix parent;
+    int node;
+    int depth;
+    int snr;
+    int penalty;
+    int edits;
+    int editFrom;
+  }
+
+  /**
+   * The prefixes matching one more input character than the level before.
+   *
+   * @see ExpandableDictionary.Level
+   */
+  private static class Level {
+    final ArrayList<Prefix> prefixes = new ArrayList<Prefix>();
+    final ArrayList<Prefix> passed = new ArrayList<Prefix>();
+    int[] codes;
+  }
+
+  private final Context m_context;
+  private final char[] m_wordBuilder = new char[MAX_WORD_LENGTH];
+  private int m_maxDepth;
+  private int m_inputLength;
+  private int m_nodesVisited;
+  private CharSequence m_typedWord;
+
+  // The published trie, read once by each search
+  private volatile Trie m_trie;
+
+  // The arrays writers add to, which may have outgrown the published trie's, and how much of
+  // them is taken and how much of that no longer published. Guarded by this.
+  private char[] m_codes;
+  private int[] m_firstChild;
+  private char[] m_childCount;
+  private byte[] m_frequencies;
+  private byte[] m_maxFrequencies;
+  private int[] m_terminals;
+  private int m_size;
+  private int m_garbage;
+
+  // The trie the current search runs over
+  private Trie m_search;
+
+  // m_frontier.get(i) holds the prefixes matching the first i input characters of m_frontierTrie
+  private final ArrayList<Level> m_frontier = new ArrayList<Level>();
+  private Trie m_frontierTrie;
+
+  private final AtomicBoolean m_reloading = new AtomicBoolean();
+  private volatile boolean m_reloadRequested;
+
+  private final ArrayList<Level> m_freeLevels = new ArrayList<Level>();
+  private final ArrayList<Prefix> m_freePrefixes = new ArrayList<Prefix>();
+
+  PackedDictionary(Context context) {
+    m_context = context;
+    clearDictionary();
+  }
+
+  Context getContext() {
+    return m_context;
+  }
+
+  int getMaxWordLength() {
+    return MAX_WORD_LENGTH;
+  }
+
+  /**
+   * Adds a word to the published trie, copying the children blocks along its path.
+   *
+   * @see ExpandableDictionary#addWord(String, int)
+   */
+  public synchronized void addWord(String word, int frequency) {
+    if (word.length() == 0) return;
+    reserve(word);
+    final int root = copyRoot();
+    addWordRec(root, word, 0, frequency);
+    publish(root);
+  }
+
+  /**
+   * Adds a word to a trie that hasn't been published yet.
+   *
+   * @see #publish(NodeArray)
+   */
+  void addWord(NodeArray roots, String word, int frequency) {
+    if (word.length() > 0) roots.add(word, frequency);
+  }
+
+  /**
+   * Lays out a trie filled in by {@link #addWord(NodeArray, String, int)} and makes it the one
+   * searches use. The layout happens before taking the lock, so writers aren't held up by it.
+   */
+  void publish(NodeArray roots) {
+    final Trie trie = roots.layout();
+    synchronized (this) {
+      m_codes = trie.codes;
+      m_firstChild = trie.firstChild;
+      m_childCount = trie.childCount;
+      m_frequencies = trie.frequencies;
+      m_maxFrequencies = trie.maxFrequencies;
+      m_terminals = trie.terminals;
+      m_size = trie.size;
+      m_garbage = 0;
+      m_trie = trie;
+    }
+  }
+
+  private void publish(int root) {
+    m_trie = new Trie(m_codes, m_firstChild, m_childCount, m_frequencies, m_maxFrequencies,
+        m_terminals, root, m_size);
+  }
+
+  /**
+   * @see ExpandableDictionary#reloadAsync()
+   */
+  protected void reloadAsync() {
+    m_reloadRequested = true;
+    if (!m_reloading.compareAndSet(false, true)) return;
+    new Thread(getClass().getSimpleName() + "Loader") {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        do {
+          try {
+            while (m_reloadRequested) {
+              m_reloadRequested = false;
+              reload();
+            }
+          } finally {
+            m_reloading.set(false);
+          }
+        } while (m_reloadRequested && m_reloading.compareAndSet(false, true));
+      }
+    }.start();
+  }
+
+  /**
+   * @see ExpandableDictionary#reload()
+   */
+  protected void reload() {
+    final NodeArray roots = new NodeArray();
+    loadWords(roots);
+    publish(roots);
+  }
+
+  /**
+   * @see ExpandableDictionary#loadWords(ExpandableDictionary.NodeArray)
+   */
+  protected void loadWords(NodeArray roots) {
+  }
+
+  /**
+   * Sets the frequency of a word in the published trie, or removes the word if the frequency
+   * is negative.
+   *
+   * @see ExpandableDictionary#setWordFrequency(String, int)
+   */
+  synchronized void setWordFrequency(String word, int frequency) {
+    if (getWordFrequency(word) < 0) {
+      if (frequency >= 0) addWord(word, frequency);
+      return;
+    }
+    reserve(word);
+    final int root = copyRoot();
+    setWordFrequencyRec(root, word, 0, Math.min(frequency, 255));
+    publish(root);
+  }
+
+  /**
+   * Changes the frequency of a word known to be below the given copied node, copying the
+   * children blocks on the way down. Fixes up the maximum frequencies on the way back and drops
+   * nodes that no longer lead to a word.
+   */
+  private void setWordFrequencyRec(int node, String word, int depth, int frequency) {
+    final int index = indexOf(m_codes, m_firstChild[node], m_childCount[node], word.charAt(depth))
+        - m_firstChild[node];
+    copyChildren(node, -1);
+    final int child = m_firstChild[node] + index;
+    if (word.length() == depth + 1) {
+      setTerminal(child, frequency >= 0);
+      m_frequencies[child] = (byte) Math.max(frequency, 0);
+    } else {
+      setWordFrequencyRec(child, word, depth + 1, frequency);
+    }
+    int max = isTerminal(child) ? m_frequencies[child] & 0xFF : 0;
+    final int first = m_firstChild[child];
+    final int count = m_childCount[child];
+    for (int i = first; i < first + count; i++) {
+      max = Math.max(max, m_maxFrequencies[i] & 0xFF);
+    }
+    m_maxFrequencies[child] = (byte) max;
+    if (!isTerminal(child) && count == 0) {
+      // The block is a fresh copy, so the child can go in place
+      final int last = m_firstChild[node] + m_childCount[node] - 1;
+      for (int i = child; i < last; i++) {
+        copyNode(i + 1, i);
+      }
+      m_childCount[node]--;
+      if (m_childCount[node] == 0) m_firstChild[node] = NONE;
+      m_garbage++;
+    }
+  }
+
+  /**
+   * Adds a word below the given copied node, copying the children blocks on the way down.
+   */
+  private void addWordRec(int node, String word, int depth, int frequency) {
+    final char c = word.charAt(depth);
+    final int first = m_firstChild[node];
+    final int count = m_childCount[node];
+    final int index = indexOf(m_codes, first, count, c);
+    final int child;
+    if (index < 0) {
+      final int at = search(m_codes, first, count, c) - first;
+      copyChildren(node, at);
+      child = m_firstChild[node] + at;
+      m_codes[child] = c;
+      m_firstChild[child] = NONE;
+      m_childCount[child] = 0;
+      m_frequencies[child] = 0;
+      m_maxFrequencies[child] = 0;
+      setTerminal(child, false);
+    } else {
+      copyChildren(node, -1);
+      child = m_firstChild[node] + index - first;
+    }
+    final int max = Math.max(m_maxFrequencies[child] & 0xFF, Math.min(frequency, 255));
+    m_maxFrequencies[child] = (byte) max;
+    if (word.length() == depth + 1) {
+      setTerminal(child, true);
+      final int frequencyNow = Math.max(m_frequencies[child] & 0xFF, Math.min(frequency, 255));
+      m_frequencies[child] = (byte) frequencyNow;
+      return;
+    }
+    addWordRec(child, word, depth + 1, frequency);
+  }
+
+  /**
+   * Makes room in the arrays for changing a word, at most one copied block per character plus
+   * one new node for each, and the root. Compacts the trie first if that's worth it, otherwise
+   * grows the arrays.
+   */
+  private void reserve(String word) {
+    final Trie trie = m_trie;
+    int needed = 1 + word.length();
+    int node = trie.root;
+    for (int i = 0; i < word.length() && node >= 0; i++) {
+      final int count = m_childCount[node];
+      needed += count;
+      node = indexOf(m_codes, m_firstChild[node], count, word.charAt(i));
+    }
+    if (m_size + needed <= m_codes.length) return;
+    if (m_garbage > m_size / 4) {
+      compact(trie, needed);
+    } else {
+      resize(m_size, m_size + Math.max(needed, m_size / 4));
+    }
+  }
+
+  private void resize(int size, int capacity) {
+    m_codes = copyOf(m_codes, capacity);
+    m_firstChild = copyOf(m_firstChild, capacity);
+    m_childCount = copyOf(m_childCount, capacity);
+    m_frequencies = copyOf(m_frequencies, capacity);
+    m_maxFrequencies = copyOf(m_maxFrequencies, capacity);
+    m_terminals = copyOf(m_terminals, (capacity + 31) >>> 5);
+    m_size = size;
+  }
+
+  /**
+   * Copies the nodes of the published trie into new arrays, leaving the blocks no longer
+   * published behind, and publishes the copy.
+   */
+  private void compact(Trie trie, int needed) {
+    final int live = m_size - m_garbage;
+    final int capacity = live + Math.max(needed, live / 4);
+    m_codes = new char[capacity];
+    m_firstChild = new int[capacity];
+    m_childCount = new char[capacity];
+    m_frequencies = new byte[capacity];
+    m_maxFrequencies = new byte[capacity];
+    m_terminals = new int[(capacity + 31) >>> 5];
+    m_size = 1;
+    m_garbage = 0;
+    copyNode(trie, trie.root, 0);
+    compactRec(trie, trie.root, 0);
+    publish(0);
+  }
+
+  private void compactRec(Trie trie, int from, int to) {
+    final int count = trie.childCount[from];
+    if (count == 0) {
+      m_firstChild[to] = NONE;
+      return;
+    }
+    final int first = trie.firstChild[from];
+    final int copy = m_size;
+    m_size += count;
+    m_firstChild[to] = copy;
+    for (int i = 0; i < count; i++) {
+      copyNode(trie, first + i, copy + i);
+    }
+    for (int i = 0; i < count; i++) {
+      compactRec(trie, first + i, copy + i);
+    }
+  }
+
+  private int copyRoot() {
+    final int root = m_size++;
+    copyNode(m_trie.root, root);
+    m_garbage++;
+    return root;
+  }
+
+  /**
+   * Copies the children of a copied node to the free end of the arrays and points the node at
+   * the copy, leaving a gap for a new child at the given index unless it's negative.
+   */
+  private void copyChildren(int node, int insertAt) {
+    final int first = m_firstChild[node];
+    final int count = m_childCount[node];
+    final int copy = m_size;
+    int to = copy;
+    for (int i = 0; i < count; i++) {
+      if (i == insertAt) to++;
+      copyNode(first + i, to++);
+    }
+    m_size = copy + count + (insertAt >= 0 ? 1 : 0);
+    m_garbage += count;
+    m_firstChild[node] = copy;
+    m_childCount[node] = (char) (m_size - copy);
+  }
+
+  private void copyNode(int from, int to) {
+    m_codes[to] = m_codes[from];
+    m_firstChild[to] = m_firstChild[from];
+    m_childCount[to] = m_childCount[from];
+    m_frequencies[to] = m_frequencies[from];
+    m_maxFrequencies[to] = m_maxFrequencies[from];
+    setTerminal(to, isTerminal(from));
+  }
+
+  private void copyNode(Trie trie, int from, int to) {
+    m_codes[to] = trie.codes[from];
+    m_childCount[to] = trie.childCount[from];
+    m_frequencies[to] = trie.frequencies[from];
+    m_maxFrequencies[to] = trie.maxFrequencies[from];
+    setTerminal(to, trie.isTerminal(from));
+  }
+
+  private boolean isTerminal(int node) {
+    return (m_terminals[node >>> 5] & (1 << node)) != 0;
+  }
+
+  private void setTerminal(int node, boolean terminal) {
+    if (terminal) {
+      m_terminals[node >>> 5] |= 1 << node;
+    } else {
+      m_terminals[node >>> 5] &= ~(1 << node);
+    }
+  }
+
+  /**
+   * @see ExpandableDictionary#getWords(WordComposer, WordCallback)
+   */
+  @Override
+  public void getWords(final WordComposer codes, final WordCallback callback) {
+    m_inputLength = codes.size();
+    m_maxDepth = m_inputLength * 3;
+    m_nodesVisited = 0;
+    m_typedWord = codes.getTypedWord();
+    final Trie trie = m_trie;
+    m_search = trie;
+    updateFrontier(codes);
+
+    final char[] word = m_wordBuilder;
+    final ArrayList<Prefix> frontier = m_frontier.get(m_inputLength).prefixes;
+    final int count = frontier.size();
+    final int maxEdits = Math.min(MAX_EDITS, (m_inputLength + 1) / EDITS_PER_LENGTH);
+    for (int edits = 0; edits <= maxEdits; edits++) {
+      for (int i = 0; i < count; i++) {
+        final Prefix prefix = frontier.get(i);
+        final int node = prefix.node;
+        if (prefix.edits != edits || node == trie.root) continue;
+        final int depth = prefix.depth;
+        if (depth > m_maxDepth + 1) continue;
+        for (Prefix p = prefix; p.node != trie.root; p = p.parent) {
+          word[p.depth - 1] = trie.codes[p.node];
+        }
+        if (trie.isTerminal(node)) {
+          if (INCLUDE_TYPED_WORD_IF_VALID || !same(word, depth, m_typedWord)) {
+            int finalFreq = (trie.frequencies[node] & 0xFF) * prefix.snr / prefix.penalty;
+            if (edits == 0) finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
+            if (finalFreq > 0) callback.addWord(word, 0, depth, finalFreq);
+          }
+        }
+        if (trie.childCount[node] > 0) {
+          getWordsRec(trie, node, word, depth, prefix.snr, prefix.penalty, callback);
+        }
+      }
+    }
+  }
+
+  /**
+   * @see ExpandableDictionary#updateFrontier(WordComposer)
+   */
+  private void updateFrontier(WordComposer codes) {
+    if (m_frontierTrie != m_search || m_frontier.isEmpty()) {
+      while (!m_frontier.isEmpty()) {
+        recycleLevel(m_frontier.remove(m_frontier.size() - 1));
+      }
+      final Level roots = obtainLevel();
+      roots.prefixes.add(obtainPrefix(null, m_search.root, 0, 1, 1, 0, 0));
+      m_frontier.add(roots);
+      m_frontierTrie = m_search;
+    }
+    int valid = 0;
+    final int max = Math.min(m_inputLength, m_frontier.size() - 1);
+    while (valid < max && Arrays.equals(m_frontier.get(valid + 1).codes, codes.getCodesAt(valid))) {
+      valid++;
+    }
+    while (m_frontier.size() > valid + 1) {
+      recycleLevel(m_frontier.remove(m_frontier.size() - 1));
+    }
+    for (int i = valid; i < m_inputLength; i++) {
+      final int[] currentChars = codes.getCodesAt(i);
+      final ArrayList<Prefix> from = m_frontier.get(i).prefixes;
+      final Level to = obtainLevel();
+      final int count = from.size();
+      for (int j = 0; j < count; j++) {
+        final Prefix prefix = from.get(j);
+        advance(prefix, prefix.node, currentChars, i, to);
+        if (canEdit(prefix, i)) {
+          to.prefixes.add(obtainPrefix(prefix, prefix.node, prefix.depth, prefix.snr,
+              prefix.penalty * INSERTION_PENALTY, prefix.edits + 1, i + 1 + EDIT_SPACING));
+        }
+      }
+      if (i > 0) {
+        transpose(m_frontier.get(i - 1).prefixes, m_frontier.get(i).codes[0], currentChars[0],
+            i - 1, to);
+      }
+      if (to.codes == null || to.codes.length != currentChars.length) {
+        to.codes = new int[currentChars.length];
+      }
+      System.arraycopy(currentChars, 0, to.codes, 0, currentChars.length);
+      m_frontier.add(to);
+    }
+  }
+
+  private Level obtainLevel() {
+    final int size = m_freeLevels.size();
+    return size > 0 ? m_freeLevels.remove(size - 1) : new Level();
+  }
+
+  private void recycleLevel(Level level) {
+    for (int i = level.prefixes.size() - 1; i >= 0; i--) {
+      m_freePrefixes.add(level.prefixes.get(i));
+    }
+    for (int i = level.passed.size() - 1; i >= 0; i--) {
+      m_freePrefixes.add(level.passed.get(i));
+    }
+    level.prefixes.clear();
+    level.passed.clear();
+    m_freeLevels.add(level);
+  }
+
+  private Prefix obtainPrefix(Prefix parent, int node, int depth, int snr, int penalty,
+                              int edits, int editFrom) {
+    final int size = m_freePrefixes.size();
+    final Prefix prefix = size > 0 ? m_freePrefixes.remove(size - 1) : new Prefix();
+    prefix.parent = parent;
+    prefix.node = node;
+    prefix.depth = depth;
+    prefix.snr = snr;
+    prefix.penalty = penalty;
+    prefix.edits = edits;
+    prefix.editFrom = editFrom;
+    return prefix;
+  }
+
+  private static boolean canEdit(Prefix prefix, int inputIndex) {
+    return prefix.edits < MAX_EDITS && inputIndex >= prefix.editFrom;
+  }
+
+  /**
+   * Matches one input character against the children of a node.
+   *
+   * @see ExpandableDictionary#advance
+   */
+  private void advance(Prefix from, int parent, int[] currentChars, int inputIndex, Level to) {
+    final Trie trie = m_search;
+    final int first = trie.firstChild[parent];
+    final int end = first + trie.childCount[parent];
+    final int depth = from.depth;
+    final boolean canEdit = inputIndex > 0 && canEdit(from, inputIndex);
+    for (int node = first; node < end; node++) {
+      m_nodesVisited++;
+      final char c = trie.codes[node];
+      if (c == QUOTE && currentChars[0] != QUOTE) {
+        final Prefix skipped = obtainPrefix(from, node, depth + 1, from.snr, from.penalty,
+            from.edits, from.editFrom);
+        to.passed.add(skipped);
+        advance(skipped, node, currentChars, inputIndex, to);
+        continue;
+      }
+      if (canEdit) {
+        final Prefix missing = obtainPrefix(from, node, depth + 1, from.snr,
+            from.penalty * DELETION_PENALTY, from.edits + 1, inputIndex + 1 + EDIT_SPACING);
+        to.passed.add(missing);
+        advance(missing, node, currentChars, inputIndex, to);
+      }
+      final char lowerC = ExpandableDictionary.toLowerCase(c);
+      boolean matched = false;
+      final int alternativesSize = from.edits == 0 ? currentChars.length : 1;
+      for (int j = 0; j < alternativesSize; j++) {
+        final int currentChar = currentChars[j];
+        if (currentChar == -1) {
+          break;
+        }
+        if (currentChar == lowerC || currentChar == c) {
+          final int weight = j > 0 ? PROXIMITY_WEIGHT : TYPED_WEIGHT;
+          to.prefixes.add(obtainPrefix(from, node, depth + 1, from.snr * weight, from.penalty,
+              from.edits, from.editFrom));
+          matched = true;
+        }
+      }
+      if (!matched && canEdit) {
+        to.prefixes.add(obtainPrefix(from, node, depth + 1, from.snr,
+            from.penalty * SUBSTITUTION_PENALTY, from.edits + 1, inputIndex + 1 + EDIT_SPACING));
+      }
+    }
+  }
+
+  /**
+   * @see ExpandableDictionary#transpose
+   */
+  private void transpose(ArrayList<Prefix> from, int first, int second, int inputIndex,
+                         Level to) {
+    if (first == second) return;
+    final int count = from.size();
+    for (int i = 0; i < count; i++) {
+      final Prefix prefix = from.get(i);
+      if (!canEdit(prefix, inputIndex)) continue;
+      final int secondNode = find(prefix.node, second);
+      if (secondNode < 0) continue;
+      final int firstNode = find(secondNode, first);
+      if (firstNode < 0) continue;
+      final Prefix swapped = obtainPrefix(prefix, secondNode, prefix.depth + 1, prefix.snr,
+          prefix.penalty, prefix.edits, prefix.editFrom);
+      to.passed.add(swapped);
+      to.prefixes.add(obtainPrefix(swapped, firstNode, prefix.depth + 2,
+          prefix.snr * TYPED_WEIGHT * TYPED_WEIGHT, prefix.penalty * TRANSPOSITION_PENALTY,
+          prefix.edits + 1, inputIndex + 2 + EDIT_SPACING));
+    }
+  }
+
+  /**
+   * Returns the child of a node matching a typed key, in either case, or -1.
+   */
+  private int find(int parent, int key) {
+    final Trie trie = m_search;
+    final int first = trie.firstChild[parent];
+    final int end = first + trie.childCount[parent];
+    for (int node = first; node < end; node++) {
+      m_nodesVisited++;
+      final char c = trie.codes[node];
+      if (key == c || key == ExpandableDictionary.toLowerCase(c)) return node;
+    }
+    return -1;
+  }
+
+  /**
+   * Collects the completions below a node.
+   *
+   * @see ExpandableDictionary#getWordsRec
+   */
+  private void getWordsRec(Trie trie, int parent, char[] word, int depth, int snr, int penalty,
+                           WordCallback callback) {
+    if (depth > m_maxDepth) {
+      return;
+    }
+    final int first = trie.firstChild[parent];
+    final int end = first + trie.childCount[parent];
+    long limit = ((long) callback.getThreshold() + 1) * penalty;
+    for (int node = first; node < end; node++) {
+      m_nodesVisited++;
+      if ((long) (trie.maxFrequencies[node] & 0xFF) * snr < limit) {
+        continue;
+      }
+      word[depth] = trie.codes[node];
+      if (trie.isTerminal(node) && (penalty == 1 || !same(word, depth + 1, m_typedWord))) {
+        final int frequency = (trie.frequencies[node] & 0xFF) * snr / penalty;
+        if (!callback.addWord(word, 0, depth + 1, frequency)) {
+          return;
+        }
+        limit = ((long) callback.getThreshold() + 1) * penalty;
+      }
+      if (trie.childCount[node] > 0) {
+        getWordsRec(trie, node, word, depth + 1, snr, penalty, callback);
+        limit = ((long) callback.getThreshold() + 1) * penalty;
+      }
+    }
+  }
+
+  @Override
+  public boolean isValidWord(CharSequence word) {
+    return getWordFrequency(word) > -1;
+  }
+
+  /**
+   * Returns the number of trie nodes examined by the last call to getWords
+   */
+  @Override
+  public int getNodesVisited() {
+    return m_nodesVisited;
+  }
+
+  /**
+   * Returns the heap taken by the arrays, including the free room and the blocks no longer
+   * published, with the sizes of a 32-bit VM as in {@link ExpandableDictionary#getHeapBytes()}.
+   */
+  public long getHeapBytes() {
+    final Trie trie = m_trie;
+    return 40 + arrayBytes(trie.codes.length, 2) + arrayBytes(trie.firstChild.length, 4)
+        + arrayBytes(trie.childCount.length, 2) + arrayBytes(trie.frequencies.length, 1)
+        + arrayBytes(trie.maxFrequencies.length, 1) + arrayBytes(trie.terminals.length, 4);
+  }
+
+  private static long arrayBytes(int length, int width) {
+    return (12 + (long) length * width + 7) & ~7;
+  }
+
+  /**
+   * Returns the word's frequency or -1 if not found
+   */
+  public int getWordFrequency(CharSequence word) {
+    final Trie trie = m_trie;
+    final int length = word.length();
+    if (length == 0) return -1;
+    int node = trie.root;
+    for (int i = 0; i < length; i++) {
+      node = indexOf(trie.codes, trie.firstChild[node], trie.childCount[node], word.charAt(i));
+      if (node < 0) return -1;
+    }
+    return trie.isTerminal(node) ? trie.frequencies[node] & 0xFF : -1;
+  }
+
+  protected void clearDictionary() {
+    publish(new NodeArray());
+  }
+
+  /**
+   * Returns the node with exactly the given code in a children block, or -1 if there isn't one.
+   */
+  private static int indexOf(char[] codes, int first, int count, char code) {
+    final int end = first + count;
+    if (count <= LINEAR_SEARCH_LENGTH) {
+      for (int i = first; i < end; i++) {
+        if (codes[i] == code) return i;
+      }
+      return -1;
+    }
+    final int i = search(codes, first, count, code);
+    return i < end && codes[i] == code ? i : -1;
+  }
+
+  /**
+   * Returns the first node in a children block whose code isn't below the given one.
+   */
+  private static int search(char[] codes, int first, int count, char code) {
+    int low = first;
+    int high = first + count;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (codes[mid] < code) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private static int clamp(int frequency) {
+    return Math.max(0, Math.min(frequency, 255));
+  }
+
+  private static char[] copyOf(char[] array, int length) {
+    final char[] copy = new char[length];
+    System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+    return copy;
+  }
+
+  private static int[] copyOf(int[] array, int length) {
+    final int[] copy = new int[length];
+    System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+    return copy;
+  }
+
+  private static byte[] copyOf(byte[] array, int length) {
+    final byte[] copy = new byte[length];
+    System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+    return copy;
+  }
+
+  private static String[] copyOf(String[] array, int length) {
+    final String[] copy = new String[length];
+    System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+    return copy;
+  }
+}
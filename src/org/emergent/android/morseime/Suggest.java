@@ -22,7 +22,6 @@ import android.text.TextUtils;
 import android.view.View;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -37,6 +36,12 @@ public class Suggest implements Dictionary.WordCallback {
   public static final int CORRECTION_BASIC = 1;
   public static final int CORRECTION_FULL = 2;
 
+  // Longest word the collector keeps, as long as the longest any dictionary returns
+  private static final int MAX_WORD_LENGTH = BinaryDictionary.MAX_WORD_LENGTH;
+
+  // At most this many AutoText corrections are inserted per query
+  private static final int MAX_AUTO_TEXT = 6;
+
   private Dictionary mMainDict;
 
   private Dictionary mUserDictionary;
@@ -47,25 +52,66 @@ public class Suggest implements Dictionary.WordCallback {
 
   private int mPrefMaxSuggestions = 12;
 
-  private int[] mPriorities = new int[mPrefMaxSuggestions];
+  // The collector: a bounded min-heap of slots, worst candidate at the root, with each slot's
+  // word kept in its own stretch of mSlab. Nothing is allocated while collecting.
+  private char[] mSlab;
+  private int[] mLengths;
+  private int[] mHashes;
+  private int[] mPriorities;
+  private int[] mSequence;
+  private boolean[] mPinned;
+  private int[] mHeap;
+  private int[] mHeapIndex;
+  private int[] mOrder;
+  private int mCount;
+  private int mNextSequence;
+  private StringBuilder[] mWordBuilders;
+
   private ArrayList<CharSequence> mSuggestions = new ArrayList<CharSequence>();
+  private int[] mSuggestionHashes;
   private boolean mIncludeTypedWordIfValid;
-  private ArrayList<CharSequence> mStringPool = new ArrayList<CharSequence>();
   private Context mContext;
   private boolean mHaveCorrection;
-  private CharSequence mOriginalWord;
-  private String mLowerOriginalWord;
+  private final StringBuilder mOriginalWord = new StringBuilder(MAX_WORD_LENGTH);
+  private final StringBuilder mLowerOriginalWord = new StringBuilder(MAX_WORD_LENGTH);
+  private final StringBuilder mAutoTextKey = new StringBuilder(MAX_WORD_LENGTH);
 
   private int mCorrectionMode = CORRECTION_BASIC;
 
+  private Cancellation mCancellation;
+
+  private final SuggestStats mStats = new SuggestStats();
+  // Words offered to and turned away by addWord during the current dictionary search
+  private int mOffered;
+  private int mRejected;
+
 
   public Suggest(Context context, int dictionaryResId) {
     mContext = context;
     mMainDict = new BinaryDictionary(context, dictionaryResId);
-    for (int i = 0; i < mPrefMaxSuggestions; i++) {
-      StringBuilder sb = new StringBuilder(32);
-      mStringPool.add(sb);
+    allocateCollector();
+  }
+
+  private void allocateCollector() {
+    final int max = mPrefMaxSuggestions;
+    mSlab = new char[max * MAX_WORD_LENGTH];
+    mLengths = new int[max];
+    mHashes = new int[max];
+    mPriorities = new int[max];
+    mSequence = new int[max];
+    mPinned = new boolean[max];
+    mHeap = new int[max];
+    mHeapIndex = new int[max];
+    mOrder = new int[max];
+    mWordBuilders = new StringBuilder[max];
+    for (int i = 0; i < max; i++) {
+      mWordBuilders[i] = new StringBuilder(MAX_WORD_LENGTH);
     }
+    // Room for the typed word and the AutoText corrections as well
+    final int capacity = max + 1 + MAX_AUTO_TEXT;
+    mSuggestions = new ArrayList<CharSequence>(capacity);
+    mSuggestionHashes = new int[capacity];
+    mCount = 0;
   }
 
   public int getCorrectionMode() {
@@ -107,15 +153,10 @@ public class Suggest implements Dictionary.WordCallback {
       throw new IllegalArgumentException("maxSuggestions must be between 1 and 100");
     }
     mPrefMaxSuggestions = maxSuggestions;
-    mPriorities = new int[mPrefMaxSuggestions];
-    collectGarbage();
-    while (mStringPool.size() < mPrefMaxSuggestions) {
-      StringBuilder sb = new StringBuilder(32);
-      mStringPool.add(sb);
-    }
+    allocateCollector();
   }
 
-  private boolean haveSufficientCommonality(String original, CharSequence suggestion) {
+  private boolean haveSufficientCommonality(CharSequence original, CharSequence suggestion) {
     final int originalLength = original.length();
     final int suggestionLength = suggestion.length();
     final int minLength = Math.min(originalLength, suggestionLength);
@@ -142,6 +183,16 @@ public class Suggest implements Dictionary.WordCallback {
     }
   }
 
+  /**
+   * Lets a caller abandon a query that has been superseded before it completes.
+   */
+  public interface Cancellation {
+    /**
+     * @return true if the results of the query in progress are no longer wanted
+     */
+    boolean isCancelled();
+  }
+
   /**
    * Returns a list of words that match the list of character codes passed in.
    * This list will be overwritten the next time this function is called.
@@ -152,41 +203,63 @@ public class Suggest implements Dictionary.WordCallback {
    */
   public List<CharSequence> getSuggestions(View view, WordComposer wordComposer,
                                            boolean includeTypedWordIfValid) {
+    return getSuggestions(view, wordComposer, includeTypedWordIfValid, null);
+  }
+
+  /**
+   * Returns a list of words that match the list of character codes passed in, stopping early
+   * once the cancellation reports the query as superseded. The list of a cancelled query is
+   * incomplete and should be discarded. The list and its words are reused by the next query.
+   *
+   * @param view         a view for retrieving the context for AutoText
+   * @param wordComposer the WordComposer.
+   * @param cancellation checked between and during dictionary searches, may be null
+   * @return list of suggestions.
+   */
+  public List<CharSequence> getSuggestions(View view, WordComposer wordComposer,
+                                           boolean includeTypedWordIfValid,
+                                           Cancellation cancellation) {
+    final long queryStart = System.nanoTime();
+    mCancellation = cancellation;
     mHaveCorrection = false;
-    collectGarbage();
-    Arrays.fill(mPriorities, 0);
+    mSuggestions.clear();
+    mCount = 0;
+    mNextSequence = 0;
     mIncludeTypedWordIfValid = includeTypedWordIfValid;
 
     // Save a lowercase version of the original word
-    mOriginalWord = wordComposer.getTypedWord();
-    if (mOriginalWord != null) {
-      mOriginalWord = mOriginalWord.toString();
-      mLowerOriginalWord = mOriginalWord.toString().toLowerCase();
-    } else {
-      mLowerOriginalWord = "";
+    final CharSequence typedWord = wordComposer.getTypedWord();
+    mOriginalWord.setLength(0);
+    mLowerOriginalWord.setLength(0);
+    if (typedWord != null) {
+      mOriginalWord.append(typedWord);
+      appendLowerCase(mLowerOriginalWord, typedWord);
     }
     // Search the dictionary only if there are at least 2 characters
     if (wordComposer.size() > 1) {
       if (mUserDictionary != null || mContactsDictionary != null) {
         if (mUserDictionary != null) {
-          mUserDictionary.getWords(wordComposer, this);
+          search(SuggestStats.STAGE_USER, mUserDictionary, wordComposer);
         }
-        if (mContactsDictionary != null) {
-          mContactsDictionary.getWords(wordComposer, this);
+        if (mContactsDictionary != null && !isCancelled()) {
+          search(SuggestStats.STAGE_CONTACTS, mContactsDictionary, wordComposer);
         }
 
-        if (mSuggestions.size() > 0 && isValidWord(mOriginalWord)) {
+        if (mCount > 0 && isValidWord(mOriginalWord)) {
           mHaveCorrection = true;
         }
       }
-      mMainDict.getWords(wordComposer, this);
-      if (mCorrectionMode == CORRECTION_FULL && mSuggestions.size() > 0) {
+      if (!isCancelled()) {
+        search(SuggestStats.STAGE_MAIN, mMainDict, wordComposer);
+      }
+      if (mCorrectionMode == CORRECTION_FULL && mCount > 0) {
         mHaveCorrection = true;
       }
     }
-    if (mOriginalWord != null) {
-      mSuggestions.add(0, mOriginalWord.toString());
+    if (typedWord != null) {
+      mSuggestions.add(mOriginalWord);
     }
+    drainCollector();
 
     // Check if the first suggestion has a minimum number of characters in common
     if (mCorrectionMode == CORRECTION_FULL && mSuggestions.size() > 1) {
@@ -195,14 +268,18 @@ public class Suggest implements Dictionary.WordCallback {
       }
     }
 
+    final long autoTextStart = System.nanoTime();
+    int lookups = 0;
     int i = 0;
-    int max = 6;
+    int max = MAX_AUTO_TEXT;
     // Don't autotext the suggestions from the dictionaries
     if (mCorrectionMode == CORRECTION_BASIC) max = 1;
     while (i < mSuggestions.size() && i < max) {
-      String suggestedWord = mSuggestions.get(i).toString().toLowerCase();
+      mAutoTextKey.setLength(0);
+      appendLowerCase(mAutoTextKey, mSuggestions.get(i));
       CharSequence autoText =
-          AutoText.get(suggestedWord, 0, suggestedWord.length(), view);
+          AutoText.get(mAutoTextKey, 0, mAutoTextKey.length(), view);
+      lookups++;
       // Is there an AutoText correction?
       boolean canAdd = autoText != null;
       // Is that correction already the current prediction (or original word)?
@@ -219,34 +296,77 @@ public class Suggest implements Dictionary.WordCallback {
       i++;
     }
 
+    final long dedupeStart = System.nanoTime();
+    mStats.recordAutoText(dedupeStart - autoTextStart, lookups);
     removeDupes();
+    final long end = System.nanoTime();
+    mStats.record(SuggestStats.STAGE_DEDUPE, end - dedupeStart);
+    if (isCancelled()) {
+      mStats.recordCancelled();
+    } else {
+      mStats.record(SuggestStats.STAGE_QUERY, end - queryStart);
+    }
+    mCancellation = null;
     return mSuggestions;
   }
 
+  private void search(int stage, Dictionary dictionary, WordComposer wordComposer) {
+    mOffered = 0;
+    mRejected = 0;
+    final long start = System.nanoTime();
+    dictionary.getWords(wordComposer, this);
+    mStats.recordSearch(stage, System.nanoTime() - start, dictionary.getNodesVisited(),
+        mOffered, mRejected);
+  }
+
+  /**
+   * Returns the pipeline statistics, which callers may add their own stages to.
+   */
+  public SuggestStats getStats() {
+    return mStats;
+  }
+
+  private boolean isCancelled() {
+    return mCancellation != null && mCancellation.isCancelled();
+  }
+
+  private static void appendLowerCase(StringBuilder sb, CharSequence word) {
+    final int length = word.length();
+    for (int i = 0; i < length; i++) {
+      sb.append(Character.toLowerCase(word.charAt(i)));
+    }
+  }
+
+  private static int hash(CharSequence word) {
+    int hash = 0;
+    final int length = word.length();
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + word.charAt(i);
+    }
+    return hash;
+  }
+
+  /**
+   * Removes repeated words from the final list, keeping the first of each. Words are only
+   * compared when their hashes match.
+   */
   private void removeDupes() {
     final ArrayList<CharSequence> suggestions = mSuggestions;
-    if (suggestions.size() < 2) return;
-    int i = 1;
+    int count = 0;
     // Don't cache suggestions.size(), since we may be removing items
-    while (i < suggestions.size()) {
+    for (int i = 0; i < suggestions.size(); ) {
       final CharSequence cur = suggestions.get(i);
-      // Compare each candidate with each previous candidate
-      for (int j = 0; j < i; j++) {
-        CharSequence previous = suggestions.get(j);
-        if (TextUtils.equals(cur, previous)) {
-          removeFromSuggestions(i);
-          i--;
-          break;
-        }
+      final int hash = hash(cur);
+      boolean dupe = false;
+      for (int j = 0; j < count && !dupe; j++) {
+        dupe = mSuggestionHashes[j] == hash && TextUtils.equals(cur, suggestions.get(j));
+      }
+      if (dupe) {
+        suggestions.remove(i);
+      } else {
+        mSuggestionHashes[count++] = hash;
+        i++;
       }
-      i++;
-    }
-  }
-
-  private void removeFromSuggestions(int index) {
-    CharSequence garbage = mSuggestions.remove(index);
-    if (garbage != null && garbage instanceof StringBuilder) {
-      mStringPool.add(garbage);
     }
   }
 
@@ -254,7 +374,7 @@ public class Suggest implements Dictionary.WordCallback {
     return mHaveCorrection;
   }
 
-  private boolean compareCaseInsensitive(final String mLowerOriginalWord,
+  private boolean compareCaseInsensitive(final CharSequence mLowerOriginalWord,
                                          final char[] word, final int offset, final int length) {
     final int originalLength = mLowerOriginalWord.length();
     if (originalLength == length && Character.isUpperCase(word[offset])) {
@@ -269,46 +389,144 @@ public class Suggest implements Dictionary.WordCallback {
   }
 
   public boolean addWord(final char[] word, final int offset, final int length, final int freq) {
-    int pos = 0;
-    final int[] priorities = mPriorities;
-    final int prefMaxSuggestions = mPrefMaxSuggestions;
-    // Check if it's the same word, only caps are different
-    if (compareCaseInsensitive(mLowerOriginalWord, word, offset, length)) {
-      pos = 0;
-    } else {
-      // Check the last one's priority and bail
-      if (priorities[prefMaxSuggestions - 1] >= freq) return true;
-      while (pos < prefMaxSuggestions) {
-        if (priorities[pos] < freq
-            || (priorities[pos] == freq && length < mSuggestions
-            .get(pos).length())) {
-          break;
-        }
-        pos++;
+    if (isCancelled()) return false;
+    mOffered++;
+    if (length > MAX_WORD_LENGTH) {
+      mRejected++;
+      return true;
+    }
+    // A word that's the same as the typed one, only caps are different, always makes the list
+    final boolean pinned = compareCaseInsensitive(mLowerOriginalWord, word, offset, length);
+    final int max = mPrefMaxSuggestions;
+    if (!pinned) {
+      // Check the worst one's priority and bail
+      if (freq <= (mCount == max ? mPriorities[mHeap[0]] : 0)) {
+        mRejected++;
+        return true;
       }
     }
 
-    if (pos >= prefMaxSuggestions) {
-      return true;
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + word[offset + i];
     }
-    System.arraycopy(priorities, pos, priorities, pos + 1,
-        prefMaxSuggestions - pos - 1);
-    priorities[pos] = freq;
-    int poolSize = mStringPool.size();
-    StringBuilder sb = poolSize > 0 ? (StringBuilder) mStringPool.remove(poolSize - 1)
-        : new StringBuilder(32);
-    sb.setLength(0);
-    sb.append(word, offset, length);
-    mSuggestions.add(pos, sb);
-    if (mSuggestions.size() > prefMaxSuggestions) {
-      CharSequence garbage = mSuggestions.remove(prefMaxSuggestions);
-      if (garbage instanceof StringBuilder) {
-        mStringPool.add(garbage);
+    // The same word can come from several dictionaries or search paths, keep the best one
+    for (int i = 0; i < mCount; i++) {
+      final int slot = mHeap[i];
+      if (mHashes[slot] == hash && mLengths[slot] == length
+          && sameWord(slot, word, offset, length)) {
+        if (freq > mPriorities[slot] || (pinned && !mPinned[slot])) {
+          mPriorities[slot] = Math.max(freq, mPriorities[slot]);
+          mPinned[slot] |= pinned;
+          siftDown(i);
+        } else {
+          mRejected++;
+        }
+        return true;
       }
     }
+
+    final boolean full = mCount == max;
+    int slot;
+    if (!full) {
+      slot = mCount;
+      place(slot, mCount);
+      mCount++;
+    } else {
+      // Replace the worst candidate
+      slot = mHeap[0];
+    }
+    System.arraycopy(word, offset, mSlab, slot * MAX_WORD_LENGTH, length);
+    mLengths[slot] = length;
+    mHashes[slot] = hash;
+    mPriorities[slot] = freq;
+    mPinned[slot] = pinned;
+    mSequence[slot] = mNextSequence++;
+    if (full) {
+      siftDown(0);
+    } else {
+      siftUp(mHeapIndex[slot]);
+    }
+    return true;
+  }
+
+  private boolean sameWord(int slot, char[] word, int offset, int length) {
+    final int start = slot * MAX_WORD_LENGTH;
+    for (int i = 0; i < length; i++) {
+      if (mSlab[start + i] != word[offset + i]) return false;
+    }
     return true;
   }
 
+  /**
+   * Returns true if slot a ranks below slot b: the typed word outranks everything, then higher
+   * priority, then shorter words, then words found earlier.
+   */
+  private boolean isWorse(int a, int b) {
+    if (mPinned[a] != mPinned[b]) return mPinned[b];
+    if (mPriorities[a] != mPriorities[b]) return mPriorities[a] < mPriorities[b];
+    if (mLengths[a] != mLengths[b]) return mLengths[a] > mLengths[b];
+    return mSequence[a] > mSequence[b];
+  }
+
+  private void siftUp(int index) {
+    final int slot = mHeap[index];
+    while (index > 0) {
+      final int parent = (index - 1) >> 1;
+      if (!isWorse(slot, mHeap[parent])) break;
+      place(mHeap[parent], index);
+      index = parent;
+    }
+    place(slot, index);
+  }
+
+  private void siftDown(int index) {
+    final int slot = mHeap[index];
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= mCount) break;
+      if (child + 1 < mCount && isWorse(mHeap[child + 1], mHeap[child])) child++;
+      if (!isWorse(mHeap[child], slot)) break;
+      place(mHeap[child], index);
+      index = child;
+    }
+    place(slot, index);
+  }
+
+  private void place(int slot, int index) {
+    mHeap[index] = slot;
+    mHeapIndex[slot] = index;
+  }
+
+  /**
+   * Appends the collected words to mSuggestions, best first.
+   */
+  private void drainCollector() {
+    final int count = mCount;
+    for (int i = 0; i < count; i++) {
+      final int slot = mHeap[i];
+      int j = i;
+      while (j > 0 && isWorse(mOrder[j - 1], slot)) {
+        mOrder[j] = mOrder[j - 1];
+        j--;
+      }
+      mOrder[j] = slot;
+    }
+    for (int i = 0; i < count; i++) {
+      final int slot = mOrder[i];
+      final StringBuilder sb = mWordBuilders[slot];
+      sb.setLength(0);
+      sb.append(mSlab, slot * MAX_WORD_LENGTH, mLengths[slot]);
+      mSuggestions.add(sb);
+    }
+  }
+
+  public int getThreshold() {
+    // Nothing beats the threshold of a cancelled query, so the dictionaries stop searching
+    if (isCancelled()) return Integer.MAX_VALUE;
+    return mCount == mPrefMaxSuggestions ? mPriorities[mHeap[0]] : 0;
+  }
+
   public boolean isValidWord(final CharSequence word) {
     if (word == null || word.length() == 0) {
       return false;
@@ -319,21 +537,4 @@ public class Suggest implements Dictionary.WordCallback {
         || (mAutoDictionary != null && mAutoDictionary.isValidWord(word))
         || (mContactsDictionary != null && mContactsDictionary.isValidWord(word)));
   }
-
-  private void collectGarbage() {
-    int poolSize = mStringPool.size();
-    int garbageSize = mSuggestions.size();
-    while (poolSize < mPrefMaxSuggestions && garbageSize > 0) {
-      CharSequence garbage = mSuggestions.get(garbageSize - 1);
-      if (garbage != null && garbage instanceof StringBuilder) {
-        mStringPool.add(garbage);
-        poolSize++;
-      }
-      garbageSize--;
-    }
-    if (poolSize == mPrefMaxSuggestions + 1) {
-      LOG.warn("String pool got too big: " + poolSize);
-    }
-    mSuggestions.clear();
-  }
 }
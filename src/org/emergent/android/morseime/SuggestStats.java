@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime;
+
+import android.util.Printer;
+
+/**
+ * Counters and latency histograms for the stages of the suggestion pipeline. Recording costs a
+ * few array increments under an uncontended lock, so the counters are always on; they're only
+ * formatted when somebody asks for a {@link Snapshot}.
+ * <p/>
+ * Each histogram has {@link #BUCKET_COUNT} buckets on a power of two scale: bucket 0 counts
+ * times under a microsecond, bucket i those under 2^i microseconds, and the last bucket
+ * everything from 2^(BUCKET_COUNT - 2) microseconds up.
+ *
+ * @author Patrick Woodworth
+ */
+public class SuggestStats {
+
+  /** The user dictionary search */
+  public static final int STAGE_USER = 0;
+  /** The contacts dictionary search */
+  public static final int STAGE_CONTACTS = 1;
+  /** The main dictionary search */
+  public static final int STAGE_MAIN = 2;
+  /** The AutoText corrections of the collected words */
+  public static final int STAGE_AUTO_TEXT = 3;
+  /** Removing repeated words from the final list */
+  public static final int STAGE_DEDUPE = 4;
+  /** A whole query, from the composer to the final list */
+  public static final int STAGE_QUERY = 5;
+  /** From the keystroke to its suggestions being handed to the candidate strip */
+  public static final int STAGE_RENDER = 6;
+
+  public static final int STAGE_COUNT = 7;
+
+  public static final int BUCKET_COUNT = 16;
+
+  private static final String[] STAGE_NAMES = {
+      "user",
+      "contacts",
+      "main",
+      "autotext",
+      "dedupe",
+      "query",
+      "keystroke-to-render"
+  };
+
+  private final long[] m_counts = new long[STAGE_COUNT];
+  private final long[] m_totalNanos = new long[STAGE_COUNT];
+  private final long[] m_maxNanos = new long[STAGE_COUNT];
+  private final long[][] m_buckets = new long[STAGE_COUNT][BUCKET_COUNT];
+  private final long[] m_nodesVisited = new long[STAGE_COUNT];
+  private final long[] m_offered = new long[STAGE_COUNT];
+  private final long[] m_rejected = new long[STAGE_COUNT];
+  private long m_autoTextLookups;
+  private long m_cancelled;
+
+  /**
+   * Records the time taken by one run of a stage.
+   */
+  public synchronized void record(int stage, long nanos) {
+    m_counts[stage]++;
+    m_totalNanos[stage] += nanos;
+    if (nanos > m_maxNanos[stage]) m_maxNanos[stage] = nanos;
+    m_buckets[stage][bucket(nanos)]++;
+  }
+
+  /**
+   * Records one dictionary search.
+   *
+   * @param nodes    trie nodes examined, 0 if the dictionary doesn't count them
+   * @param offered  words the dictionary passed to the collector
+   * @param rejected offered words that didn't make the list
+   */
+  public synchronized void recordSearch(int stage, long nanos, int nodes, int offered,
+                                        int rejected) {
+    record(stage, nanos);
+    m_nodesVisited[stage] += nodes;
+    m_offered[stage] += offered;
+    m_rejected[stage] += rejected;
+  }
+
+  /**
+   * Records a pass of AutoText corrections over the collected words.
+   */
+  public synchronized void recordAutoText(long nanos, int lookups) {
+    record(STAGE_AUTO_TEXT, nanos);
+    m_autoTextLookups += lookups;
+  }
+
+  /**
+   * Records a query abandoned because its composition changed.
+   */
+  public synchronized void recordCancelled() {
+    m_cancelled++;
+  }
+
+  public synchronized Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  public synchronized void reset() {
+    for (int i = 0; i < STAGE_COUNT; i++) {
+      m_counts[i] = 0;
+      m_totalNanos[i] = 0;
+      m_maxNanos[i] = 0;
+      m_nodesVisited[i] = 0;
+      m_offered[i] = 0;
+      m_rejected[i] = 0;
+      for (int j = 0; j < BUCKET_COUNT; j++) {
+        m_buckets[i][j] = 0;
+      }
+    }
+    m_autoTextLookups = 0;
+    m_cancelled = 0;
+  }
+
+  public static String getStageName(int stage) {
+    return STAGE_NAMES[stage];
+  }
+
+  /**
+   * @return the bucket for a time, 0 for under a microsecond, else 1 + log2 of the microseconds
+   */
+  static int bucket(long nanos) {
+    final long micros = nanos / 1000;
+    if (micros >= 1L << (BUCKET_COUNT - 2)) return BUCKET_COUNT - 1;
+    return 32 - Integer.numberOfLeadingZeros((int) micros);
+  }
+
+  /**
+   * A copy of the counters at one point in time, safe to read from any thread.
+   */
+  public static class Snapshot {
+
+    private final long[] m_counts;
+    private final long[] m_totalNanos;
+    private final long[] m_maxNanos;
+    private final long[][] m_buckets;
+    private final long[] m_nodesVisited;
+    private final long[] m_offered;
+    private final long[] m_rejected;
+    private final long m_autoTextLookups;
+    private final long m_cancelled;
+
+    private Snapshot(SuggestStats stats) {
+      m_counts = stats.m_counts.clone();
+      m_totalNanos = stats.m_totalNanos.clone();
+      m_maxNanos = stats.m_maxNanos.clone();
+      m_buckets = new long[STAGE_COUNT][];
+      for (int i = 0; i < STAGE_COUNT; i++) {
+        m_buckets[i] = stats.m_buckets[i].clone();
+      }
+      m_nodesVisited = stats.m_nodesVisited.clone();
+      m_offered = stats.m_offered.clone();
+      m_rejected = stats.m_rejected.clone();
+      m_autoTextLookups = stats.m_autoTextLookups;
+      m_cancelled = stats.m_cancelled;
+    }
+
+    public long getCount(int stage) {
+      return m_counts[stage];
+    }
+
+    public long getTotalNanos(int stage) {
+      return m_totalNanos[stage];
+    }
+
+    public long getMaxNanos(int stage) {
+      return m_maxNanos[stage];
+    }
+
+    public long getBucket(int stage, int bucket) {
+      return m_buckets[stage][bucket];
+    }
+
+    public long getNodesVisited(int stage) {
+      return m_nodesVisited[stage];
+    }
+
+    public long getOffered(int stage) {
+      return m_offered[stage];
+    }
+
+    public long getRejected(int stage) {
+      return m_rejected[stage];
+    }
+
+    public long getAutoTextLookups() {
+      return m_autoTextLookups;
+    }
+
+    public long getCancelled() {
+      return m_cancelled;
+    }
+
+    /**
+     * Estimates a percentile of a stage's times from its histogram.
+     *
+     * @param percent between 0 and 100
+     * @return the upper bound in microseconds of the bucket holding the percentile, or -1 if
+     *         it's in the open ended last bucket
+     */
+    public long getPercentileMicros(int stage, int percent) {
+      final long[] buckets = m_buckets[stage];
+      final long target = (m_counts[stage] * percent + 99) / 100;
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+        seen += buckets[i];
+        if (seen >= target) return 1L << i;
+      }
+      return -1;
+    }
+
+    public void dump(Printer p, String prefix) {
+      p.println(prefix + "cancelled queries=" + m_cancelled
+          + " autotext lookups=" + m_autoTextLookups);
+      for (int i = 0; i < STAGE_COUNT; i++) {
+        final long count = m_counts[i];
+        if (count == 0) continue;
+        final StringBuilder sb = new StringBuilder(prefix);
+        sb.append(STAGE_NAMES[i]).append(": n=").append(count);
+        sb.append(" mean=").append(m_totalNanos[i] / count / 1000).append("us");
+        appendPercentile(sb, " p50", getPercentileMicros(i, 50));
+        appendPercentile(sb, " p90", getPercentileMicros(i, 90));
+        appendPercentile(sb, " p99", getPercentileMicros(i, 99));
+        sb.append(" max=").append(m_maxNanos[i] / 1000).append("us");
+        if (m_offered[i] > 0 || m_nodesVisited[i] > 0) {
+          sb.append(" nodes/query=").append(m_nodesVisited[i] / count);
+          sb.append(" offered=").append(m_offered[i]);
+          sb.append(" rejected=").append(m_rejected[i]);
+        }
+        p.println(sb.toString());
+      }
+    }
+
+    private static void appendPercentile(StringBuilder sb, String name, long micros) {
+      sb.append(name);
+      if (micros < 0) {
+        sb.append(">=").append(1L << (BUCKET_COUNT - 2)).append("us");
+      } else {
+        sb.append("<").append(micros).append("us");
+      }
+    }
+  }
+}
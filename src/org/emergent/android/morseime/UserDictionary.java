@@ -16,12 +16,19 @@
 
 package org.emergent.android.morseime;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.provider.UserDictionary.Words;
 
 public class UserDictionary extends ExpandableDictionary {
@@ -32,12 +39,37 @@ public class UserDictionary extends ExpandableDictionary {
       Words.FREQUENCY
   };
 
+  private static final String[] FREQUENCY_PROJECTION = {
+      Words._ID,
+      Words.FREQUENCY
+  };
+
+  private static final int INDEX_ID = 0;
   private static final int INDEX_WORD = 1;
   private static final int INDEX_FREQUENCY = 2;
+  private static final int INDEX_ROW_FREQUENCY = 1;
+
+  private static final String SELECTION = "((locale IS NULL) or (locale=?))";
 
   private ContentObserver mObserver;
 
-  private boolean mRequiresReload;
+  // The rows the trie holds by id, null until the first load, and the highest id loaded. Only
+  // touched holding the dictionary's lock.
+  private HashMap<Long, Row> mRows;
+  private long mLastId;
+  private int mSyncCount;
+
+  private static class Row {
+    final String word;
+    int frequency;
+    // The sync that last found the row
+    int seen;
+
+    Row(String word, int frequency) {
+      this.word = word;
+      this.frequency = frequency;
+    }
+  }
 
   public UserDictionary(Context context) {
     super(context);
@@ -48,11 +80,20 @@ public class UserDictionary extends ExpandableDictionary {
     cres.registerContentObserver(Words.CONTENT_URI, true, mObserver = new ContentObserver(null) {
       @Override
       public void onChange(boolean self) {
-        mRequiresReload = true;
+        // Rows inserted by addWord are known by id, so the sync for them changes nothing
+        reloadAsync();
       }
     });
 
-    loadDictionary();
+    reloadAsync();
+  }
+
+  /**
+   * Makes an empty dictionary that isn't backed by the provider, for tests to apply rows to.
+   */
+  UserDictionary() {
+    super(null);
+    mRows = new HashMap<Long, Row>();
   }
 
   public synchronized void close() {
@@ -62,12 +103,163 @@ public class UserDictionary extends ExpandableDictionary {
     }
   }
 
-  private synchronized void loadDictionary() {
+  /**
+   * Loads all the words the first time, and after that only applies the rows that changed.
+   */
+  @Override
+  protected void reload() {
+    final boolean loaded;
+    synchronized (this) {
+      loaded = mRows != null;
+    }
+    if (!loaded) {
+      final NodeArray roots = new NodeArray();
+      final HashMap<Long, Row> rows = new HashMap<Long, Row>();
+      final long lastId = load(roots, rows);
+      synchronized (this) {
+        publish(roots);
+        mRows = rows;
+        mLastId = lastId;
+      }
+      // Rows may have been added since the query, but the rest is current
+      sync(false);
+    } else {
+      sync(true);
+    }
+  }
+
+  /**
+   * Fills in a new trie and the rows it holds from all of the user's words.
+   *
+   * @return the highest row id loaded
+   */
+  private long load(NodeArray roots, HashMap<Long, Row> rows) {
+    long lastId = 0;
     Cursor cursor = getContext().getContentResolver()
-        .query(Words.CONTENT_URI, PROJECTION, "(locale IS NULL) or (locale=?)",
+        .query(Words.CONTENT_URI, PROJECTION, SELECTION,
             new String[]{Locale.getDefault().toString()}, null);
-    addWords(cursor);
-    mRequiresReload = false;
+    if (cursor == null) return lastId;
+    final int maxWordLength = getMaxWordLength();
+    if (cursor.moveToFirst()) {
+      while (!cursor.isAfterLast()) {
+        final long id = cursor.getLong(INDEX_ID);
+        String word = cursor.getString(INDEX_WORD);
+        int frequency = cursor.getInt(INDEX_FREQUENCY);
+        lastId = Math.max(lastId, id);
+        // Safeguard against adding really long words. Stack may overflow due
+        // to recursion
+        if (word.length() < maxWordLength) {
+          addWord(roots, word, frequency);
+          rows.put(id, new Row(word, frequency));
+        }
+        cursor.moveToNext();
+      }
+    }
+    cursor.close();
+    return lastId;
+  }
+
+  /**
+   * Reads back the rows inserted, changed and deleted since the last load or sync and applies
+   * them to the trie. Inserted rows are the ones past the highest id seen. Rows are taken to
+   * keep their word, the settings screen deletes and re-adds a word to edit it, so only the ids
+   * and frequencies of the older rows are read back to find the changed and deleted ones.
+   *
+   * @param checkKnown whether to look for changed and deleted rows, or only for inserted ones
+   * @see #applyRows(long, Cursor, Cursor)
+   */
+  private void sync(boolean checkKnown) {
+    final long lastId;
+    synchronized (this) {
+      lastId = mLastId;
+    }
+    final ContentResolver cres = getContext().getContentResolver();
+    final String[] args = new String[]{Locale.getDefault().toString(), Long.toString(lastId)};
+    Cursor known = null;
+    if (checkKnown) {
+      known = cres.query(Words.CONTENT_URI, FREQUENCY_PROJECTION, SELECTION + " AND (_id<=?)",
+          args, null);
+      if (known == null) return;
+    }
+    Cursor added = cres.query(Words.CONTENT_URI, PROJECTION, SELECTION + " AND (_id>?)", args,
+        null);
+    if (added == null) {
+      if (known != null) known.close();
+      return;
+    }
+    applyRows(lastId, known, added);
+  }
+
+  /**
+   * Applies rows read back from the provider to the trie, and closes the cursors. Only the
+   * words whose rows changed are looked up in the trie again, so a sync that finds nothing new,
+   * such as the one for a row addWord inserted, leaves the trie as it is.
+   *
+   * @param lastId the highest row id known when the cursors were queried
+   * @param known  the ids and frequencies of all the rows up to lastId, or null to only apply
+   *               the inserted rows
+   * @param added  the ids, words and frequencies of the rows past lastId
+   */
+  synchronized void applyRows(long lastId, Cursor known, Cursor added) {
+    final int sync = ++mSyncCount;
+    // Words whose frequency has to be worked out again from their rows
+    final HashSet<String> changed = new HashSet<String>();
+    if (known != null) {
+      if (known.moveToFirst()) {
+        while (!known.isAfterLast()) {
+          final Row row = mRows.get(known.getLong(INDEX_ID));
+          if (row != null) {
+            row.seen = sync;
+            final int frequency = known.getInt(INDEX_ROW_FREQUENCY);
+            if (row.frequency != frequency) {
+              row.frequency = frequency;
+              changed.add(row.word);
+            }
+          }
+          known.moveToNext();
+        }
+      }
+      known.close();
+      for (Iterator<Map.Entry<Long, Row>> i = mRows.entrySet().iterator(); i.hasNext(); ) {
+        final Map.Entry<Long, Row> entry = i.next();
+        final Row row = entry.getValue();
+        if (entry.getKey() <= lastId && row.seen != sync) {
+          i.remove();
+          changed.add(row.word);
+        }
+      }
+    }
+
+    final int maxWordLength = getMaxWordLength();
+    if (added.moveToFirst()) {
+      while (!added.isAfterLast()) {
+        final long id = added.getLong(INDEX_ID);
+        mLastId = Math.max(mLastId, id);
+        String word = added.getString(INDEX_WORD);
+        // Rows inserted by addWord are known already
+        if (word.length() < maxWordLength && !mRows.containsKey(id)) {
+          mRows.put(id, new Row(word, added.getInt(INDEX_FREQUENCY)));
+          changed.add(word);
+        }
+        added.moveToNext();
+      }
+    }
+    added.close();
+
+    if (changed.isEmpty()) return;
+    // A word can have several rows, the trie holds the highest frequency among them
+    final HashMap<String, Integer> frequencies = new HashMap<String, Integer>();
+    for (Row row : mRows.values()) {
+      if (!changed.contains(row.word)) continue;
+      final Integer frequency = frequencies.get(row.word);
+      if (frequency == null || frequency < row.frequency) {
+        frequencies.put(row.word, row.frequency);
+      }
+    }
+    for (String word : changed) {
+      final Integer frequency = frequencies.get(word);
+      setWordFrequency(word, frequency == null ? -1 : frequency);
+    }
   }
 
   /**
@@ -81,45 +273,20 @@ public class UserDictionary extends ExpandableDictionary {
    */
   @Override
   public synchronized void addWord(String word, int frequency) {
-    if (mRequiresReload) loadDictionary();
     // Safeguard against adding long words. Can cause stack overflow.
     if (word.length() >= getMaxWordLength()) return;
 
     super.addWord(word, frequency);
 
-    Words.addWord(getContext(), word, frequency, Words.LOCALE_TYPE_CURRENT);
-    // In case the above does a synchronous callback of the change observer
-    mRequiresReload = false;
-  }
-
-  @Override
-  public synchronized void getWords(final WordComposer codes, final WordCallback callback) {
-    if (mRequiresReload) loadDictionary();
-    super.getWords(codes, callback);
-  }
-
-  @Override
-  public synchronized boolean isValidWord(CharSequence word) {
-    if (mRequiresReload) loadDictionary();
-    return super.isValidWord(word);
-  }
-
-  private void addWords(Cursor cursor) {
-    clearDictionary();
-
-    final int maxWordLength = getMaxWordLength();
-    if (cursor.moveToFirst()) {
-      while (!cursor.isAfterLast()) {
-        String word = cursor.getString(INDEX_WORD);
-        int frequency = cursor.getInt(INDEX_FREQUENCY);
-        // Safeguard against adding really long words. Stack may overflow due
-        // to recursion
-        if (word.length() < maxWordLength) {
-          super.addWord(word, frequency);
-        }
-        cursor.moveToNext();
-      }
-    }
-    cursor.close();
+    // What Words.addWord does, but learning the row's id so that the sync the change
+    // notification causes knows the row already
+    ContentValues values = new ContentValues();
+    values.put(Words.WORD, word);
+    values.put(Words.FREQUENCY, frequency);
+    values.put(Words.LOCALE, Locale.getDefault().toString());
+    values.put(Words.APP_ID, 0);
+    Uri uri = getContext().getContentResolver().insert(Words.CONTENT_URI, values);
+    if (uri == null) return;
+    if (mRows != null) mRows.put(ContentUris.parseId(uri), new Row(word, frequency));
   }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.emergent.android.morseime;
+
+/**
+ * A clock that only moves when told to, for driving the timing engine deterministically
+ * and much faster than real time.
+ *
+ * @author Patrick Woodworth
+ */
+
+public class VirtualMorseClock extends MorseClock {
+
+  private long m_now;
+
+  public VirtualMorseClock() {
+    this(0);
+  }
+
+  public VirtualMorseClock(long startNanos) {
+    m_now = startNanos;
+  }
+
+  @Override
+  public long nanoTime() {
+    return m_now;
+  }
+
+  public void advance(long nanos) {
+    if (nanos < 0)
+      throw new IllegalArgumentException("Virtual time cannot go backwards: " + nanos);
+    m_now += nanos;
+  }
+
+  public void advanceMillis(long millis) {
+    advance(fromMillis(millis));
+  }
+
+  /**
+   * Moves the clock forward to the given time; earlier times are ignored.
+   */
+  public void advanceTo(long nanos) {
+    if (nanos > m_now)
+      m_now = nanos;
+  }
+}
@@ -27,6 +27,11 @@ public class WordComposer {
    */
   private ArrayList<int[]> mCodes;
 
+  /**
+   * Arrays from deleted keystrokes, kept for the next ones to copy their codes into
+   */
+  private ArrayList<int[]> mSpareCodes;
+
   /**
    * The word chosen from the candidate list, until it is committed.
    */
@@ -43,14 +48,33 @@ public class WordComposer {
 
   WordComposer() {
     mCodes = new ArrayList<int[]>(12);
+    mSpareCodes = new ArrayList<int[]>(12);
     mTypedWord = new StringBuilder(20);
   }
 
+  /**
+   * Copies the keystrokes of another composer, so a query can go on while the original changes.
+   * Once this composer has held a word as long, nothing is allocated.
+   */
+  void set(WordComposer copy) {
+    reset();
+    final ArrayList<int[]> codes = copy.mCodes;
+    for (int i = 0; i < codes.size(); i++) {
+      mCodes.add(copyCodes(codes.get(i)));
+    }
+    mPreferredWord = copy.mPreferredWord;
+    mTypedWord.append(copy.mTypedWord);
+    mCapsCount = copy.mCapsCount;
+    mIsCapitalized = copy.mIsCapitalized;
+  }
+
   /**
    * Clear out the keys registered so far.
    */
   public void reset() {
-    mCodes.clear();
+    while (!mCodes.isEmpty()) {
+      recycleCodes(mCodes.remove(mCodes.size() - 1));
+    }
     mIsCapitalized = false;
     mPreferredWord = null;
     mTypedWord.setLength(0);
@@ -79,12 +103,13 @@ public class WordComposer {
   /**
    * Add a new keystroke, with codes[0] containing the pressed key's unicode and the rest of
    * the array containing unicode for adjacent keys, sorted by reducing probability/proximity.
+   * The codes are copied, so the caller may reuse the array.
    *
    * @param codes the array of unicode values
    */
   public void add(int primaryCode, int[] codes) {
     mTypedWord.append((char) primaryCode);
-    mCodes.add(codes);
+    mCodes.add(copyCodes(codes));
     if (Character.isUpperCase((char) primaryCode)) mCapsCount++;
   }
 
@@ -92,7 +117,7 @@ public class WordComposer {
    * Delete the last keystroke as a result of hitting backspace.
    */
   public void deleteLast() {
-    mCodes.remove(mCodes.size() - 1);
+    recycleCodes(mCodes.remove(mCodes.size() - 1));
     final int lastPos = mTypedWord.length() - 1;
     char last = mTypedWord.charAt(lastPos);
     mTypedWord.deleteCharAt(lastPos);
@@ -121,6 +146,24 @@ public class WordComposer {
     return mTypedWord;
   }
 
+  private int[] copyCodes(int[] codes) {
+    if (codes == null) return null;
+    int[] copy = null;
+    for (int i = mSpareCodes.size() - 1; i >= 0; i--) {
+      if (mSpareCodes.get(i).length == codes.length) {
+        copy = mSpareCodes.remove(i);
+        break;
+      }
+    }
+    if (copy == null) copy = new int[codes.length];
+    System.arraycopy(codes, 0, copy, 0, codes.length);
+    return copy;
+  }
+
+  private void recycleCodes(int[] codes) {
+    if (codes != null) mSpareCodes.add(codes);
+  }
+
   public void setCapitalized(boolean capitalized) {
     mIsCapitalized = capitalized;
   }
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Checks how {@link AutoDictionary} reads and writes its file: that what's written reads back
+ * the same, that a file cut short or damaged anywhere loads as no words at all, and that a file
+ * of the first version, which had no session count, loads and is written back in the current
+ * one. Then how it keeps its counts: that they halve every {@link AutoDictionary#DECAY_SESSIONS}
+ * sessions, that the dictionary stays within its capacity keeping the words used most, and that
+ * a word is promoted once, as its count passes the threshold.
+ *
+ * @author Patrick Woodworth
+ */
+@MediumTest
+public class AutoDictionaryTests extends AndroidTestCase {
+
+  private static final String[] WORDS = {"hello", "world", "morse"};
+  private static final int[] COUNTS = {20, 7, 255};
+
+  private File m_file;
+  private final ArrayList<String> m_promoted = new ArrayList<String>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // The dictionary posts its writes to a handler on the creating thread
+    if (Looper.myLooper() == null) Looper.prepare();
+    m_file = new File(getContext().getCacheDir(), "auto_dict_test.bin");
+    m_file.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    m_file.delete();
+    super.tearDown();
+  }
+
+  public void testMissingFile() throws Exception {
+    AutoDictionary dictionary = open();
+    assertEquals(-1, dictionary.getWordFrequency("hello"));
+    dictionary.addWord("hello", 3);
+    assertEquals(3, dictionary.getWordFrequency("hello"));
+  }
+
+  public void testRoundTrip() throws Exception {
+    AutoDictionary.write(m_file, append(WORDS, "gone"), append(COUNTS, 0), 7);
+    AutoDictionary dictionary = open();
+    assertWords(dictionary);
+    // Words that decayed to nothing aren't written
+    assertEquals(-1, dictionary.getWordFrequency("gone"));
+
+    // Rewriting the file keeps the words and the session count
+    dictionary.startSession();
+    assertTrue(dictionary.write());
+    assertEquals(8, ByteBuffer.wrap(read()).getInt(14));
+    assertWords(open());
+  }
+
+  /**
+   * Cut short anywhere, in the header or in the entries, the file loads as no words, rather
+   * than as the words before the cut.
+   */
+  public void testTruncatedFile() throws Exception {
+    AutoDictionary.write(m_file, WORDS, COUNTS, 0);
+    final int length = read().length;
+    for (int cut = 0; cut < length; cut += 3) {
+      AutoDictionary.write(m_file, WORDS, COUNTS, 0);
+      RandomAccessFile file = new RandomAccessFile(m_file, "rw");
+      file.setLength(cut);
+      file.close();
+      assertEmpty("cut at " + cut, open());
+    }
+  }
+
+  /**
+   * A byte changed anywhere but in the session count makes the file load as no words.
+   */
+  public void testCorruptedFile() throws Exception {
+    AutoDictionary.write(m_file, WORDS, COUNTS, 0);
+    final byte[] data = read();
+    for (int pos = 0; pos < data.length; pos++) {
+      if (pos >= 14 && pos < 18) continue;
+      byte[] corrupted = data.clone();
+      corrupted[pos] ^= 0x10;
+      write(corrupted);
+      assertEmpty("changed byte " + pos, open());
+    }
+  }
+
+  /**
+   * The first version had no session count after the checksum. Its words load with their
+   * counts, and the next write upgrades the file.
+   */
+  public void testVersion1Upgrade() throws Exception {
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(entries);
+    for (int ii = 0; ii < WORDS.length; ii++) {
+      out.writeByte(COUNTS[ii]);
+      out.writeUTF(WORDS[ii]);
+    }
+    out.flush();
+    CRC32 crc = new CRC32();
+    crc.update(entries.toByteArray());
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    out = new DataOutputStream(bytes);
+    out.writeInt(AutoDictionary.MAGIC);
+    out.writeShort(1);
+    out.writeInt(WORDS.length);
+    out.writeInt((int) crc.getValue());
+    entries.writeTo(out);
+    out.flush();
+    write(bytes.toByteArray());
+
+    AutoDictionary dictionary = open();
+    assertWords(dictionary);
+    dictionary.startSession();
+    assertTrue(dictionary.write());
+    ByteBuffer header = ByteBuffer.wrap(read());
+    assertEquals(2, header.getShort(4));
+    assertEquals(1, header.getInt(14));
+    assertWords(open());
+  }
+
+  public void testHalvingAfterDecaySessions() throws Exception {
+    AutoDictionary dictionary = open();
+    dictionary.addWord("hello", 100);
+    dictionary.addWord("rare", 1);
+    for (int ii = 1; ii < AutoDictionary.DECAY_SESSIONS; ii++) {
+      dictionary.startSession();
+    }
+    assertEquals(100, dictionary.getWordFrequency("hello"));
+    assertEquals(1, dictionary.getWordFrequency("rare"));
+
+    dictionary.startSession();
+    assertEquals(50, dictionary.getWordFrequency("hello"));
+    // A word that halves to nothing is forgotten
+    assertEquals(-1, dictionary.getWordFrequency("rare"));
+    assertEquals(1, dictionary.size());
+
+    for (int ii = 0; ii < AutoDictionary.DECAY_SESSIONS; ii++) {
+      dictionary.startSession();
+    }
+    assertEquals(25, dictionary.getWordFrequency("hello"));
+    // Using the word adds to its halved count
+    dictionary.addWord("hello", LatinIME.FREQUENCY_FOR_PICKED);
+    assertEquals(25 + LatinIME.FREQUENCY_FOR_PICKED, dictionary.getWordFrequency("hello"));
+  }
+
+  /**
+   * Words typed once each keep coming, and displace each other rather than the few words used
+   * often.
+   */
+  public void testCapacityBoundedUnderEviction() throws Exception {
+    AutoDictionary dictionary = open();
+    dictionary.setCapacity(50);
+    for (int ii = 0; ii < 10; ii++) {
+      dictionary.addWord("often" + (char) ('a' + ii), 200);
+    }
+    for (int ii = 0; ii < 1000; ii++) {
+      dictionary.addWord("once" + ii, 1);
+      assertTrue(dictionary.size() <= 50);
+    }
+    assertEquals(50, dictionary.size());
+    for (int ii = 0; ii < 10; ii++) {
+      assertEquals(200, dictionary.getWordFrequency("often" + (char) ('a' + ii)));
+    }
+
+    dictionary.setCapacity(20);
+    assertEquals(20, dictionary.size());
+    for (int ii = 0; ii < 10; ii++) {
+      assertTrue(dictionary.isValidWord("often" + (char) ('a' + ii)));
+    }
+  }
+
+  public void testPromotedOnce() throws Exception {
+    AutoDictionary dictionary = open();
+    // Used often enough to be valid, but not to be promoted
+    for (int ii = 0; ii < 3; ii++) {
+      dictionary.addWord("valid", LatinIME.FREQUENCY_FOR_PICKED);
+    }
+    assertTrue(dictionary.isValidWord("valid"));
+    // Past the threshold and on to the highest count
+    for (int ii = 0; ii < 100; ii++) {
+      dictionary.addWord("hello", LatinIME.FREQUENCY_FOR_PICKED);
+    }
+    assertEquals(255, dictionary.getWordFrequency("hello"));
+    // Past it in one go
+    dictionary.addWord("world", 100);
+    dictionary.addWord("world", 100);
+    ArrayList<String> promoted = new ArrayList<String>();
+    promoted.add("hello");
+    promoted.add("world");
+    assertEquals(promoted, m_promoted);
+  }
+
+  /**
+   * Makes a dictionary over the test's file and waits for it to read the file.
+   */
+  private AutoDictionary open() throws InterruptedException {
+    AutoDictionary dictionary = new AutoDictionary(getContext()) {
+      @Override
+      File getFile() {
+        return m_file;
+      }
+
+      @Override
+      void promote(String word) {
+        m_promoted.add(word);
+      }
+    };
+    assertTrue(dictionary.waitUntilLoaded(5000));
+    return dictionary;
+  }
+
+  private static void assertWords(AutoDictionary dictionary) {
+    for (int ii = 0; ii < WORDS.length; ii++) {
+      assertEquals(WORDS[ii], COUNTS[ii], dictionary.getWordFrequency(WORDS[ii]));
+    }
+  }
+
+  private static void assertEmpty(String message, AutoDictionary dictionary) {
+    for (String word : WORDS) {
+      assertEquals(message, -1, dictionary.getWordFrequency(word));
+    }
+  }
+
+  private byte[] read() throws IOException {
+    byte[] data = new byte[(int) m_file.length()];
+    FileInputStream in = new FileInputStream(m_file);
+    try {
+      int read = 0;
+      while (read < data.length) {
+        read += in.read(data, read, data.length - read);
+      }
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private void write(byte[] data) throws IOException {
+    FileOutputStream out = new FileOutputStream(m_file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String[] append(String[] array, String value) {
+    String[] result = new String[array.length + 1];
+    System.arraycopy(array, 0, result, 0, array.length);
+    result[array.length] = value;
+    return result;
+  }
+
+  private static int[] append(int[] array, int value) {
+    int[] result = new int[array.length + 1];
+    System.arraycopy(array, 0, result, 0, array.length);
+    result[array.length] = value;
+    return result;
+  }
+}
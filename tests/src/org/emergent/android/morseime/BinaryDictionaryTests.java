@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import org.emergent.android.morseime.tools.MakeBinaryDictionary;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compiles a generated wordlist with tools/makedict and checks that {@link BinaryDictionary}
+ * reads back exactly that wordlist: every word is valid with its own frequency, nothing else
+ * is, and a corrupted or truncated file is refused. The list is compiled in small sort
+ * chunks, so the spill and merge path is covered too.
+ *
+ * @author Patrick Woodworth
+ */
+@MediumTest
+public class BinaryDictionaryTests extends AndroidTestCase {
+
+  private static final String[] SYLLABLES = {
+      "ba", "ko", "ri", "mu", "te", "la", "sa", "ne", "po", "di", "stra", "qu"
+  };
+
+  private static final String[] SUFFIXES = {"", "s", "ing", "ed", "er", "ly"};
+
+  /**
+   * Words that take the odd paths through the format: capitals, quotes, characters above
+   * Latin-1 that are written escaped, and one word that is a prefix of another.
+   */
+  private static final String[] SPECIAL_WORDS = {
+      "January", "don't", "o'clock", "naïve", "über", "日本", "日",
+      "a", "aa"
+  };
+
+  private static final String LOCALE = "en_US";
+  private static final int CHUNK_SIZE = 500;
+
+  /**
+   * Full frequency resolution, so frequencies come back unchanged.
+   */
+  private static final int FREQUENCY_BITS = 8;
+
+  private Map<String, Integer> m_words;
+  private File m_wordlist;
+  private File m_output;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_words = generateWords(new Random(42));
+    File dir = getContext().getCacheDir();
+    m_wordlist = new File(dir, "test_wordlist.xml");
+    m_output = new File(dir, "test_wordlist.dict");
+    writeWordlist(m_wordlist, m_words);
+    new MakeBinaryDictionary(m_output, LOCALE, FREQUENCY_BITS, CHUNK_SIZE).run(m_wordlist);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    m_wordlist.delete();
+    m_output.delete();
+    super.tearDown();
+  }
+
+  public void testHeaderRoundTrips() throws IOException {
+    BinaryDictionary dict = new BinaryDictionary(map(m_output));
+    assertEquals(LOCALE, dict.getLocale());
+    assertEquals(m_words.size(), dict.getWordCount());
+  }
+
+  public void testEveryWordIsValid() throws IOException {
+    BinaryDictionary dict = new BinaryDictionary(map(m_output));
+    for (String word : m_words.keySet()) {
+      assertTrue(word, dict.isValidWord(word));
+    }
+  }
+
+  /**
+   * Prefixes and extensions of the words are only valid where they are words themselves.
+   */
+  public void testOtherWordsAreNotValid() throws IOException {
+    BinaryDictionary dict = new BinaryDictionary(map(m_output));
+    for (String word : m_words.keySet()) {
+      for (int len = 1; len < word.length(); len++) {
+        String prefix = word.substring(0, len);
+        assertEquals(prefix, m_words.containsKey(prefix), dict.isValidWord(prefix));
+      }
+      String longer = word + "x";
+      assertEquals(longer, m_words.containsKey(longer), dict.isValidWord(longer));
+    }
+    assertFalse(dict.isValidWord("january"));
+    assertFalse(dict.isValidWord(""));
+  }
+
+  /**
+   * Searching for each word, with its last letter given only as a near miss so the search
+   * doesn't skip it as the typed word, finds it at its own frequency unless the results were
+   * already full of better candidates. Nothing it finds is outside the wordlist.
+   */
+  public void testGetWordsAgreesWithWordlist() throws IOException {
+    BinaryDictionary dict = new BinaryDictionary(map(m_output));
+    WordComposer composer = new WordComposer();
+    Collector collector = new Collector();
+    int found = 0;
+    for (Map.Entry<String, Integer> entry : m_words.entrySet()) {
+      String word = entry.getKey();
+      composer.reset();
+      for (int ii = 0; ii < word.length() - 1; ii++) {
+        composer.add(word.charAt(ii), new int[]{word.charAt(ii)});
+      }
+      composer.add('#', new int[]{'#', word.charAt(word.length() - 1)});
+      collector.reset();
+      dict.getWords(composer, collector);
+      for (String suggestion : collector.m_frequencies.keySet()) {
+        assertTrue(suggestion + " for " + word, m_words.containsKey(suggestion));
+      }
+      // every typed letter doubles the score, the near miss doesn't, a full word doubles it
+      int expected = entry.getValue() << word.length();
+      Integer frequency = collector.m_frequencies.get(word);
+      if (frequency != null) {
+        assertEquals(word, expected, frequency.intValue());
+        found++;
+      } else {
+        assertTrue(word, collector.m_count >= 16 && collector.m_lowest >= expected);
+      }
+    }
+    assertTrue(found + " of " + m_words.size(), found > m_words.size() / 2);
+  }
+
+  public void testCorruptedDataIsRefused() throws IOException {
+    ByteBuffer buffer = read(m_output);
+    int last = buffer.capacity() - 1;
+    buffer.put(last, (byte) (buffer.get(last) ^ 1));
+    BinaryDictionary dict = new BinaryDictionary(buffer);
+    assertEquals(-1, dict.getWordCount());
+    assertFalse(dict.isValidWord(SPECIAL_WORDS[0]));
+  }
+
+  public void testTruncatedDataIsRefused() throws IOException {
+    ByteBuffer buffer = read(m_output);
+    buffer.limit(buffer.capacity() - 1);
+    BinaryDictionary dict = new BinaryDictionary(buffer.slice());
+    assertEquals(-1, dict.getWordCount());
+    assertFalse(dict.isValidWord(SPECIAL_WORDS[0]));
+  }
+
+  private static class Collector implements Dictionary.WordCallback {
+
+    final Map<String, Integer> m_frequencies = new HashMap<String, Integer>();
+    int m_count;
+    int m_lowest;
+
+    void reset() {
+      m_frequencies.clear();
+      m_count = 0;
+      m_lowest = Integer.MAX_VALUE;
+    }
+
+    public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency) {
+      String suggestion = new String(word, wordOffset, wordLength);
+      if (!m_frequencies.containsKey(suggestion))
+        m_frequencies.put(suggestion, frequency);
+      m_count++;
+      m_lowest = Math.min(m_lowest, frequency);
+      return true;
+    }
+
+    public int getThreshold() {
+      return 0;
+    }
+  }
+
+  /**
+   * Words of one to three syllables and a suffix, which gives plenty of shared suffixes,
+   * with frequencies from 1 to 255.
+   */
+  private static Map<String, Integer> generateWords(Random random) {
+    Map<String, Integer> words = new LinkedHashMap<String, Integer>();
+    for (String word : SPECIAL_WORDS) {
+      words.put(word, 1 + random.nextInt(255));
+    }
+    for (int ii = 0; ii < 3000; ii++) {
+      StringBuilder word = new StringBuilder();
+      int syllables = 1 + random.nextInt(3);
+      for (int jj = 0; jj < syllables; jj++) {
+        word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+      }
+      word.append(SUFFIXES[random.nextInt(SUFFIXES.length)]);
+      words.put(word.toString(), 1 + random.nextInt(255));
+    }
+    return words;
+  }
+
+  private static void writeWordlist(File file, Map<String, Integer> words) throws IOException {
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<wordlist>\n");
+      List<String> shuffled = new ArrayList<String>(words.keySet());
+      Collections.shuffle(shuffled, new Random(7));
+      for (String word : shuffled) {
+        out.write("  <w f=\"" + words.get(word) + "\">" + word + "</w>\n");
+      }
+      out.write("</wordlist>\n");
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Maps the file the way the main dictionary is mapped out of the apk.
+   */
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+    } finally {
+      in.close();
+    }
+  }
+
+  private static ByteBuffer read(File file) throws IOException {
+    ByteBuffer mapped = map(file);
+    ByteBuffer copy = ByteBuffer.allocate(mapped.capacity());
+    copy.put(mapped);
+    copy.flip();
+    return copy;
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.test.suitebuilder.annotation.MediumTest;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Searches and looks up words in an {@link ExpandableDictionary} while it's reloaded and
+ * changed word by word underneath. Every reload loads the same words, all at a frequency of
+ * that generation's own, so a search that saw a trie part way through being replaced, or
+ * before it was completely filled in, would come back with too few words or mixed
+ * frequencies. As in the IME, a single thread searches, and any number look words up.
+ *
+ * @author Patrick Woodworth
+ */
+@MediumTest
+public class ExpandableDictionaryConcurrencyTests extends TestCase {
+
+  private static final int RELOADS = 100;
+
+  private static final int LOOKUP_THREADS = 2;
+
+  // Searched for, all of the generation's words start with this
+  private static final String PREFIX = "w0";
+
+  private GenerationDictionary m_dictionary;
+  private String[] m_words;
+  private int m_prefixed;
+
+  private volatile boolean m_done;
+  private volatile Throwable m_failure;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    StringBuilder word = new StringBuilder();
+    m_words = new String[2 * 20 * 10];
+    int count = 0;
+    for (char first = '0'; first <= '1'; first++) {
+      for (char second = 'a'; second < 'a' + 20; second++) {
+        for (char third = 'a'; third < 'a' + 10; third++) {
+          word.setLength(0);
+          word.append('w').append(first).append(second).append(third);
+          m_words[count++] = word.toString();
+          if (word.toString().startsWith(PREFIX)) m_prefixed++;
+        }
+      }
+    }
+    m_dictionary = new GenerationDictionary(m_words);
+    // Searches need the first generation in place
+    m_dictionary.reload();
+  }
+
+  public void testSearchesSeeWholeGenerations() throws InterruptedException {
+    Thread[] threads = new Thread[2 + LOOKUP_THREADS];
+    threads[0] = new Worker("Reloader") {
+      @Override
+      void work() {
+        while (m_dictionary.getLoads() < RELOADS) {
+          m_dictionary.reloadAsync();
+          Thread.yield();
+        }
+      }
+    };
+    threads[1] = new Worker("Editor") {
+      @Override
+      void work() {
+        // Words outside the searched ones, added and removed by path copying
+        for (int ii = 0; !m_done; ii++) {
+          String word = "x" + (ii % 50);
+          m_dictionary.addWord(word, 1 + ii % 200);
+          m_dictionary.setWordFrequency(word, (ii & 1) == 0 ? -1 : 100);
+        }
+      }
+    };
+    for (int ii = 0; ii < LOOKUP_THREADS; ii++) {
+      final Random random = new Random(ii);
+      threads[2 + ii] = new Worker("Lookups" + ii) {
+        @Override
+        void work() {
+          while (!m_done) {
+            String word = m_words[random.nextInt(m_words.length)];
+            assertTrue(word, m_dictionary.isValidWord(word));
+            assertTrue(word, m_dictionary.getWordFrequency(word) > 0);
+          }
+        }
+      };
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    WordComposer typed = new WordComposer();
+    for (int ii = 0; ii < PREFIX.length(); ii++) {
+      typed.add(PREFIX.charAt(ii), new int[]{PREFIX.charAt(ii), -1, -1, -1});
+    }
+    GenerationCallback callback = new GenerationCallback();
+    int searches = 0;
+    try {
+      // The reloader stops once enough generations have been loaded
+      while (threads[0].isAlive() && m_failure == null) {
+        callback.reset();
+        m_dictionary.getWords(typed, callback);
+        assertEquals("words found", m_prefixed, callback.m_count);
+        searches++;
+      }
+    } finally {
+      m_done = true;
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+    if (m_failure != null) {
+      AssertionError error = new AssertionError("Failed on another thread");
+      error.initCause(m_failure);
+      throw error;
+    }
+    assertTrue("searches", searches > 0);
+  }
+
+  /**
+   * Reloads the same words each time, at a frequency that changes with every reload.
+   */
+  private static class GenerationDictionary extends ExpandableDictionary {
+
+    private final String[] m_words;
+    private volatile int m_loads;
+
+    GenerationDictionary(String[] words) {
+      super(null);
+      m_words = words;
+    }
+
+    int getLoads() {
+      return m_loads;
+    }
+
+    @Override
+    protected void loadWords(NodeArray roots) {
+      // Only one loader runs at a time
+      final int frequency = 1 + m_loads % 250;
+      for (String word : m_words) {
+        addWord(roots, word, frequency);
+      }
+      m_loads++;
+    }
+  }
+
+  /**
+   * Counts the words found, checking that they all came with the same frequency. The typed
+   * word is too short to be searched with edits, so every word is found the same way.
+   */
+  private static class GenerationCallback implements Dictionary.WordCallback {
+
+    int m_count;
+    int m_frequency;
+
+    void reset() {
+      m_count = 0;
+      m_frequency = -1;
+    }
+
+    public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency) {
+      if (m_frequency < 0) m_frequency = frequency;
+      assertEquals(new String(word, wordOffset, wordLength), m_frequency, frequency);
+      m_count++;
+      return true;
+    }
+
+    public int getThreshold() {
+      return 0;
+    }
+  }
+
+  /**
+   * Runs some work, keeping the first failure on any thread for the test to report.
+   */
+  private abstract class Worker extends Thread {
+
+    Worker(String name) {
+      super(name);
+    }
+
+    abstract void work();
+
+    @Override
+    public void run() {
+      try {
+        work();
+      } catch (Throwable t) {
+        if (m_failure == null) m_failure = t;
+        m_done = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the single walk {@link ExpandableDictionary} searches within edits of the input
+ * with the search it replaced, which walked the trie once as typed and once more for each
+ * input position, skipping that character of the word. Misspellings of words on the 50k word
+ * list of {@link ExpandableDictionaryPerformanceTests}, a quarter of each kind of edit, typed
+ * with neighbouring keys, are searched both ways. Reports how often the misspelt word made the
+ * list and how many nodes each search visited, per kind of edit.
+ *
+ * @author Patrick Woodworth
+ */
+@LargeTest
+public class ExpandableDictionaryCorrectionTests extends TestCase {
+
+  private static final String TAG = "ExpandableDictionaryCorrectionTests";
+
+  private static final String[] EDITS = {"substitution", "insertion", "deletion", "transposition"};
+  private static final int MISSPELLINGS = 400;
+
+  private ArrayList<String> m_words;
+  private ExpandableDictionary.NodeArray m_roots;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_words = ExpandableDictionaryPerformanceTests.words(50000, 1);
+    ExpandableDictionary dictionary = new ExpandableDictionary(null);
+    m_roots = new ExpandableDictionary.NodeArray();
+    for (int ii = 0; ii < m_words.size(); ii++) {
+      dictionary.addWord(m_roots, m_words.get(ii), 1 + ii * 37 % 255);
+    }
+  }
+
+  /**
+   * The old search only finds missing characters, and substitutions of neighbouring keys, so
+   * the new one has to find at least as many of each kind of misspelling and nearly all of
+   * them overall. Following every edit costs visits the old search never made: the new one
+   * visits about three times as many nodes, and has to stay within four.
+   */
+  public void testRecallAndNodesVisited() {
+    ExpandableDictionary dictionary = new ExpandableDictionary(null);
+    dictionary.publish(m_roots);
+    MultiPassDictionary multiPass = new MultiPassDictionary(m_roots);
+    WordComposer reset = new WordComposer();
+    reset.add('#', new int[]{'#', -1, -1, -1});
+
+    Random random = new Random(2);
+    int[][] found = new int[2][EDITS.length];
+    long[][] visited = new long[2][EDITS.length];
+    for (int ii = 0; ii < MISSPELLINGS; ii++) {
+      String word;
+      do {
+        word = m_words.get(random.nextInt(m_words.size()));
+      } while (word.length() < 5);
+      int edit = ii % EDITS.length;
+      WordComposer typed = misspell(word, edit, random);
+
+      // Start the new search from the root, as the old one always did
+      dictionary.getWords(reset, new ExpandableDictionarySearchTests.Collector(true));
+      ExpandableDictionarySearchTests.Collector collector =
+          new ExpandableDictionarySearchTests.Collector(true);
+      dictionary.getWords(typed, collector);
+      if (collector.contains(word)) found[0][edit]++;
+      visited[0][edit] += dictionary.getNodesVisited();
+
+      collector = new ExpandableDictionarySearchTests.Collector(true);
+      multiPass.getWords(typed, collector);
+      if (collector.contains(word)) found[1][edit]++;
+      visited[1][edit] += multiPass.getNodesVisited();
+    }
+
+    int perEdit = MISSPELLINGS / EDITS.length;
+    int[] totalFound = new int[2];
+    long[] totalVisited = new long[2];
+    for (int edit = 0; edit < EDITS.length; edit++) {
+      Log.i(TAG, String.format("%s: found %d%% (was %d%%), visited %d nodes (was %d)",
+          EDITS[edit], found[0][edit] * 100 / perEdit, found[1][edit] * 100 / perEdit,
+          visited[0][edit] / perEdit, visited[1][edit] / perEdit));
+      assertTrue(EDITS[edit], found[0][edit] >= found[1][edit]);
+      for (int ii = 0; ii < 2; ii++) {
+        totalFound[ii] += found[ii][edit];
+        totalVisited[ii] += visited[ii][edit];
+      }
+    }
+    assertTrue("found " + totalFound[0] + " of " + MISSPELLINGS,
+        totalFound[0] * 10 >= MISSPELLINGS * 9);
+    assertTrue("found " + totalFound[0] + ", was " + totalFound[1],
+        totalFound[0] > totalFound[1] * 2);
+    assertTrue("visited " + totalVisited[0] + ", was " + totalVisited[1],
+        totalVisited[0] < totalVisited[1] * 4);
+  }
+
+  /**
+   * Makes one edit of the given kind to the word, after its first character, which neither
+   * search edits, and types the result with the keys either side of each character as
+   * alternatives.
+   */
+  private static WordComposer misspell(String word, int edit, Random random) {
+    StringBuilder text = new StringBuilder(word);
+    int pos = 1 + random.nextInt(word.length() - 2);
+    switch (edit) {
+      case 0:
+        text.setCharAt(pos, other(word.charAt(pos), random));
+        break;
+      case 1:
+        text.insert(pos, (char) ('a' + random.nextInt(26)));
+        break;
+      case 2:
+        text.deleteCharAt(pos);
+        break;
+      default:
+        text.setCharAt(pos, word.charAt(pos + 1));
+        text.setCharAt(pos + 1, word.charAt(pos));
+        break;
+    }
+    WordComposer typed = new WordComposer();
+    for (int ii = 0; ii < text.length(); ii++) {
+      char c = text.charAt(ii);
+      typed.add(c, new int[]{c, c == 'z' ? 'a' : c + 1, c == 'a' ? 'z' : c - 1, -1});
+    }
+    return typed;
+  }
+
+  private static char other(char c, Random random) {
+    char other;
+    do {
+      other = (char) ('a' + random.nextInt(26));
+    } while (other == c);
+    return other;
+  }
+
+  /**
+   * The search {@link ExpandableDictionary} used to run: a pass matching the input as typed,
+   * then one pass per input position taking that character of the word as missing from the
+   * input. Nothing is pruned and nothing is kept between searches.
+   */
+  private static class MultiPassDictionary extends Dictionary {
+
+    private static final char QUOTE = '\'';
+
+    private final ExpandableDictionary.NodeArray m_roots;
+    private final char[] m_wordBuilder = new char[48];
+    private int[][] m_codes = new int[0][];
+    private int m_inputLength;
+    private int m_maxDepth;
+    private int m_nodesVisited;
+
+    MultiPassDictionary(ExpandableDictionary.NodeArray roots) {
+      m_roots = roots;
+    }
+
+    @Override
+    public void getWords(WordComposer codes, WordCallback callback) {
+      m_inputLength = codes.size();
+      if (m_codes.length < m_inputLength) m_codes = new int[m_inputLength][];
+      for (int i = 0; i < m_inputLength; i++) {
+        m_codes[i] = codes.getCodesAt(i);
+      }
+      m_maxDepth = m_inputLength * 3;
+      m_nodesVisited = 0;
+      getWordsRec(m_roots, codes, m_wordBuilder, 0, false, 1, 0, -1, callback);
+      for (int i = 0; i < m_inputLength; i++) {
+        getWordsRec(m_roots, codes, m_wordBuilder, 0, false, 1, 0, i, callback);
+      }
+    }
+
+    private void getWordsRec(ExpandableDictionary.NodeArray roots, WordComposer codes,
+                             char[] word, int depth, boolean completion, int snr,
+                             int inputIndex, int skipPos, WordCallback callback) {
+      if (depth > m_maxDepth) {
+        return;
+      }
+      int[] currentChars = null;
+      if (m_inputLength <= inputIndex) {
+        completion = true;
+      } else {
+        currentChars = m_codes[inputIndex];
+      }
+      for (int i = 0; i < roots.length; i++) {
+        ExpandableDictionary.Node node = roots.data[i];
+        m_nodesVisited++;
+        char c = node.code;
+        char lowerC = Character.toLowerCase(c);
+        if (completion) {
+          word[depth] = c;
+          if (node.terminal) {
+            if (!callback.addWord(word, 0, depth + 1, node.frequency * snr)) {
+              return;
+            }
+          }
+          if (node.children != null) {
+            getWordsRec(node.children, codes, word, depth + 1, completion, snr, inputIndex,
+                skipPos, callback);
+          }
+        } else if ((c == QUOTE && currentChars[0] != QUOTE) || depth == skipPos) {
+          word[depth] = c;
+          if (node.children != null) {
+            getWordsRec(node.children, codes, word, depth + 1, completion, snr, inputIndex,
+                skipPos, callback);
+          }
+        } else {
+          int alternativesSize = skipPos >= 0 ? 1 : currentChars.length;
+          for (int j = 0; j < alternativesSize; j++) {
+            int addedAttenuation = j > 0 ? 1 : 2;
+            int currentChar = currentChars[j];
+            if (currentChar == -1) {
+              break;
+            }
+            if (currentChar == lowerC || currentChar == c) {
+              word[depth] = c;
+              if (m_inputLength == depth + 1) {
+                if (node.terminal) {
+                  if (INCLUDE_TYPED_WORD_IF_VALID
+                      || !same(word, depth + 1, codes.getTypedWord())) {
+                    int finalFreq = node.frequency * snr * addedAttenuation;
+                    if (skipPos < 0) finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
+                    callback.addWord(word, 0, depth + 1, finalFreq);
+                  }
+                }
+                if (node.children != null) {
+                  getWordsRec(node.children, codes, word, depth + 1, true,
+                      snr * addedAttenuation, inputIndex + 1, skipPos, callback);
+                }
+              } else if (node.children != null) {
+                getWordsRec(node.children, codes, word, depth + 1, false,
+                    snr * addedAttenuation, inputIndex + 1, skipPos, callback);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    @Override
+    public boolean isValidWord(CharSequence word) {
+      return false;
+    }
+
+    @Override
+    public int getNodesVisited() {
+      return m_nodesVisited;
+    }
+  }
+}
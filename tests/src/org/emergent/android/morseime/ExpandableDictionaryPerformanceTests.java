@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Times filling an {@link ExpandableDictionary}, the cost that {@link ExpandableDictionary.NodeArray}
+ * growth and ordering decides, on three made up word lists: lowercase words, capitalized
+ * names like the contacts dictionary's, and short CJK words whose roots have thousands of
+ * children. Each is loaded both the way {@link UserDictionary} and {@link ContactsDictionary}
+ * load, into an unpublished trie, and word by word through the public
+ * {@link ExpandableDictionary#addWord(String, int)}, then looked up word by word. The load and
+ * lookups are also timed on the unsorted trie the dictionary used to have, for comparison.
+ * Reports the best of a few rounds, so the JIT and the heap have settled.
+ *
+ * @author Patrick Woodworth
+ */
+@LargeTest
+public class ExpandableDictionaryPerformanceTests extends AndroidTestCase {
+
+  private static final String TAG = "ExpandableDictionaryPerformanceTests";
+
+  private static final int ROUNDS = 10;
+  private static final int FREQUENCY = 100;
+
+  // Letters in roughly the proportions they appear in English text
+  private static final String LETTERS =
+      "eeeeeeeeeeeettttttttaaaaaaaoooooooiiiiiiinnnnnnnsssssshhhhhhrrrrrrddddllllcccuuummmwwffggyyppbbvkjxqz";
+
+  public void testWords() {
+    measure("50k words", words(50000, 1));
+  }
+
+  public void testNames() {
+    ArrayList<String> names = words(10000, 2);
+    for (int ii = 0; ii < names.size(); ii++) {
+      String name = names.get(ii);
+      names.set(ii, Character.toUpperCase(name.charAt(0)) + name.substring(1));
+    }
+    measure("10k names", names);
+  }
+
+  public void testWideRoots() {
+    Random random = new Random(3);
+    HashSet<String> seen = new HashSet<String>();
+    ArrayList<String> words = new ArrayList<String>();
+    StringBuilder word = new StringBuilder();
+    while (words.size() < 20000) {
+      word.setLength(0);
+      int length = 2 + random.nextInt(2);
+      for (int ii = 0; ii < length; ii++) {
+        word.append((char) (0x4E00 + random.nextInt(3000)));
+      }
+      if (seen.add(word.toString())) words.add(word.toString());
+    }
+    measure("20k CJK words", words);
+  }
+
+  /**
+   * Lookups are timed on the bulk loaded trie before the word by word adds, whose path copies
+   * leave the heap full of garbage.
+   */
+  private void measure(String what, ArrayList<String> words) {
+    final int size = words.size();
+    long bestLoad = Long.MAX_VALUE;
+    long bestAdd = Long.MAX_VALUE;
+    long bestLookup = Long.MAX_VALUE;
+    long bestBaselineLoad = Long.MAX_VALUE;
+    long bestBaselineLookup = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      LinearTrie baseline = new LinearTrie();
+      for (int ii = 0; ii < size; ii++) {
+        baseline.addWord(words.get(ii), FREQUENCY);
+      }
+      bestBaselineLoad = Math.min(bestBaselineLoad, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      int baselineFound = 0;
+      for (int ii = 0; ii < size; ii++) {
+        if (baseline.getWordFrequency(words.get(ii)) == FREQUENCY) baselineFound++;
+      }
+      bestBaselineLookup = Math.min(bestBaselineLookup, System.nanoTime() - start);
+      assertEquals(what, size, baselineFound);
+      // Not left for the dictionary's load to collect
+      baseline = null;
+
+      start = System.nanoTime();
+      ExpandableDictionary loaded = new ExpandableDictionary(getContext());
+      ExpandableDictionary.NodeArray roots = new ExpandableDictionary.NodeArray();
+      for (int ii = 0; ii < size; ii++) {
+        loaded.addWord(roots, words.get(ii), FREQUENCY);
+      }
+      loaded.publish(roots);
+      bestLoad = Math.min(bestLoad, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      int found = 0;
+      for (int ii = 0; ii < size; ii++) {
+        if (loaded.getWordFrequency(words.get(ii)) == FREQUENCY) found++;
+      }
+      bestLookup = Math.min(bestLookup, System.nanoTime() - start);
+      assertEquals(what, size, found);
+
+      start = System.nanoTime();
+      ExpandableDictionary added = new ExpandableDictionary(getContext());
+      for (int ii = 0; ii < size; ii++) {
+        added.addWord(words.get(ii), FREQUENCY);
+      }
+      bestAdd = Math.min(bestAdd, System.nanoTime() - start);
+
+      for (int ii = 0; ii < size; ii += 97) {
+        assertTrue(words.get(ii), added.isValidWord(words.get(ii)));
+      }
+    }
+    Log.i(TAG, String.format("%s: load %.1f ms (unsorted %.1f ms), addWord %.1f ms, " +
+        "lookups %.1f ms (unsorted %.1f ms)", what, bestLoad / 1e6, bestBaselineLoad / 1e6,
+        bestAdd / 1e6, bestLookup / 1e6, bestBaselineLookup / 1e6));
+  }
+
+  /**
+   * The trie as it was before children were kept sorted: each child list grows by two slots at
+   * a time and is scanned from the start, nothing but the code and frequency kept per node.
+   */
+  private static class LinearTrie {
+
+    private static class Node {
+      char m_code;
+      int m_frequency;
+      boolean m_terminal;
+      Node[] m_children = new Node[0];
+      int m_length;
+    }
+
+    private final Node m_root = new Node();
+
+    void addWord(String word, int frequency) {
+      Node node = m_root;
+      for (int ii = 0; ii < word.length(); ii++) {
+        char c = word.charAt(ii);
+        Node child = find(node, c);
+        if (child == null) {
+          child = new Node();
+          child.m_code = c;
+          if (node.m_length == node.m_children.length) {
+            Node[] children = new Node[node.m_length + 2];
+            System.arraycopy(node.m_children, 0, children, 0, node.m_length);
+            node.m_children = children;
+          }
+          node.m_children[node.m_length++] = child;
+        }
+        node = child;
+      }
+      node.m_terminal = true;
+      node.m_frequency = Math.min(Math.max(frequency, node.m_frequency), 255);
+    }
+
+    int getWordFrequency(String word) {
+      Node node = m_root;
+      for (int ii = 0; ii < word.length() && node != null; ii++) {
+        node = find(node, word.charAt(ii));
+      }
+      return node != null && node.m_terminal ? node.m_frequency : -1;
+    }
+
+    private static Node find(Node node, char c) {
+      for (int ii = 0; ii < node.m_length; ii++) {
+        if (node.m_children[ii].m_code == c) return node.m_children[ii];
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Distinct lowercase words of 3 to 12 letters.
+   */
+  static ArrayList<String> words(int count, long seed) {
+    Random random = new Random(seed);
+    HashSet<String> seen = new HashSet<String>();
+    ArrayList<String> words = new ArrayList<String>(count);
+    StringBuilder word = new StringBuilder();
+    while (words.size() < count) {
+      word.setLength(0);
+      int length = 3 + random.nextInt(10);
+      for (int ii = 0; ii < length; ii++) {
+        word.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+      }
+      if (seen.add(word.toString())) words.add(word.toString());
+    }
+    return words;
+  }
+}
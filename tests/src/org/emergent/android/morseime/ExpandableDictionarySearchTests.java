@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Checks how {@link ExpandableDictionary#getWords(WordComposer, Dictionary.WordCallback)} finds
+ * its words: that pruning against the collector's threshold only skips words that couldn't
+ * have made the list, that the frontier kept between searches saves work without changing
+ * what's found, and how each kind of edit is found and ranked.
+ *
+ * @author Patrick Woodworth
+ */
+@SmallTest
+public class ExpandableDictionarySearchTests extends TestCase {
+
+  // Suggestions kept, as many as Suggest keeps by default
+  private static final int SIZE = 12;
+
+  private static final int FREQUENCY = 100;
+
+  // Short prefixes with big subtrees to complete, where pruning pays
+  private static final String[] PREFIXES = {"t", "th", "the", "a", "an", "s", "st"};
+
+  // Mostly matching edits, where the frontier takes most of the visits
+  private static final String[] MISSPELLINGS = {"inter", "hose", "nothign", "tehir"};
+
+  private ArrayList<String> m_words;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_words = ExpandableDictionaryPerformanceTests.words(50000, 1);
+    m_words.add("the");
+    m_words.add("their");
+    m_words.add("house");
+    m_words.add("nothing");
+  }
+
+  /**
+   * Runs every query against two copies of the same dictionary, the one collector never
+   * raising its threshold, and compares the lists they end up with and the nodes visited.
+   * Each copy sees the same queries in the same order, so their frontiers match.
+   */
+  public void testThresholdPrunesOnlyLosers() {
+    ExpandableDictionary unpruned = load();
+    ExpandableDictionary pruned = load();
+    int[] prefixVisits = compare(unpruned, pruned, PREFIXES);
+    assertTrue("visited " + prefixVisits[1] + " of " + prefixVisits[0],
+        prefixVisits[1] * 2 < prefixVisits[0]);
+    compare(unpruned, pruned, MISSPELLINGS);
+  }
+
+  /**
+   * @return the nodes visited without pruning and with it, over all the queries
+   */
+  private static int[] compare(ExpandableDictionary unpruned, ExpandableDictionary pruned,
+                               String[] queries) {
+    int[] visited = new int[2];
+    for (String query : queries) {
+      Collector all = new Collector(false);
+      unpruned.getWords(type(query), all);
+      Collector best = new Collector(true);
+      pruned.getWords(type(query), best);
+      assertEquals(query, all.toString(), best.toString());
+      assertTrue(query, pruned.getNodesVisited() <= unpruned.getNodesVisited());
+      visited[0] += unpruned.getNodesVisited();
+      visited[1] += pruned.getNodesVisited();
+    }
+    return visited;
+  }
+
+  /**
+   * Types each word a key at a time, searching after every key as the IME does, then deletes
+   * and retypes the last key and finally repeats the search. Retyping only matches the one
+   * character against the kept frontier, so it visits fewer nodes than a dictionary searching
+   * the word from scratch, and repeating matches nothing at all, visiting fewer still. All
+   * three find the same words.
+   */
+  public void testRetypingReusesFrontier() {
+    ExpandableDictionary incremental = load();
+    for (String text : new String[]{"the", "inter", "nothign", "tehir"}) {
+      WordComposer word = new WordComposer();
+      for (int ii = 0; ii < text.length(); ii++) {
+        add(word, text.charAt(ii));
+        incremental.getWords(word, new Collector(true));
+      }
+      Collector fromScratch = new Collector(true);
+      ExpandableDictionary fresh = load();
+      fresh.getWords(type(text), fromScratch);
+
+      word.deleteLast();
+      incremental.getWords(word, new Collector(true));
+      add(word, text.charAt(text.length() - 1));
+      Collector retyped = new Collector(true);
+      incremental.getWords(word, retyped);
+      int visitedRetyped = incremental.getNodesVisited();
+      assertEquals(text, fromScratch.toString(), retyped.toString());
+      assertTrue(text + " visited " + visitedRetyped + " retyped, " + fresh.getNodesVisited() +
+          " from scratch", visitedRetyped < fresh.getNodesVisited());
+
+      Collector repeated = new Collector(true);
+      incremental.getWords(word, repeated);
+      assertEquals(text, fromScratch.toString(), repeated.toString());
+      assertTrue(text + " visited " + incremental.getNodesVisited() + " repeated, " +
+          visitedRetyped + " retyped", incremental.getNodesVisited() < visitedRetyped);
+    }
+  }
+
+  /**
+   * A word added after the frontier was kept is found, since the frontier belongs to the trie
+   * it was built over.
+   */
+  public void testPublishingDropsFrontier() {
+    ExpandableDictionary dictionary = load();
+    WordComposer word = new WordComposer();
+    for (char c : "zyzz".toCharArray()) {
+      add(word, c);
+      dictionary.getWords(word, new Collector(true));
+    }
+    dictionary.addWord("zyzzyva", 255);
+    Collector collector = new Collector(true);
+    dictionary.getWords(word, collector);
+    assertTrue(collector.toString(), collector.toString().startsWith("zyzzyva:"));
+  }
+
+  /**
+   * A key typed instead of the right one. The substituted character only weighs as much as a
+   * nearby key would.
+   */
+  public void testSubstitution() {
+    assertEquals(FREQUENCY * weights(4) / ExpandableDictionary.SUBSTITUTION_PENALTY,
+        score("hpuse", "house"));
+  }
+
+  /**
+   * An extra key typed by mistake, which still weighs as a typed key.
+   */
+  public void testInsertion() {
+    assertEquals(FREQUENCY * weights(5) / ExpandableDictionary.INSERTION_PENALTY,
+        score("hoxuse", "house"));
+  }
+
+  /**
+   * A character missing from the input, which weighs nothing.
+   */
+  public void testDeletion() {
+    assertEquals(FREQUENCY * weights(4) / ExpandableDictionary.DELETION_PENALTY,
+        score("huse", "house"));
+  }
+
+  /**
+   * Two keys typed the wrong way round, both weighing as typed keys.
+   */
+  public void testTransposition() {
+    assertEquals(FREQUENCY * weights(5) / ExpandableDictionary.TRANSPOSITION_PENALTY,
+        score("hosue", "house"));
+  }
+
+  /**
+   * The first character is trusted, and input too short to say much about the word isn't
+   * edited at all.
+   */
+  public void testEditsNeedRoom() {
+    assertEquals(-1, score("xouse", "house"));
+    assertEquals(-1, score("hp", "house"));
+    assertTrue(score("hpu", "house") > 0);
+  }
+
+  /**
+   * Words one edit of each kind away from the same input, at the same frequency: swapped and
+   * missing characters, which keep every typed key, rank above substituted and extra ones.
+   */
+  public void testEditRanking() {
+    ExpandableDictionary dictionary = new ExpandableDictionary(null);
+    String[] words = {"crate", "charte", "caste", "cart"};
+    for (String word : words) {
+      dictionary.addWord(word, FREQUENCY);
+    }
+    Scores scores = new Scores();
+    dictionary.getWords(type("carte"), scores);
+    int transposed = scores.get("crate");
+    int deleted = scores.get("charte");
+    int substituted = scores.get("caste");
+    int inserted = scores.get("cart");
+    assertTrue(substituted > 0);
+    assertEquals(transposed, deleted);
+    assertEquals(substituted, inserted);
+    assertTrue(deleted > substituted);
+  }
+
+  /**
+   * The best score a word got searching for the typed text in a dictionary of just that word,
+   * or -1 if it wasn't found.
+   */
+  private static int score(String typed, String word) {
+    ExpandableDictionary dictionary = new ExpandableDictionary(null);
+    dictionary.addWord(word, FREQUENCY);
+    Scores scores = new Scores();
+    dictionary.getWords(type(typed), scores);
+    return scores.get(word);
+  }
+
+  /**
+   * The weight of a path through the given number of typed keys.
+   */
+  private static int weights(int typed) {
+    int weight = 1;
+    for (int ii = 0; ii < typed; ii++) {
+      weight *= ExpandableDictionary.TYPED_WEIGHT;
+    }
+    return weight;
+  }
+
+  private ExpandableDictionary load() {
+    ExpandableDictionary dictionary = new ExpandableDictionary(null);
+    ExpandableDictionary.NodeArray roots = new ExpandableDictionary.NodeArray();
+    for (int ii = 0; ii < m_words.size(); ii++) {
+      dictionary.addWord(roots, m_words.get(ii), 1 + ii * 37 % 255);
+    }
+    dictionary.publish(roots);
+    return dictionary;
+  }
+
+  private static WordComposer type(String text) {
+    WordComposer word = new WordComposer();
+    for (int ii = 0; ii < text.length(); ii++) {
+      add(word, text.charAt(ii));
+    }
+    return word;
+  }
+
+  private static void add(WordComposer word, char c) {
+    word.add(c, new int[]{c, -1, -1, -1});
+  }
+
+  /**
+   * Keeps the best score offered for each word.
+   */
+  private static class Scores implements Dictionary.WordCallback {
+
+    private final HashMap<String, Integer> m_scores = new HashMap<String, Integer>();
+
+    public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency) {
+      String key = new String(word, wordOffset, wordLength);
+      m_scores.put(key, Math.max(get(key), frequency));
+      return true;
+    }
+
+    public int getThreshold() {
+      return 0;
+    }
+
+    int get(String word) {
+      Integer score = m_scores.get(word);
+      return score == null ? -1 : score;
+    }
+  }
+
+  /**
+   * Keeps the best words as Suggest does, turning away words no better than the worst kept
+   * once the list is full and keeping the best score of a word offered more than once. Only
+   * tells the dictionary about that threshold if asked to.
+   */
+  static class Collector implements Dictionary.WordCallback {
+
+    private final boolean m_prune;
+    private final String[] m_words = new String[SIZE];
+    private final int[] m_scores = new int[SIZE];
+    private int m_count;
+
+    Collector(boolean prune) {
+      m_prune = prune;
+    }
+
+    public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency) {
+      if (frequency <= (m_count == SIZE ? m_scores[SIZE - 1] : 0)) return true;
+      String kept = new String(word, wordOffset, wordLength);
+      int pos = indexOf(kept);
+      if (pos >= 0) {
+        if (m_scores[pos] >= frequency) return true;
+      } else {
+        pos = Math.min(m_count, SIZE - 1);
+        if (m_count < SIZE) m_count++;
+      }
+      while (pos > 0 && m_scores[pos - 1] < frequency) {
+        m_words[pos] = m_words[pos - 1];
+        m_scores[pos] = m_scores[pos - 1];
+        pos--;
+      }
+      m_words[pos] = kept;
+      m_scores[pos] = frequency;
+      return true;
+    }
+
+    boolean contains(String word) {
+      return indexOf(word) >= 0;
+    }
+
+    private int indexOf(String word) {
+      for (int ii = 0; ii < m_count; ii++) {
+        if (m_words[ii].equals(word)) return ii;
+      }
+      return -1;
+    }
+
+    public int getThreshold() {
+      return m_prune && m_count == SIZE ? m_scores[SIZE - 1] : 0;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder list = new StringBuilder();
+      for (int ii = 0; ii < m_count; ii++) {
+        list.append(m_words[ii]).append(':').append(m_scores[ii]).append(' ');
+      }
+      return list.toString();
+    }
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+/**
+ * Works the paddles of an {@link IambicKeyer} on a {@link VirtualMorseClock} and checks the
+ * elements it sends, and when, in Curtis modes A and B. Times are in units at 20 wpm.
+ *
+ * @author Patrick Woodworth
+ */
+@SmallTest
+public class IambicKeyerTests extends TestCase {
+
+  private static final int WPM = 20;
+  private static final long UNIT = MorseDecoder.calcNanos(1, WPM);
+
+  private VirtualMorseClock m_clock;
+  private IambicKeyer m_keyer;
+  private StringBuilder m_sent;
+  private StringBuilder m_decoded;
+  private MorseDecoder m_decoder;
+  private long[] m_starts;
+  private long[] m_ends;
+  private long m_downAt;
+  private long m_origin;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_clock = new VirtualMorseClock();
+    m_sent = new StringBuilder();
+    m_decoded = new StringBuilder();
+    m_starts = new long[64];
+    m_ends = new long[64];
+    m_decoder = new MorseDecoder(m_clock, new MorseDecoder.Listener() {
+      public void onCharacter(char theChar, int[] codes, int ditDahBits, int ditDahCount) {
+        m_decoded.append(theChar);
+      }
+
+      public void onWordGap() {
+        m_decoded.append(' ');
+      }
+    });
+    m_decoder.setWordsPerMinute(WPM);
+    m_decoder.setKeyed(true);
+    m_keyer = new IambicKeyer(new IambicKeyer.Listener() {
+      public void onKeyDown(long when) {
+        assertEquals("key down while down", -1, m_downAt);
+        m_downAt = when;
+        m_decoder.keyDown(when);
+      }
+
+      public void onKeyUp(boolean isDit, long when) {
+        m_starts[m_sent.length()] = m_downAt;
+        m_ends[m_sent.length()] = when;
+        m_sent.append(isDit ? '.' : '-');
+        m_downAt = -1;
+        m_decoder.keyUp(when, isDit);
+      }
+    });
+    m_keyer.setWordsPerMinute(WPM);
+    m_downAt = -1;
+  }
+
+  public void testHeldDitRepeats() {
+    for (IambicKeyer.Mode mode : IambicKeyer.Mode.values()) {
+      restart(mode);
+      paddles(0, true, false);
+      paddles(5.5, false, false);
+      finish();
+      assertEquals(mode.toString(), "...", m_sent.toString());
+      assertTiming(0, 1, 2, 3, 4, 5);
+    }
+  }
+
+  public void testHeldDahRepeats() {
+    for (IambicKeyer.Mode mode : IambicKeyer.Mode.values()) {
+      restart(mode);
+      paddles(0, false, true);
+      paddles(7.5, false, false);
+      finish();
+      assertEquals(mode.toString(), "--", m_sent.toString());
+      assertTiming(0, 3, 4, 7);
+    }
+  }
+
+  public void testSqueezeAlternatesStartingWithDit() {
+    for (IambicKeyer.Mode mode : IambicKeyer.Mode.values()) {
+      restart(mode);
+      paddles(0, true, true);
+      paddles(9.5, false, false);
+      finish();
+      // released during the fourth element, a dah from 8 to 11
+      assertEquals(mode.toString(), mode == IambicKeyer.Mode.A ? ".-.-" : ".-.-.",
+          m_sent.toString());
+    }
+  }
+
+  public void testModeAStopsWhenSqueezeIsReleased() {
+    restart(IambicKeyer.Mode.A);
+    paddles(0, true, true);
+    // released during the dah from 2 to 5
+    paddles(3, false, false);
+    finish();
+    assertEquals(".-", m_sent.toString());
+    assertTiming(0, 1, 2, 5);
+  }
+
+  public void testModeBAddsOppositeElementWhenSqueezeIsReleased() {
+    restart(IambicKeyer.Mode.B);
+    paddles(0, true, true);
+    paddles(3, false, false);
+    finish();
+    assertEquals(".-.", m_sent.toString());
+    assertTiming(0, 1, 2, 5, 6, 7);
+  }
+
+  /**
+   * A squeeze started on the dah paddle and released during the third element keys a C in
+   * mode B, and a K in mode A.
+   */
+  public void testSqueezedLetterDependsOnMode() {
+    restart(IambicKeyer.Mode.B);
+    paddles(0, false, true);
+    paddles(0.5, true, true);
+    paddles(7, false, false);
+    finish();
+    assertEquals("-.-.", m_sent.toString());
+    assertEquals("c", m_decoded.toString());
+
+    restart(IambicKeyer.Mode.A);
+    paddles(0, false, true);
+    paddles(0.5, true, true);
+    paddles(7, false, false);
+    finish();
+    assertEquals("-.-", m_sent.toString());
+    assertEquals("k", m_decoded.toString());
+  }
+
+  /**
+   * A dit paddle tapped and let go while a dah is being sent is remembered and sent after
+   * it, in either mode.
+   */
+  public void testDitMemory() {
+    for (IambicKeyer.Mode mode : IambicKeyer.Mode.values()) {
+      restart(mode);
+      paddles(0, false, true);
+      paddles(0.5, false, false);
+      paddles(1, true, false);
+      paddles(1.5, false, false);
+      finish();
+      assertEquals(mode.toString(), "-.", m_sent.toString());
+      assertTiming(0, 3, 4, 5);
+    }
+  }
+
+  public void testDahMemory() {
+    for (IambicKeyer.Mode mode : IambicKeyer.Mode.values()) {
+      restart(mode);
+      paddles(0, true, false);
+      paddles(0.25, false, false);
+      paddles(0.5, false, true);
+      paddles(0.75, false, false);
+      finish();
+      assertEquals(mode.toString(), ".-", m_sent.toString());
+      assertTiming(0, 1, 2, 5);
+    }
+  }
+
+  /**
+   * The opposite paddle pressed during the spacing after an element is remembered too.
+   */
+  public void testMemoryDuringSpacing() {
+    restart(IambicKeyer.Mode.A);
+    paddles(0, true, false);
+    paddles(0.5, false, false);
+    paddles(1.5, false, true);
+    paddles(1.75, false, false);
+    finish();
+    assertEquals(".-", m_sent.toString());
+    assertTiming(0, 1, 2, 5);
+  }
+
+  public void testReleasedPaddleSendsNothingMore() {
+    restart(IambicKeyer.Mode.B);
+    paddles(0, true, false);
+    paddles(0.5, false, false);
+    finish();
+    assertEquals(".", m_sent.toString());
+    assertTrue(m_keyer.isIdle());
+    assertEquals(MorseDecoder.NO_DEADLINE, m_keyer.getDeadline());
+  }
+
+  /**
+   * Elements are timed from the deadlines, not from when the keyer gets to run, so catching
+   * up late sends the same elements at the same times.
+   */
+  public void testLateAdvanceDoesNotMoveElements() {
+    restart(IambicKeyer.Mode.B);
+    m_keyer.setPaddles(true, true, at(0));
+    m_clock.advanceTo(at(9.5));
+    m_keyer.setPaddles(false, false, at(9.5));
+    m_clock.advanceTo(at(20));
+    m_keyer.advance(at(20));
+    assertEquals(".-.-.", m_sent.toString());
+    assertTiming(0, 1, 2, 5, 6, 7, 8, 11, 12, 13);
+  }
+
+  private void restart(IambicKeyer.Mode mode) {
+    m_keyer.reset();
+    m_keyer.setMode(mode);
+    m_decoder.reset();
+    m_sent.setLength(0);
+    m_decoded.setLength(0);
+    m_downAt = -1;
+    // well clear of whatever was keyed before
+    m_clock.advance(100 * UNIT);
+    m_origin = m_clock.nanoTime();
+  }
+
+  private long at(double units) {
+    return m_origin + (long) (units * UNIT);
+  }
+
+  /**
+   * Runs the keyer's deadlines up to the given time, then sets the paddles then.
+   */
+  private void paddles(double units, boolean dit, boolean dah) {
+    runUntil(at(units));
+    m_keyer.setPaddles(dit, dah, m_clock.nanoTime());
+  }
+
+  private void finish() {
+    runUntil(MorseDecoder.NO_DEADLINE);
+    m_decoder.drain(m_clock);
+  }
+
+  private void runUntil(long until) {
+    long deadline;
+    while ((deadline = m_keyer.getDeadline()) != MorseDecoder.NO_DEADLINE && deadline <= until) {
+      m_clock.advanceTo(deadline);
+      m_keyer.advance(m_clock.nanoTime());
+    }
+    if (until != MorseDecoder.NO_DEADLINE)
+      m_clock.advanceTo(until);
+  }
+
+  /**
+   * @param units the start and end of each element sent, in units from the restart
+   */
+  private void assertTiming(double... units) {
+    assertEquals("elements", units.length / 2, m_sent.length());
+    for (int ii = 0; ii < m_sent.length(); ii++) {
+      assertEquals("start of element " + ii, at(units[2 * ii]), m_starts[ii]);
+      assertEquals("end of element " + ii, at(units[2 * ii + 1]), m_ends[ii]);
+    }
+  }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Replays keyed text through a {@link MorseDecoder} on a {@link VirtualMorseClock}, with the
+ * main thread stalling for a random while before it gets to each touch and each scheduled
+ * deadline. As on the device, the stalled work is still handled in the order it was queued,
+ * and each touch is handed over stamped with its event time, which is what
+ * {@code MorseIME.DitDahHandlerCallback.toDecoderTime} reconstructs from the event uptime.
+ * <p/>
+ * The decoder is also checked element by element: when a gap commits, how a hold is
+ * classified, on its own and under jitter, and which near misses are handed over with each
+ * character.
+ *
+ * @author Patrick Woodworth
+ */
+@SmallTest
+public class MorseDecoderTests extends TestCase {
+
+  private static final String TEXT = "the quick brown fox jumps over the lazy dog 0123456789";
+
+  private static final int REPEATS = 20;
+
+  private VirtualMorseClock m_clock;
+  private MorseDecoder m_decoder;
+  private StringBuilder m_decoded;
+  private long m_characterAt;
+  private long m_wordGapAt;
+  private int[] m_codes;
+
+  /**
+   * Starts over with a new decoder on a new clock.
+   */
+  private void newDecoder(int wpm, boolean keyed) {
+    m_clock = new VirtualMorseClock();
+    m_decoded = new StringBuilder();
+    m_decoder = new MorseDecoder(m_clock, new MorseDecoder.Listener() {
+      public void onCharacter(char theChar, int[] codes, int ditDahBits, int ditDahCount) {
+        m_decoded.append(theChar);
+        m_characterAt = m_clock.nanoTime();
+        m_codes = codes != null ? codes.clone() : null;
+      }
+
+      public void onWordGap() {
+        m_decoded.append(' ');
+        m_wordGapAt = m_clock.nanoTime();
+      }
+    });
+    m_decoder.setAutoSpace(true);
+    m_decoder.setWordsPerMinute(wpm);
+    m_decoder.setKeyed(keyed);
+  }
+
+  public void testStraightKeyWithoutDelay() {
+    assertStraightKeyDecodes(20, 0);
+  }
+
+  public void testStraightKeyIgnoresDispatchDelay() {
+    assertStraightKeyDecodes(15, 100);
+    assertStraightKeyDecodes(30, 50);
+    assertStraightKeyDecodes(30, 100);
+    assertStraightKeyDecodes(45, 50);
+  }
+
+  public void testTappedElementsWithoutDelay() {
+    assertTappedDecodes(20, 0);
+  }
+
+  public void testTappedElementsIgnoreDispatchDelay() {
+    assertTappedDecodes(15, 100);
+    assertTappedDecodes(30, 100);
+    assertTappedDecodes(45, 50);
+  }
+
+  /**
+   * The same replay with each touch stamped when it's handled garbles the text, so the
+   * delays above are big enough to matter.
+   */
+  public void testArrivalTimesAreThrownByDispatchDelay() {
+    newDecoder(30, true);
+    replay(straightKeyEvents(30), true, 100, false);
+    assertFalse(expected().equals(m_decoded.toString()));
+  }
+
+  /**
+   * A tapped character is committed right at the character gap, three units after its last
+   * element, and a word gap right at seven, however often the decoder is advanced before.
+   */
+  public void testTappedCharacterCommitsAtCharacterGap() {
+    newDecoder(20, false);
+    long unit = MorseDecoder.calcNanos(1, 20);
+    long last = 10 * unit;
+    m_decoder.addElement(true, 8 * unit);
+    m_decoder.addElement(false, last);
+    assertEquals(last + 3 * unit, m_decoder.getDeadline());
+    for (long now = last; now < last + 3 * unit; now += unit / 7) {
+      m_decoder.advance(now);
+    }
+    assertEquals("", m_decoded.toString());
+    m_decoder.drain(m_clock);
+    assertEquals("a ", m_decoded.toString());
+    assertEquals(last + 3 * unit, m_characterAt);
+    assertEquals(last + 7 * unit, m_wordGapAt);
+    assertEquals(3 * unit, m_decoder.getCommitLatencyMax());
+  }
+
+  /**
+   * A keyed gap is timed from the key-up, so the character is committed halfway between
+   * the one unit element gap and the three unit character gap, and the word gap halfway
+   * between three and seven units.
+   */
+  public void testKeyedCharacterCommitsAtCharacterGap() {
+    newDecoder(20, true);
+    long unit = MorseDecoder.calcNanos(1, 20);
+    m_decoder.keyDown(0);
+    m_decoder.keyUp(unit);
+    m_decoder.keyDown(2 * unit);
+    assertEquals(MorseDecoder.NO_DEADLINE, m_decoder.getDeadline());
+    m_decoder.advance(10 * unit);
+    assertEquals("", m_decoded.toString());
+    long keyUp = 13 * unit;
+    m_decoder.keyUp(keyUp);
+    assertEquals(keyUp + 2 * unit, m_decoder.getDeadline());
+    m_clock.advanceTo(keyUp);
+    m_decoder.drain(m_clock);
+    assertEquals("a ", m_decoded.toString());
+    assertEquals(keyUp + 2 * unit, m_characterAt);
+    assertEquals(keyUp + 5 * unit, m_wordGapAt);
+  }
+
+  /**
+   * A keyed element held for less than two units is a dit and from two units on a dah, at
+   * any speed.
+   */
+  public void testKeyedHoldIsClassifiedAtTwoUnits() {
+    for (int wpm = 5; wpm <= 50; wpm += 15) {
+      newDecoder(wpm, true);
+      long unit = MorseDecoder.calcNanos(1, wpm);
+      m_decoder.keyDown(0);
+      m_decoder.keyUp(2 * unit - 1);
+      m_decoder.keyDown(20 * unit);
+      m_decoder.keyUp(22 * unit);
+      m_decoder.drain(m_clock);
+      assertEquals(wpm + "wpm", "e t ", m_decoded.toString());
+    }
+  }
+
+  /**
+   * Holds and gaps off by up to a quarter still fall on their own side of every threshold:
+   * dits stay under two units and dahs over, element gaps under the two unit character gap
+   * and character gaps under the five unit word gap.
+   */
+  public void testJitteredStraightKeyDecodes() {
+    for (int wpm = 10; wpm <= 40; wpm += 15) {
+      newDecoder(wpm, true);
+      replay(straightKeyEvents(wpm, 0.25f, new Random(wpm)), true, 0, true);
+      assertEquals(wpm + "wpm", expected(), m_decoded.toString());
+    }
+  }
+
+  /**
+   * Holds off by a half cross the thresholds, so the test above is not passing by accident.
+   */
+  public void testHeavilyJitteredStraightKeyIsMisread() {
+    newDecoder(20, true);
+    replay(straightKeyEvents(20, 0.5f, new Random(20)), true, 0, true);
+    assertFalse(expected().equals(m_decoded.toString()));
+  }
+
+  /**
+   * Nominally keyed elements are outside {@code MorseDecoder.MAX_CONFUSION_RATIO} of every
+   * threshold, so no near miss is offered.
+   */
+  public void testNominalKeyingHasNoNearMisses() {
+    assertCodes("a", keyCodes(1, 1, 3));
+    assertCodes("s", keyCodes(1, 1, 1, 1, 1));
+  }
+
+  /**
+   * A dit held close to the two unit threshold could have been a dah.
+   */
+  public void testLongDitOffersFlippedElement() {
+    assertCodes("am", keyCodes(1.8, 1, 3));
+  }
+
+  /**
+   * An element gap close to the two unit character gap could have ended the character.
+   */
+  public void testLongElementGapOffersSplitCharacter() {
+    assertCodes("ae", keyCodes(1, 1.7, 3));
+  }
+
+  /**
+   * Near misses follow the decoded character, the one that came nearest its threshold
+   * first.
+   */
+  public void testNearMissesAreRankedByRatio() {
+    // the dit is 2 / 1.8 = 1.11 from the threshold and the dah 2.4 / 2 = 1.2
+    assertCodes("ami", keyCodes(1.8, 1, 2.4));
+    // the dit is 2 / 1.6 = 1.25 from the threshold and the dah 2.2 / 2 = 1.1
+    assertCodes("aim", keyCodes(1.6, 1, 2.2));
+  }
+
+  /**
+   * Of five near misses only the three nearest fit in {@link MorseDecoder#MAX_CODES}: the
+   * flipped first dit (1.05), the split after it (1.11) and the flipped second dit (1.18)
+   * beat the split after the second dit (1.25) and the flipped third dit (1.33).
+   */
+  public void testNearMissesAreCappedAtMaxCodes() {
+    assertEquals(4, MorseDecoder.MAX_CODES);
+    assertCodes("sder", keyCodes(1.9, 1.8, 1.7, 1.6, 1.5));
+  }
+
+  /**
+   * A sequence that is no character at all is read as its nearest valid near miss, and
+   * dropped if it has none.
+   */
+  public void testInvalidSequenceFallsBackToNearMiss() {
+    // ..-- is unassigned; holding its last dah short makes ..-. an f
+    assertCodes("f", keyCodes(1, 1, 1, 1, 3, 1, 2.2));
+    assertNull(keyCodes(1, 1, 1, 1, 3, 1, 3));
+    assertEquals(MorseDigraph.NO_CHAR, m_decoded.charAt(m_decoded.length() - 2));
+  }
+
+  /**
+   * Tapped elements cannot be mistimed into the other kind, so only their gaps can offer
+   * near misses.
+   */
+  public void testTappedElementsAreNeverFlipped() {
+    newDecoder(20, false);
+    long unit = MorseDecoder.calcNanos(1, 20);
+    m_decoder.addElement(true, 0);
+    m_decoder.addElement(false, 2 * unit);
+    m_decoder.drain(m_clock);
+    assertCodes("a", m_codes);
+    // 3 / 2.5 = 1.2 from the three unit character gap
+    m_decoder.addElement(true, 20 * unit);
+    m_decoder.addElement(false, 20 * unit + 5 * unit / 2);
+    m_decoder.drain(m_clock);
+    assertCodes("ae", m_codes);
+  }
+
+  /**
+   * Keys one character at 20 wpm on a new straight key decoder.
+   *
+   * @param units hold, gap, hold, gap and so on, in units
+   * @return the codes handed over for the character
+   */
+  private int[] keyCodes(double... units) {
+    newDecoder(20, true);
+    long unit = MorseDecoder.calcNanos(1, 20);
+    long time = unit;
+    for (int ii = 0; ii < units.length; ii++) {
+      if (ii % 2 == 0)
+        m_decoder.keyDown(time);
+      time += (long) (units[ii] * unit);
+      if (ii % 2 == 0)
+        m_decoder.keyUp(time);
+    }
+    m_decoder.drain(m_clock);
+    return m_codes;
+  }
+
+  private static void assertCodes(String expected, int[] codes) {
+    assertNotNull(expected, codes);
+    assertEquals(MorseDecoder.MAX_CODES, codes.length);
+    for (int ii = 0; ii < codes.length; ii++) {
+      int code = ii < expected.length() ? expected.charAt(ii) : -1;
+      assertEquals(expected + " at " + ii, code, codes[ii]);
+    }
+  }
+
+  private void assertStraightKeyDecodes(int wpm, int maxDelayMillis) {
+    newDecoder(wpm, true);
+    replay(straightKeyEvents(wpm), true, maxDelayMillis, true);
+    assertEquals(wpm + "wpm, delays up to " + maxDelayMillis + "ms", expected(),
+        m_decoded.toString());
+  }
+
+  private void assertTappedDecodes(int wpm, int maxDelayMillis) {
+    newDecoder(wpm, false);
+    replay(tapEvents(wpm), false, maxDelayMillis, true);
+    assertEquals(wpm + "wpm, delays up to " + maxDelayMillis + "ms", expected(),
+        m_decoded.toString());
+  }
+
+  private static String expected() {
+    StringBuilder text = new StringBuilder();
+    for (int ii = 0; ii < REPEATS; ii++) {
+      text.append(TEXT).append(' ');
+    }
+    return text.toString();
+  }
+
+  /**
+   * Key down and key up times at nominal spacing: down for a unit per dit and three per dah,
+   * up for a unit between elements, three between characters and seven between words. The
+   * times are in pairs, even for down and odd for up.
+   */
+  private static long[] straightKeyEvents(int wpm) {
+    return straightKeyEvents(wpm, 0, null);
+  }
+
+  /**
+   * Key down and key up times with each hold and each part of a gap stretched or shrunk by
+   * up to the given fraction of itself.
+   */
+  private static long[] straightKeyEvents(int wpm, float jitter, Random random) {
+    final long unit = MorseDecoder.calcNanos(1, wpm);
+    final String text = expected();
+    long[] events = new long[2 * countElements(text)];
+    int count = 0;
+    long time = unit;
+    for (int ii = 0; ii < text.length(); ii++) {
+      char theChar = text.charAt(ii);
+      if (theChar == ' ') {
+        time += jitter(4 * unit, jitter, random);
+        continue;
+      }
+      String encoding = encodingOf(theChar);
+      for (int jj = 0; jj < encoding.length(); jj++) {
+        events[count++] = time;
+        time += jitter(encoding.charAt(jj) == '.' ? unit : 3 * unit, jitter, random);
+        events[count++] = time;
+        time += jitter(unit, jitter, random);
+      }
+      time += jitter(2 * unit, jitter, random);
+    }
+    return events;
+  }
+
+  private static long jitter(long nanos, float jitter, Random random) {
+    if (jitter == 0)
+      return nanos;
+    return nanos + (long) (nanos * jitter * (2 * random.nextFloat() - 1));
+  }
+
+  /**
+   * Tap times for the dit and dah keys, each followed by 1 for a dit or 0 for a dah: taps two
+   * units apart within a character, five apart between characters and ten between words.
+   */
+  private static long[] tapEvents(int wpm) {
+    final long unit = MorseDecoder.calcNanos(1, wpm);
+    final String text = expected();
+    long[] events = new long[2 * countElements(text)];
+    int count = 0;
+    long time = unit;
+    for (int ii = 0; ii < text.length(); ii++) {
+      char theChar = text.charAt(ii);
+      if (theChar == ' ') {
+        time += 5 * unit;
+        continue;
+      }
+      String encoding = encodingOf(theChar);
+      for (int jj = 0; jj < encoding.length(); jj++) {
+        events[count++] = time;
+        events[count++] = encoding.charAt(jj) == '.' ? 1 : 0;
+        time += 2 * unit;
+      }
+      time += 3 * unit;
+    }
+    return events;
+  }
+
+  /**
+   * Hands the events to the decoder, and runs its deadlines, the way the main thread does:
+   * whichever comes first is handled first, each after a random stall that pushes back
+   * everything behind it.
+   *
+   * @param keyed       whether the events are key down and up pairs rather than taps
+   * @param atEventTime whether the events are stamped with their event times, as the IME
+   *                    does, or with the time they are handled
+   */
+  private void replay(long[] events, boolean keyed, int maxDelayMillis, boolean atEventTime) {
+    final Random random = new Random(42);
+    int next = 0;
+    while (next < events.length || m_decoder.getDeadline() != MorseDecoder.NO_DEADLINE) {
+      long deadline = m_decoder.getDeadline();
+      long stall = MorseClock.fromMillis(random.nextInt(maxDelayMillis + 1));
+      if (next < events.length && events[next] <= deadline) {
+        final long eventTime = events[next];
+        m_clock.advanceTo(eventTime + stall);
+        final long when = atEventTime ? eventTime : m_clock.nanoTime();
+        if (!keyed) {
+          m_decoder.addElement(events[next + 1] == 1, when);
+          next += 2;
+        } else if (next % 2 == 0) {
+          m_decoder.keyDown(when);
+          next++;
+        } else {
+          m_decoder.keyUp(when);
+          next++;
+        }
+      } else {
+        m_clock.advanceTo(deadline + stall);
+        m_decoder.advance(m_clock.nanoTime());
+      }
+    }
+  }
+
+  private static int countElements(String text) {
+    int count = 0;
+    for (int ii = 0; ii < text.length(); ii++) {
+      if (text.charAt(ii) != ' ')
+        count += encodingOf(text.charAt(ii)).length();
+    }
+    return count;
+  }
+
+  private static String encodingOf(char theChar) {
+    for (MorseDigraph digraph : MorseDigraph.values()) {
+      if (digraph.getChar() == theChar)
+        return digraph.getEncoding();
+    }
+    throw new IllegalArgumentException("No digraph for " + theChar);
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import junit.framework.TestCase;
+
+import java.util.EnumSet;
+
+/**
+ * Times {@link MorseDigraph#charOfPattern} against the lookup the decoder made before the
+ * pattern table: the keyed elements built up as a string of '.' and '-' and matched against
+ * every digraph's encoding in turn, with an exception for a sequence that isn't morse.
+ *
+ * @author Patrick Woodworth
+ */
+@LargeTest
+public class MorseDigraphPerformanceTests extends TestCase {
+
+  private static final String TAG = "MorseDigraphPerformanceTests";
+
+  private static final int ITERATIONS = 20000;
+
+  // Sequences that aren't morse, the slow path of the old lookup
+  private static final String[] MISSES = { ".......", "-------", "..--..-", "---.-", ".-.-" };
+
+  private String[] m_hits;
+  private int[] m_hitBits;
+  private int[] m_missBits;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    MorseDigraph[] digraphs = MorseDigraph.values();
+    m_hits = new String[digraphs.length];
+    m_hitBits = new int[digraphs.length];
+    for (int ii = 0; ii < digraphs.length; ii++) {
+      m_hits[ii] = digraphs[ii].getEncoding();
+      m_hitBits[ii] = pack(m_hits[ii]);
+    }
+    m_missBits = new int[MISSES.length];
+    for (int ii = 0; ii < MISSES.length; ii++) {
+      m_missBits[ii] = pack(MISSES[ii]);
+    }
+  }
+
+  public void testHitsAgreeWithEncodingLookup() {
+    for (int ii = 0; ii < m_hits.length; ii++) {
+      assertEquals(m_hits[ii], oldCharOf(m_hits[ii]),
+          MorseDigraph.charOfPattern(m_hitBits[ii], m_hits[ii].length()));
+    }
+    for (int ii = 0; ii < MISSES.length; ii++) {
+      assertEquals(MISSES[ii], MorseDigraph.NO_CHAR, oldCharOf(MISSES[ii]));
+      assertEquals(MISSES[ii], MorseDigraph.NO_CHAR,
+          MorseDigraph.charOfPattern(m_missBits[ii], MISSES[ii].length()));
+    }
+  }
+
+  public void testHitSpeed() {
+    // The first round warms up the JIT
+    for (int round = 0; round < 2; round++) {
+      StringBuilder keyed = new StringBuilder();
+      int sink = 0;
+      long start = System.nanoTime();
+      for (int n = 0; n < ITERATIONS; n++) {
+        for (int ii = 0; ii < m_hits.length; ii++) {
+          keyed.setLength(0);
+          keyed.append(m_hits[ii]);
+          sink += oldCharOf(keyed.toString());
+        }
+      }
+      long oldNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int n = 0; n < ITERATIONS; n++) {
+        for (int ii = 0; ii < m_hits.length; ii++) {
+          sink -= MorseDigraph.charOfPattern(m_hitBits[ii], m_hits[ii].length());
+        }
+      }
+      long newNanos = System.nanoTime() - start;
+      assertEquals(0, sink);
+      if (round > 0) report("hit", oldNanos, newNanos, ITERATIONS * m_hits.length);
+    }
+  }
+
+  public void testMissSpeed() {
+    for (int round = 0; round < 2; round++) {
+      int sink = 0;
+      long start = System.nanoTime();
+      for (int n = 0; n < ITERATIONS; n++) {
+        for (int ii = 0; ii < MISSES.length; ii++) {
+          sink += oldCharOf(MISSES[ii]);
+        }
+      }
+      long oldNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int n = 0; n < ITERATIONS; n++) {
+        for (int ii = 0; ii < MISSES.length; ii++) {
+          sink += MorseDigraph.charOfPattern(m_missBits[ii], MISSES[ii].length());
+        }
+      }
+      long newNanos = System.nanoTime() - start;
+      assertEquals(0, sink);
+      if (round > 0) report("miss", oldNanos, newNanos, ITERATIONS * MISSES.length);
+    }
+  }
+
+  private static void report(String what, long oldNanos, long newNanos, int ops) {
+    Log.i(TAG, String.format("%s: %.1f ns/op by encoding, %.1f ns/op by pattern", what,
+        (double) oldNanos / ops, (double) newNanos / ops));
+  }
+
+  private static int pack(String encoding) {
+    int bits = 0;
+    for (int ii = 0; ii < encoding.length(); ii++) {
+      bits = MorseDigraph.appendElement(bits, encoding.charAt(ii) == '.');
+    }
+    return bits;
+  }
+
+  /**
+   * The decoder's lookup before the pattern table.
+   */
+  private static char oldCharOf(String encoding) {
+    try {
+      for (MorseDigraph digraph : EnumSet.allOf(MorseDigraph.class)) {
+        if (digraph.getEncoding().equals(encoding))
+          return digraph.getChar();
+      }
+      throw new IllegalArgumentException("Invalid digraph encoding \"" + encoding + "\"");
+    } catch (IllegalArgumentException e) {
+      return MorseDigraph.NO_CHAR;
+    }
+  }
+}
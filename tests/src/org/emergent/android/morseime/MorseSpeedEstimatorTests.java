@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+/**
+ * Feeds element and gap timings to a {@link MorseSpeedEstimator} and checks what it learns
+ * from them: how sure it is, how it follows a change of speed, and how it recovers when
+ * everything lands in one cluster.
+ *
+ * @author Patrick Woodworth
+ */
+@SmallTest
+public class MorseSpeedEstimatorTests extends TestCase {
+
+  private static final long UNIT_20 = MorseDecoder.calcNanos(1, 20);
+
+  private MorseSpeedEstimator m_estimator;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_estimator = new MorseSpeedEstimator();
+    m_estimator.reset(UNIT_20, 2 * UNIT_20, true);
+  }
+
+  /**
+   * Until samples arrive the estimate is the starting timing, with no confidence in it.
+   */
+  public void testStartsFromResetTiming() {
+    assertEquals(0f, m_estimator.getConfidence(), 0f);
+    assertEquals(0f, m_estimator.getGapConfidence(), 0f);
+    assertEquals(UNIT_20, m_estimator.getUnitNanos());
+    assertEquals(2 * UNIT_20, m_estimator.getCharSepNanos());
+  }
+
+  /**
+   * Confidence grows with the smaller cluster until it holds four samples.
+   */
+  public void testConfidenceGrowsWithBothClusters() {
+    addMarks(UNIT_20, 1, 2);
+    assertEquals(0.25f, m_estimator.getConfidence(), 0.001f);
+    addMarks(UNIT_20, 1, 2);
+    assertEquals(0.5f, m_estimator.getConfidence(), 0.001f);
+    addMarks(UNIT_20, 2, 4);
+    assertEquals(1f, m_estimator.getConfidence(), 0.001f);
+    assertEquals(UNIT_20, m_estimator.getUnitNanos());
+  }
+
+  /**
+   * Dits alone say nothing about how long a dah is, so they give no confidence.
+   */
+  public void testOneClusterGivesNoConfidence() {
+    addMarks(UNIT_20, 8, 0);
+    assertEquals(0f, m_estimator.getConfidence(), 0f);
+  }
+
+  /**
+   * Confidence falls off as the clusters move together: clusters a ratio of 1.6 apart are
+   * only half sure.
+   */
+  public void testConfidenceFollowsSeparation() {
+    for (int ii = 0; ii < 4; ii++) {
+      m_estimator.addMark(UNIT_20);
+      m_estimator.addMark(UNIT_20 * 8 / 5);
+    }
+    assertEquals(0.5f, m_estimator.getConfidence(), 0.01f);
+  }
+
+  /**
+   * After a change of speed the estimate settles on the new unit within a window.
+   */
+  public void testConvergesAfterSpeedChange() {
+    addMarks(UNIT_20, 16, 16);
+    assertEquals(UNIT_20, m_estimator.getUnitNanos());
+    long unit15 = MorseDecoder.calcNanos(1, 15);
+    addMarks(unit15, 16, 16);
+    assertWithinPercent(unit15, m_estimator.getUnitNanos());
+    assertEquals(1f, m_estimator.getConfidence(), 0.001f);
+    long unit30 = MorseDecoder.calcNanos(1, 30);
+    addMarks(unit30, 16, 16);
+    assertWithinPercent(unit30, m_estimator.getUnitNanos());
+    assertEquals(1f, m_estimator.getConfidence(), 0.001f);
+  }
+
+  /**
+   * Keying at three times the starting speed puts even the dahs nearer the starting dit
+   * than the starting dah, so every sample lands in the short cluster. Once it holds four,
+   * the means are moved out to the shortest and longest samples, and the new speed is
+   * picked up at once rather than averaged in with the old dah.
+   */
+  public void testReseedsEmptyCluster() {
+    long unit60 = MorseDecoder.calcNanos(1, 60);
+    addMarks(unit60, 2, 1);
+    assertEquals(0f, m_estimator.getConfidence(), 0f);
+    m_estimator.addMark(3 * unit60);
+    assertEquals(unit60, m_estimator.getUnitNanos());
+    assertEquals(0.5f, m_estimator.getConfidence(), 0.001f);
+    addMarks(unit60, 2, 2);
+    assertEquals(1f, m_estimator.getConfidence(), 0.001f);
+  }
+
+  /**
+   * Once the dahs have left the window, a run of dits keeps the last dah length rather than
+   * splitting the dits in two.
+   */
+  public void testEmptyClusterKeepsItsMean() {
+    addMarks(UNIT_20, 16, 16);
+    addMarks(UNIT_20, MorseSpeedEstimator.WINDOW, 0);
+    assertEquals(UNIT_20, m_estimator.getUnitNanos());
+    assertEquals(0f, m_estimator.getConfidence(), 0f);
+  }
+
+  /**
+   * Tapped gaps of two units within a character and five between characters put the
+   * character gap threshold halfway between them, and the word gap at 7/3 of it.
+   */
+  public void testTappedGapsSetCharacterGap() {
+    m_estimator.reset(UNIT_20, 3 * UNIT_20, false);
+    for (int ii = 0; ii < 8; ii++) {
+      m_estimator.addGap(2 * UNIT_20);
+      m_estimator.addGap(2 * UNIT_20);
+      m_estimator.addGap(5 * UNIT_20);
+    }
+    assertEquals(1f, m_estimator.getConfidence(), 0.001f);
+    assertEquals(7 * UNIT_20 / 2, m_estimator.getCharSepNanos());
+    assertEquals(7 * UNIT_20 / 6, m_estimator.getUnitNanos());
+    assertEquals(2 * UNIT_20, m_estimator.getElementGapNanos());
+  }
+
+  private static void assertWithinPercent(long expected, long actual) {
+    assertTrue("expected " + expected + " but was " + actual,
+        Math.abs(actual - expected) <= expected / 100);
+  }
+
+  /**
+   * Adds dits and dahs of the given unit, alternating while there are both.
+   */
+  private void addMarks(long unit, int dits, int dahs) {
+    for (int ii = 0; ii < Math.max(dits, dahs); ii++) {
+      if (ii < dits)
+        m_estimator.addMark(unit);
+      if (ii < dahs)
+        m_estimator.addMark(3 * unit);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks what {@link NextWordPredictor} predicts: followers best first, counts that halve
+ * together rather than overflow, the least used word giving way when its probe window is full,
+ * and pairs learned for a word that was replaced no longer predicting anything.
+ *
+ * @author Patrick Woodworth
+ */
+@SmallTest
+public class NextWordPredictorTests extends TestCase {
+
+  private NextWordPredictor m_predictor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_predictor = new NextWordPredictor();
+  }
+
+  public void testOrdering() {
+    learn("the", "cat", 3);
+    learn("the", "dog", 2);
+    learn("the", "fox", 1);
+    m_predictor.learn("the");
+    assertPredicts("cat", "dog", "fox");
+
+    // Case doesn't make a different word
+    learn("The", "fox", 3);
+    m_predictor.learn("the");
+    assertPredicts("fox", "cat", "dog");
+  }
+
+  /**
+   * A new follower of a word with no room left replaces the least counted one.
+   */
+  public void testFollowerReplaced() {
+    learn("the", "cat", 3);
+    learn("the", "dog", 2);
+    learn("the", "fox", 1);
+    learn("the", "owl", 2);
+    learn("the", "emu", 1);
+    m_predictor.learn("the");
+    assertPredicts("cat", "dog", "owl", "emu");
+  }
+
+  /**
+   * A count that reaches the top of its byte halves with the word's other counts instead of
+   * overflowing, so their order stays.
+   */
+  public void testCountSaturation() {
+    learn("a", "b", 255);
+    learn("a", "c", 10);
+    assertEquals(255, m_predictor.getCount("a", "b"));
+    assertEquals(10, m_predictor.getCount("a", "c"));
+
+    learn("a", "b", 1);
+    assertEquals(128, m_predictor.getCount("a", "b"));
+    assertEquals(5, m_predictor.getCount("a", "c"));
+    m_predictor.learn("a");
+    assertPredicts("b", "c");
+  }
+
+  /**
+   * When every slot a word could go in is taken, the least used of them is replaced.
+   */
+  public void testReplacedInFullProbeWindow() {
+    List<String> words = colliding(9);
+    for (int ii = 0; ii < 8; ii++) {
+      if (ii == 3) continue;
+      for (int jj = 0; jj < ii + 2; jj++) {
+        m_predictor.reset();
+        m_predictor.learn(words.get(ii));
+      }
+    }
+    m_predictor.reset();
+    m_predictor.learn(words.get(3));
+    m_predictor.reset();
+    m_predictor.learn(words.get(8));
+
+    assertFalse(m_predictor.contains(words.get(3)));
+    assertTrue(m_predictor.contains(words.get(8)));
+    for (int ii = 0; ii < 8; ii++) {
+      if (ii != 3) assertTrue(words.get(ii), m_predictor.contains(words.get(ii)));
+    }
+  }
+
+  /**
+   * Pairs point at a word's slot, which a later word can take over. They're checked against
+   * the hash of the word they were learned for, so they don't predict the new word.
+   */
+  public void testStalePairsIgnored() {
+    List<String> words = colliding(9);
+    String previous = "previous";
+    int home = NextWordPredictor.hash(previous) & (NextWordPredictor.WORD_CAPACITY - 1);
+    int window = NextWordPredictor.hash(words.get(0)) & (NextWordPredictor.WORD_CAPACITY - 1);
+    assertTrue(Math.abs(home - window) > 8);
+
+    for (int ii = 0; ii < 8; ii++) {
+      if (ii == 3) continue;
+      for (int jj = 0; jj < 2; jj++) {
+        m_predictor.reset();
+        m_predictor.learn(words.get(ii));
+      }
+    }
+    learn(previous, words.get(3), 1);
+    m_predictor.learn(previous);
+    assertPredicts(words.get(3));
+
+    // Takes the slot of the least used word, the one that followed
+    m_predictor.reset();
+    m_predictor.learn(words.get(8));
+    assertFalse(m_predictor.contains(words.get(3)));
+    m_predictor.reset();
+    m_predictor.learn(previous);
+    assertPredicts();
+    assertEquals(0, m_predictor.getCount(previous, words.get(8)));
+  }
+
+  /**
+   * Learns the next word following the previous one the given number of times.
+   */
+  private void learn(String previous, String next, int times) {
+    for (int ii = 0; ii < times; ii++) {
+      m_predictor.reset();
+      m_predictor.learn(previous);
+      m_predictor.learn(next);
+    }
+  }
+
+  private void assertPredicts(String... expected) {
+    ArrayList<String> predicted = new ArrayList<String>();
+    for (CharSequence word : m_predictor.getNextWords()) {
+      predicted.add(word.toString().toLowerCase());
+    }
+    assertEquals(Arrays.asList(expected), predicted);
+  }
+
+  /**
+   * @return words that all hash to the same home slot
+   */
+  private static List<String> colliding(int count) {
+    ArrayList<ArrayList<String>> homes = new ArrayList<ArrayList<String>>();
+    for (int ii = 0; ii < NextWordPredictor.WORD_CAPACITY; ii++) {
+      homes.add(new ArrayList<String>());
+    }
+    for (int ii = 0; ; ii++) {
+      String word = "w" + ii;
+      ArrayList<String> home =
+          homes.get(NextWordPredictor.hash(word) & (NextWordPredictor.WORD_CAPACITY - 1));
+      home.add(word);
+      if (home.size() == count) return home;
+    }
+  }
+}
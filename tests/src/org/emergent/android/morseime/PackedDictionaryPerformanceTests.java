@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Compares {@link PackedDictionary} with {@link ExpandableDictionary} on the 50k word list of
+ * {@link ExpandableDictionaryPerformanceTests}: the heap each takes, as estimated by the
+ * dictionaries and as measured across a garbage collection, and how long loading, looking up,
+ * adding word by word and searching take. Searches are the prefixes of every 25th word, typed
+ * with neighbouring keys, from a fresh frontier each time. Reports the best of a few rounds.
+ *
+ * @author Patrick Woodworth
+ */
+@LargeTest
+public class PackedDictionaryPerformanceTests extends AndroidTestCase {
+
+  private static final String TAG = "PackedDictionaryPerformanceTests";
+
+  private static final int ROUNDS = 5;
+  private static final int FREQUENCY = 100;
+
+  private ArrayList<String> m_words;
+  private WordComposer[] m_queries;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_words = ExpandableDictionaryPerformanceTests.words(50000, 1);
+    m_queries = new WordComposer[m_words.size() / 25];
+    for (int ii = 0; ii < m_queries.length; ii++) {
+      String word = m_words.get(ii * 25);
+      m_queries[ii] = new WordComposer();
+      for (int jj = 0; jj < Math.min(word.length(), 4 + ii % 3); jj++) {
+        char c = word.charAt(jj);
+        m_queries[ii].add(c, new int[]{c, c == 'z' ? 'a' : c + 1, c == 'a' ? 'z' : c - 1, -1});
+      }
+    }
+  }
+
+  public void testEngines() {
+    Engine expandable = new Engine() {
+      ExpandableDictionary m_dictionary;
+
+      Dictionary load(ArrayList<String> words) {
+        m_dictionary = new ExpandableDictionary(getContext());
+        ExpandableDictionary.NodeArray roots = new ExpandableDictionary.NodeArray();
+        for (String word : words) {
+          m_dictionary.addWord(roots, word, FREQUENCY);
+        }
+        m_dictionary.publish(roots);
+        return m_dictionary;
+      }
+
+      void release() {
+        m_dictionary = null;
+      }
+
+      Dictionary add(ArrayList<String> words) {
+        ExpandableDictionary dictionary = new ExpandableDictionary(getContext());
+        for (String word : words) {
+          dictionary.addWord(word, FREQUENCY);
+        }
+        return dictionary;
+      }
+
+      long getHeapBytes() {
+        return m_dictionary.getHeapBytes();
+      }
+    };
+    Engine packed = new Engine() {
+      PackedDictionary m_dictionary;
+
+      Dictionary load(ArrayList<String> words) {
+        m_dictionary = new PackedDictionary(getContext());
+        PackedDictionary.NodeArray roots = new PackedDictionary.NodeArray();
+        for (String word : words) {
+          m_dictionary.addWord(roots, word, FREQUENCY);
+        }
+        m_dictionary.publish(roots);
+        return m_dictionary;
+      }
+
+      void release() {
+        m_dictionary = null;
+      }
+
+      Dictionary add(ArrayList<String> words) {
+        PackedDictionary dictionary = new PackedDictionary(getContext());
+        for (String word : words) {
+          dictionary.addWord(word, FREQUENCY);
+        }
+        return dictionary;
+      }
+
+      long getHeapBytes() {
+        return m_dictionary.getHeapBytes();
+      }
+    };
+    measure("ExpandableDictionary", expandable);
+    measure("PackedDictionary", packed);
+    assertEquals("suggestions", expandable.m_suggestions, packed.m_suggestions);
+    assertEquals("nodes visited", expandable.m_nodesVisited, packed.m_nodesVisited);
+    assertTrue("packed heap " + packed.m_heapBytes + ", expandable " + expandable.m_heapBytes,
+        packed.m_heapBytes * 2 < expandable.m_heapBytes);
+  }
+
+  private void measure(String what, Engine engine) {
+    final int size = m_words.size();
+    long bestLoad = Long.MAX_VALUE;
+    long bestLookup = Long.MAX_VALUE;
+    long bestAdd = Long.MAX_VALUE;
+    long bestSearch = Long.MAX_VALUE;
+    long measuredBytes = Long.MAX_VALUE;
+    engine.release();
+    final long before = usedBytes();
+    for (int round = 0; round < ROUNDS; round++) {
+      engine.release();
+      long start = System.nanoTime();
+      Dictionary loaded = engine.load(m_words);
+      bestLoad = Math.min(bestLoad, System.nanoTime() - start);
+      // Whatever the last round left reachable only adds to this
+      measuredBytes = Math.min(measuredBytes, usedBytes() - before);
+
+      start = System.nanoTime();
+      int found = 0;
+      for (int ii = 0; ii < size; ii++) {
+        if (loaded.isValidWord(m_words.get(ii))) found++;
+      }
+      bestLookup = Math.min(bestLookup, System.nanoTime() - start);
+      assertEquals(what, size, found);
+
+      Collector collector = new Collector();
+      start = System.nanoTime();
+      int nodesVisited = 0;
+      for (WordComposer query : m_queries) {
+        collector.m_count = 0;
+        loaded.getWords(query, collector);
+        nodesVisited += loaded.getNodesVisited();
+      }
+      bestSearch = Math.min(bestSearch, System.nanoTime() - start);
+      engine.m_suggestions = collector.m_total;
+      engine.m_nodesVisited = nodesVisited;
+
+      loaded = null;
+
+      start = System.nanoTime();
+      Dictionary added = engine.add(m_words);
+      bestAdd = Math.min(bestAdd, System.nanoTime() - start);
+      assertTrue(what, added.isValidWord(m_words.get(size - 1)));
+      // Nor kept alive by the frame into the next round's measurement
+      added = null;
+    }
+    engine.m_heapBytes = engine.getHeapBytes();
+    engine.release();
+    Log.i(TAG, String.format("%s: heap %d KiB estimated, %d KiB measured; load %.1f ms, " +
+        "lookups %.1f ms, addWord %.1f ms, %d searches %.1f ms visiting %d nodes", what,
+        engine.m_heapBytes / 1024, measuredBytes / 1024, bestLoad / 1e6, bestLookup / 1e6,
+        bestAdd / 1e6, m_queries.length, bestSearch / 1e6, engine.m_nodesVisited));
+  }
+
+  private static long usedBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int ii = 0; ii < 3; ii++) {
+      System.gc();
+      System.runFinalization();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private abstract static class Engine {
+
+    int m_suggestions;
+    int m_nodesVisited;
+    long m_heapBytes;
+
+    /**
+     * Loads the words into an unpublished trie and publishes it, keeping the dictionary.
+     */
+    abstract Dictionary load(ArrayList<String> words);
+
+    /**
+     * Lets go of the last loaded dictionary, so the next one can be measured.
+     */
+    abstract void release();
+
+    abstract Dictionary add(ArrayList<String> words);
+
+    /**
+     * Returns the estimated heap of the last loaded dictionary.
+     */
+    abstract long getHeapBytes();
+  }
+
+  /**
+   * Keeps the best few words of each search as Suggest does, counting all of them.
+   */
+  private static class Collector implements Dictionary.WordCallback {
+
+    private static final int SIZE = 12;
+
+    private final int[] m_best = new int[SIZE];
+    int m_count;
+    int m_total;
+
+    public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency) {
+      int pos = Math.min(m_count, SIZE);
+      while (pos > 0 && m_best[pos - 1] < frequency) {
+        if (pos < SIZE) m_best[pos] = m_best[pos - 1];
+        pos--;
+      }
+      if (pos < SIZE) m_best[pos] = frequency;
+      m_count++;
+      m_total++;
+      return true;
+    }
+
+    public int getThreshold() {
+      return m_count < SIZE ? 0 : m_best[SIZE - 1];
+    }
+  }
+}
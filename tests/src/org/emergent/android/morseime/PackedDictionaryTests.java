@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that a {@link PackedDictionary} keeps the contract of {@link ExpandableDictionary}:
+ * the same words are found with the same frequencies, searches visit the same nodes and make
+ * the same suggestions in the same order, and path copying edits, removals included, leave
+ * the same words behind without the arrays growing without bound.
+ *
+ * @author Patrick Woodworth
+ */
+@SmallTest
+public class PackedDictionaryTests extends TestCase {
+
+  private static final String[] QUERIES = {
+      "t", "th", "the", "ther", "thsr", "tehr", "thr", "thea", "inter", "intre", "inetr",
+      "snd", "and", "cant", "cnat", "wouldve", "nothign", "abcdefgh", "zzz",
+  };
+
+  private ArrayList<String> m_words;
+  private ExpandableDictionary m_expandable;
+  private PackedDictionary m_packed;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_words = ExpandableDictionaryPerformanceTests.words(3000, 4);
+    m_words.add("can't");
+    m_words.add("would've");
+    m_words.add("nothing");
+    m_words.add("the");
+    m_expandable = new ExpandableDictionary(null);
+    m_packed = new PackedDictionary(null);
+    ExpandableDictionary.NodeArray expandableRoots = new ExpandableDictionary.NodeArray();
+    PackedDictionary.NodeArray packedRoots = new PackedDictionary.NodeArray();
+    for (int ii = 0; ii < m_words.size(); ii++) {
+      m_expandable.addWord(expandableRoots, m_words.get(ii), ii % 300);
+      m_packed.addWord(packedRoots, m_words.get(ii), ii % 300);
+    }
+    // Added twice, the higher frequency wins
+    m_expandable.addWord(expandableRoots, "the", 250);
+    m_packed.addWord(packedRoots, "the", 250);
+    m_expandable.publish(expandableRoots);
+    m_packed.publish(packedRoots);
+  }
+
+  public void testLoadedWords() {
+    assertEquals(250, m_packed.getWordFrequency("the"));
+    assertSameWords();
+    assertFalse(m_packed.isValidWord("th"));
+    assertFalse(m_packed.isValidWord("thez"));
+    assertFalse(m_packed.isValidWord(""));
+  }
+
+  public void testSearches() {
+    assertSameSearches();
+  }
+
+  /**
+   * Types the queries a character at a time and back, as the frontier sees them in the IME.
+   */
+  public void testIncrementalSearches() {
+    WordComposer expandableWord = new WordComposer();
+    WordComposer packedWord = new WordComposer();
+    for (String query : QUERIES) {
+      for (int ii = 0; ii < query.length(); ii++) {
+        add(expandableWord, query.charAt(ii));
+        add(packedWord, query.charAt(ii));
+        assertSameSearch(expandableWord, packedWord);
+      }
+      while (expandableWord.size() > 1) {
+        expandableWord.deleteLast();
+        packedWord.deleteLast();
+        assertSameSearch(expandableWord, packedWord);
+      }
+      expandableWord.reset();
+      packedWord.reset();
+    }
+  }
+
+  /**
+   * Adds, raises, lowers and removes words through the public methods, long enough for the
+   * packed trie to be compacted several times over.
+   */
+  public void testEdits() {
+    Random random = new Random(5);
+    long loadedBytes = m_packed.getHeapBytes();
+    ArrayList<String> extra = ExpandableDictionaryPerformanceTests.words(200, 6);
+    for (int ii = 0; ii < 20000; ii++) {
+      String word = random.nextBoolean()
+          ? m_words.get(random.nextInt(m_words.size()))
+          : extra.get(random.nextInt(extra.size()));
+      int frequency = random.nextInt(300) - 50;
+      if (random.nextInt(4) == 0) {
+        m_expandable.addWord(word, frequency);
+        m_packed.addWord(word, frequency);
+      } else {
+        m_expandable.setWordFrequency(word, frequency);
+        m_packed.setWordFrequency(word, frequency);
+      }
+      if (ii % 2000 == 0) assertSameSearches();
+    }
+    for (String word : extra) {
+      assertEquals(word, m_expandable.getWordFrequency(word), m_packed.getWordFrequency(word));
+    }
+    assertSameWords();
+    assertSameSearches();
+    // Live nodes, a quarter of the arrays in copies left behind and some room to grow
+    assertTrue("heap " + m_packed.getHeapBytes() + " after edits, " + loadedBytes + " loaded",
+        m_packed.getHeapBytes() < loadedBytes * 2);
+  }
+
+  /**
+   * Removing a word takes out the nodes only it used, so its prefixes aren't suggested as
+   * leading anywhere.
+   */
+  public void testRemovingPrunesPath() {
+    m_expandable.addWord("zyzzyva", 10);
+    m_packed.addWord("zyzzyva", 10);
+    assertSameSearches();
+    m_expandable.setWordFrequency("zyzzyva", -1);
+    m_packed.setWordFrequency("zyzzyva", -1);
+    assertEquals(-1, m_packed.getWordFrequency("zyzzyva"));
+    assertSameSearches();
+  }
+
+  /**
+   * Words differing only in case are separate nodes, whichever order they were added in.
+   */
+  public void testCaseVariants() {
+    PackedDictionary dictionary = new PackedDictionary(null);
+    dictionary.addWord("polish", 50);
+    dictionary.addWord("Polish", 80);
+    dictionary.addWord("POLISH", 20);
+    assertEquals(50, dictionary.getWordFrequency("polish"));
+    assertEquals(80, dictionary.getWordFrequency("Polish"));
+    assertEquals(20, dictionary.getWordFrequency("POLISH"));
+    dictionary.setWordFrequency("Polish", -1);
+    assertEquals(50, dictionary.getWordFrequency("polish"));
+    assertEquals(-1, dictionary.getWordFrequency("Polish"));
+    assertEquals(20, dictionary.getWordFrequency("POLISH"));
+
+    PackedDictionary.NodeArray roots = new PackedDictionary.NodeArray();
+    dictionary.addWord(roots, "Polish", 80);
+    dictionary.addWord(roots, "polish", 50);
+    dictionary.publish(roots);
+    assertEquals(50, dictionary.getWordFrequency("polish"));
+    assertEquals(80, dictionary.getWordFrequency("Polish"));
+  }
+
+  public void testClear() {
+    m_packed.clearDictionary();
+    assertFalse(m_packed.isValidWord("the"));
+    m_packed.addWord("the", 10);
+    assertEquals(10, m_packed.getWordFrequency("the"));
+  }
+
+  private void assertSameWords() {
+    for (String word : m_words) {
+      assertEquals(word, m_expandable.getWordFrequency(word), m_packed.getWordFrequency(word));
+    }
+  }
+
+  private void assertSameSearches() {
+    int offered = 0;
+    for (String query : QUERIES) {
+      WordComposer expandableWord = new WordComposer();
+      WordComposer packedWord = new WordComposer();
+      for (int ii = 0; ii < query.length(); ii++) {
+        add(expandableWord, query.charAt(ii));
+        add(packedWord, query.charAt(ii));
+      }
+      offered += assertSameSearch(expandableWord, packedWord);
+    }
+    assertTrue("words offered", offered > QUERIES.length);
+  }
+
+  /**
+   * Separate composers, since the frontier is kept for the composer's codes.
+   *
+   * @return how many words the search offered
+   */
+  private int assertSameSearch(WordComposer expandableWord, WordComposer packedWord) {
+    Collector expandable = new Collector();
+    Collector packed = new Collector();
+    m_expandable.getWords(expandableWord, expandable);
+    m_packed.getWords(packedWord, packed);
+    String query = expandableWord.getTypedWord().toString();
+    assertEquals(query, expandable.m_added.toString(), packed.m_added.toString());
+    assertEquals(query, m_expandable.getNodesVisited(), m_packed.getNodesVisited());
+    return expandable.m_count;
+  }
+
+  /**
+   * Adds a character along with the keys next to it, a made up neighbourhood that's the same
+   * wherever it's typed.
+   */
+  private static void add(WordComposer word, char c) {
+    word.add(c, new int[]{c, c == 'z' ? 'a' : c + 1, c == 'a' ? 'z' : c - 1, -1});
+  }
+
+  /**
+   * Keeps the best few words as Suggest does, raising the threshold once full, and records
+   * every word offered in order.
+   */
+  private static class Collector implements Dictionary.WordCallback {
+
+    private static final int SIZE = 12;
+
+    final StringBuilder m_added = new StringBuilder();
+    private final int[] m_best = new int[SIZE];
+    private int m_count;
+
+    public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency) {
+      m_added.append(word, wordOffset, wordLength).append(':').append(frequency).append(' ');
+      int pos = Math.min(m_count, SIZE);
+      while (pos > 0 && m_best[pos - 1] < frequency) {
+        if (pos < SIZE) m_best[pos] = m_best[pos - 1];
+        pos--;
+      }
+      if (pos < SIZE) m_best[pos] = frequency;
+      m_count++;
+      return true;
+    }
+
+    public int getThreshold() {
+      return m_count < SIZE ? 0 : m_best[SIZE - 1];
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.view.View;
+
+import java.util.List;
+
+/**
+ * Counts what the per keystroke path allocates once it has warmed up: decoding a character
+ * into a {@link WordComposer}, copying the composition for the suggestion thread, querying
+ * {@link Suggest}, and learning a committed word and predicting the next with
+ * {@link NextWordPredictor}. Each should allocate nothing, so typing leaves the collector
+ * nothing to do.
+ *
+ * @author Patrick Woodworth
+ */
+@MediumTest
+public class SuggestionAllocationTests extends AndroidTestCase {
+
+  private static final int WPM = 20;
+
+  private static final int REPEATS = 10;
+
+  private static final String[] WORDS = {"morse", "keyer", "paris", "woodworth", "qrz"};
+
+  private WordComposer m_word;
+
+  public void testDecodingAllocatesNothing() {
+    VirtualMorseClock clock = new VirtualMorseClock();
+    m_word = new WordComposer();
+    MorseDecoder decoder = new MorseDecoder(clock, new MorseDecoder.Listener() {
+      public void onCharacter(char theChar, int[] codes, int ditDahBits, int ditDahCount) {
+        m_word.add(theChar, codes);
+      }
+
+      public void onWordGap() {
+        m_word.reset();
+      }
+    });
+    decoder.setAutoSpace(true);
+    decoder.setWordsPerMinute(WPM);
+    decoder.setKeyed(true);
+    long[] events = straightKeyEvents("paris ");
+
+    key(clock, decoder, events);
+    startCounting();
+    for (int ii = 0; ii < REPEATS; ii++) {
+      key(clock, decoder, events);
+    }
+    int allocations = stopCounting();
+    assertEquals("allocations decoding", 0, allocations);
+  }
+
+  public void testCopyingCompositionAllocatesNothing() {
+    WordComposer typed = new WordComposer();
+    WordComposer copy = new WordComposer();
+    int[] codes = new int[MorseDecoder.MAX_CODES];
+    type(typed, codes, "woodworth");
+    retype(typed, copy, codes, "s");
+
+    startCounting();
+    for (int ii = 0; ii < REPEATS; ii++) {
+      retype(typed, copy, codes, "s");
+    }
+    int allocations = stopCounting();
+    assertEquals("allocations copying", 0, allocations);
+    assertEquals("woodworts", copy.getTypedWord().toString());
+  }
+
+  public void testSuggestionsAllocateNothing() {
+    Suggest suggest = new Suggest(getContext(), R.raw.main);
+    ExpandableDictionary user = new ExpandableDictionary(getContext());
+    for (String word : WORDS) {
+      user.addWord(word, 200);
+    }
+    suggest.setUserDictionary(user);
+    suggest.setCorrectionMode(Suggest.CORRECTION_FULL);
+    View view = new View(getContext());
+    WordComposer[] queries = new WordComposer[WORDS.length];
+    int[] codes = new int[MorseDecoder.MAX_CODES];
+    for (int ii = 0; ii < queries.length; ii++) {
+      queries[ii] = new WordComposer();
+      type(queries[ii], codes, WORDS[ii].substring(0, WORDS[ii].length() - 1));
+      suggest.getSuggestions(view, queries[ii], false);
+    }
+
+    startCounting();
+    for (int ii = 0; ii < REPEATS; ii++) {
+      for (WordComposer query : queries) {
+        suggest.getSuggestions(view, query, false);
+      }
+    }
+    int allocations = stopCounting();
+    assertEquals("allocations querying", 0, allocations);
+    assertTrue(contains(suggest.getSuggestions(view, queries[0], false), WORDS[0]));
+  }
+
+  public void testPredictionAllocatesNothing() {
+    NextWordPredictor predictor = new NextWordPredictor();
+    for (String word : WORDS) {
+      predictor.learn(word);
+      predictor.getNextWords();
+    }
+
+    startCounting();
+    for (int ii = 0; ii < REPEATS; ii++) {
+      for (String word : WORDS) {
+        predictor.learn(word);
+        predictor.getNextWords();
+      }
+    }
+    int allocations = stopCounting();
+    assertEquals("allocations predicting", 0, allocations);
+    predictor.learn(WORDS[0]);
+    assertEquals(WORDS[1], predictor.getNextWords().get(0).toString());
+  }
+
+  /**
+   * Replaces the last character typed and copies the result, as typing and the suggestion
+   * request that follows do.
+   */
+  private static void retype(WordComposer typed, WordComposer copy, int[] codes, String text) {
+    typed.deleteLast();
+    type(typed, codes, text);
+    copy.set(typed);
+  }
+
+  private static boolean contains(List<CharSequence> suggestions, String word) {
+    for (CharSequence suggestion : suggestions) {
+      if (word.equals(suggestion.toString()))
+        return true;
+    }
+    return false;
+  }
+
+  private static void startCounting() {
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocCount();
+  }
+
+  private static int stopCounting() {
+    int count = Debug.getThreadAllocCount();
+    Debug.stopAllocCounting();
+    return count;
+  }
+
+  private static void type(WordComposer word, int[] codes, String text) {
+    for (int ii = 0; ii < text.length(); ii++) {
+      codes[0] = text.charAt(ii);
+      for (int jj = 1; jj < codes.length; jj++) {
+        codes[jj] = -1;
+      }
+      word.add(codes[0], codes);
+    }
+  }
+
+  /**
+   * Keys the events, running the decoder's deadlines in between and after, on a clock that
+   * carries on from the last call.
+   */
+  private static void key(VirtualMorseClock clock, MorseDecoder decoder, long[] events) {
+    final long start = clock.nanoTime();
+    int next = 0;
+    while (next < events.length || decoder.getDeadline() != MorseDecoder.NO_DEADLINE) {
+      long deadline = decoder.getDeadline();
+      if (next < events.length && start + events[next] <= deadline) {
+        clock.advanceTo(start + events[next]);
+        if (next % 2 == 0) {
+          decoder.keyDown(clock.nanoTime());
+        } else {
+          decoder.keyUp(clock.nanoTime());
+        }
+        next++;
+      } else {
+        clock.advanceTo(deadline);
+        decoder.advance(clock.nanoTime());
+      }
+    }
+  }
+
+  /**
+   * Key down and key up times at nominal spacing from zero, in pairs of down and up.
+   */
+  private static long[] straightKeyEvents(String text) {
+    final long unit = MorseDecoder.calcNanos(1, WPM);
+    long[] events = new long[64];
+    int count = 0;
+    long time = unit;
+    for (int ii = 0; ii < text.length(); ii++) {
+      char theChar = text.charAt(ii);
+      if (theChar == ' ') {
+        time += 4 * unit;
+        continue;
+      }
+      String encoding = encodingOf(theChar);
+      for (int jj = 0; jj < encoding.length(); jj++) {
+        events[count++] = time;
+        time += encoding.charAt(jj) == '.' ? unit : 3 * unit;
+        events[count++] = time;
+        time += unit;
+      }
+      time += 2 * unit;
+    }
+    long[] trimmed = new long[count];
+    System.arraycopy(events, 0, trimmed, 0, count);
+    return trimmed;
+  }
+
+  private static String encodingOf(char theChar) {
+    for (MorseDigraph digraph : MorseDigraph.values()) {
+      if (digraph.getChar() == theChar)
+        return digraph.getEncoding();
+    }
+    throw new IllegalArgumentException("No digraph for " + theChar);
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+
+package org.emergent.android.morseime;
+
+import android.database.MatrixCursor;
+import android.provider.UserDictionary.Words;
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link UserDictionary} keeps its trie in line with the rows read back from the
+ * provider: inserted rows, words edited by deleting and re-adding them, changed frequencies and
+ * deleted rows, and words held by more than one row.
+ *
+ * @author Patrick Woodworth
+ */
+@SmallTest
+public class UserDictionaryTests extends TestCase {
+
+  private UserDictionary m_dictionary;
+  private long m_lastId;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_dictionary = new UserDictionary();
+    m_dictionary.applyRows(m_lastId, null, added(1, "hello", 100, 2, "world", 50));
+    m_lastId = 2;
+  }
+
+  public void testInsert() {
+    assertEquals(100, m_dictionary.getWordFrequency("hello"));
+    assertEquals(50, m_dictionary.getWordFrequency("world"));
+    assertFalse(m_dictionary.isValidWord("help"));
+
+    m_dictionary.applyRows(m_lastId, known(1, 100, 2, 50), added(3, "help", 120));
+    assertEquals(120, m_dictionary.getWordFrequency("help"));
+    assertEquals(100, m_dictionary.getWordFrequency("hello"));
+  }
+
+  /**
+   * A row read back as inserted that's known already, as the ones addWord inserts are, leaves
+   * its word alone.
+   */
+  public void testKnownRowIgnored() {
+    m_dictionary.applyRows(1, null, added(2, "world", 80));
+    assertEquals(50, m_dictionary.getWordFrequency("world"));
+  }
+
+  /**
+   * The settings screen edits a word by deleting its row and adding a new one.
+   */
+  public void testEdit() {
+    m_dictionary.applyRows(m_lastId, known(2, 50), added(3, "help", 100));
+    assertFalse(m_dictionary.isValidWord("hello"));
+    assertEquals(100, m_dictionary.getWordFrequency("help"));
+    assertEquals(50, m_dictionary.getWordFrequency("world"));
+  }
+
+  public void testFrequencyChange() {
+    m_dictionary.applyRows(m_lastId, known(1, 200, 2, 50), added());
+    assertEquals(200, m_dictionary.getWordFrequency("hello"));
+    assertEquals(50, m_dictionary.getWordFrequency("world"));
+  }
+
+  public void testDelete() {
+    m_dictionary.applyRows(m_lastId, known(2, 50), added());
+    assertFalse(m_dictionary.isValidWord("hello"));
+    assertEquals(50, m_dictionary.getWordFrequency("world"));
+
+    m_dictionary.applyRows(m_lastId, known(), added());
+    assertFalse(m_dictionary.isValidWord("world"));
+  }
+
+  /**
+   * A word with several rows keeps the highest frequency among them, and stays until the last
+   * of its rows is deleted.
+   */
+  public void testSeveralRows() {
+    m_dictionary.applyRows(m_lastId, known(1, 100, 2, 50), added(3, "hello", 150));
+    assertEquals(150, m_dictionary.getWordFrequency("hello"));
+
+    m_dictionary.applyRows(3, known(1, 100, 2, 50), added());
+    assertEquals(100, m_dictionary.getWordFrequency("hello"));
+
+    m_dictionary.applyRows(3, known(2, 50), added());
+    assertFalse(m_dictionary.isValidWord("hello"));
+  }
+
+  /**
+   * Rows past the highest id known when the cursors were queried, such as one inserted while
+   * the sync ran, aren't taken for deleted when they're missing from the known rows.
+   */
+  public void testRowsAddedDuringSync() {
+    m_dictionary.applyRows(m_lastId, known(1, 100, 2, 50), added(3, "help", 120));
+    m_dictionary.applyRows(m_lastId, known(1, 100, 2, 50), added());
+    assertEquals(120, m_dictionary.getWordFrequency("help"));
+  }
+
+  /**
+   * @param rows the id and frequency of each row
+   */
+  private static MatrixCursor known(long... rows) {
+    MatrixCursor cursor = new MatrixCursor(new String[]{Words._ID, Words.FREQUENCY});
+    for (int ii = 0; ii < rows.length; ii += 2) {
+      cursor.addRow(new Object[]{rows[ii], (int) rows[ii + 1]});
+    }
+    return cursor;
+  }
+
+  /**
+   * @param rows the id, word and frequency of each row
+   */
+  private static MatrixCursor added(Object... rows) {
+    MatrixCursor cursor = new MatrixCursor(new String[]{Words._ID, Words.WORD, Words.FREQUENCY});
+    for (int ii = 0; ii < rows.length; ii += 3) {
+      cursor.addRow(new Object[]{((Integer) rows[ii]).longValue(), rows[ii + 1], rows[ii + 2]});
+    }
+    return cursor;
+  }
+}
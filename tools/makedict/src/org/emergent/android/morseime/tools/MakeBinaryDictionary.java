@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2010 Patrick Woodworth
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package org.emergent.android.morseime.tools;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Compiles a wordlist in the dictionaries/sample.xml format into the binary trie read by
+ * BinaryDictionary.
+ * <p/>
+ * The wordlist is streamed through a SAX parser and sorted in bounded chunks that are spilled to
+ * temp files and merged back. The sorted words then build a minimal DAWG incrementally: once a
+ * node can no longer change it's encoded, and if an identical node was already written, its
+ * parent points at that one instead. Only the current path and the table of written nodes stay
+ * in memory. The table grows with the size of the output, not the size of the wordlist.
+ * Frequencies are quantized before encoding, which lets more suffixes merge.
+ *
+ * @author Patrick Woodworth
+ */
+public class MakeBinaryDictionary {
+
+  // The following must match BinaryDictionary
+  static final int MAGIC = 0x4D4F5253; // "MORS"
+  static final int VERSION = 1;
+  static final int MAX_WORD_LENGTH = 48;
+  static final int FLAG_TERMINAL_MASK = 0x80;
+  static final int FLAG_ADDRESS_MASK = 0x40;
+  static final int MAX_ADDRESS = 0x3FFFFF;
+  static final int CHAR_ESCAPE = 0xFF;
+  static final int MAX_CHILDREN = 0xFF;
+
+  static final int FIXED_HEADER_SIZE = 26;
+
+  private static final int DEFAULT_FREQUENCY_BITS = 4;
+  private static final int DEFAULT_CHUNK_SIZE = 100000;
+
+  private final File m_output;
+  private final String m_locale;
+  private final int m_frequencyBits;
+  private final int m_chunkSize;
+
+  private final List<File> m_runs = new ArrayList<File>();
+  private final List<Entry> m_chunk = new ArrayList<Entry>();
+
+  private int m_wordsRead;
+  private int m_wordsDropped;
+
+  public MakeBinaryDictionary(File output, String locale, int frequencyBits, int chunkSize) {
+    m_output = output;
+    m_locale = locale;
+    m_frequencyBits = frequencyBits;
+    m_chunkSize = chunkSize;
+  }
+
+  public static void main(String[] args) throws Exception {
+    File src = null;
+    File dest = null;
+    String locale = "";
+    int frequencyBits = DEFAULT_FREQUENCY_BITS;
+    int chunkSize = DEFAULT_CHUNK_SIZE;
+    for (int ii = 0; ii + 1 < args.length; ii += 2) {
+      if ("-s".equals(args[ii])) {
+        src = new File(args[ii + 1]);
+      } else if ("-d".equals(args[ii])) {
+        dest = new File(args[ii + 1]);
+      } else if ("-l".equals(args[ii])) {
+        locale = args[ii + 1];
+      } else if ("-b".equals(args[ii])) {
+        frequencyBits = Integer.parseInt(args[ii + 1]);
+      } else if ("-c".equals(args[ii])) {
+        chunkSize = Integer.parseInt(args[ii + 1]);
+      }
+    }
+    if (src == null || dest == null || frequencyBits < 1 || frequencyBits > 8
+        || chunkSize < 1 || locale.length() > 255) {
+      System.err.println("usage: MakeBinaryDictionary -s <wordlist.xml> -d <output.dict>"
+          + " [-l <locale>] [-b <frequency bits, 1-8>] [-c <words per sort chunk>]");
+      System.exit(1);
+    }
+    new MakeBinaryDictionary(dest, locale, frequencyBits, chunkSize).run(src);
+  }
+
+  public void run(File wordlist) throws Exception {
+    long start = System.currentTimeMillis();
+    try {
+      read(wordlist);
+      DawgWriter writer = new DawgWriter(m_output, m_locale);
+      merge(writer);
+      writer.finish();
+      long elapsed = System.currentTimeMillis() - start;
+      System.out.println(String.format(
+          "%s: %d words (%d read, %d dropped), %d nodes written, %d shared",
+          m_output.getPath(), writer.m_wordCount, m_wordsRead, m_wordsDropped,
+          writer.m_nodesWritten, writer.m_nodesShared));
+      System.out.println(String.format("%s: %d bytes, %d sort runs, built in %d ms",
+          m_output.getPath(), writer.m_length, Math.max(1, m_runs.size()), elapsed));
+    } finally {
+      for (File run : m_runs) {
+        run.delete();
+      }
+    }
+  }
+
+  private void read(File wordlist) throws Exception {
+    BufferedInputStream in = new BufferedInputStream(new FileInputStream(wordlist));
+    try {
+      SAXParserFactory.newInstance().newSAXParser().parse(in, new DefaultHandler() {
+        private final StringBuilder m_word = new StringBuilder();
+        private int m_freq = -1;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attrs) {
+          if ("w".equals(qName)) {
+            m_word.setLength(0);
+            String freq = attrs.getValue("f");
+            m_freq = freq == null ? 0 : Integer.parseInt(freq.trim());
+          }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+          if (m_freq >= 0) m_word.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+          if ("w".equals(qName) && m_freq >= 0) {
+            try {
+              addWord(m_word.toString().trim(), m_freq);
+            } catch (IOException e) {
+              throw new SAXException(e);
+            }
+            m_freq = -1;
+          }
+        }
+      });
+    } finally {
+      in.close();
+    }
+  }
+
+  private void addWord(String word, int freq) throws IOException {
+    m_wordsRead++;
+    if (word.length() == 0 || word.length() >= MAX_WORD_LENGTH) {
+      m_wordsDropped++;
+      return;
+    }
+    m_chunk.add(new Entry(word, quantize(Math.max(0, Math.min(255, freq)))));
+    if (m_chunk.size() >= m_chunkSize) {
+      spill();
+    }
+  }
+
+  /**
+   * Rounds the frequency to one of 2^bits levels spread over 0-255. Nonzero frequencies stay
+   * nonzero so rare words can still be suggested.
+   */
+  private int quantize(int freq) {
+    int levels = (1 << m_frequencyBits) - 1;
+    int level = (freq * levels + 127) / 255;
+    if (level == 0 && freq > 0) level = 1;
+    return level * 255 / levels;
+  }
+
+  private void spill() throws IOException {
+    Collections.sort(m_chunk);
+    File run = File.createTempFile("makedict", ".run");
+    m_runs.add(run);
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(run)));
+    try {
+      for (Entry entry : m_chunk) {
+        out.writeUTF(entry.m_word);
+        out.writeByte(entry.m_freq);
+      }
+    } finally {
+      out.close();
+    }
+    m_chunk.clear();
+  }
+
+  private void merge(DawgWriter writer) throws IOException {
+    if (m_runs.isEmpty()) {
+      Collections.sort(m_chunk);
+      for (Entry entry : m_chunk) {
+        writer.add(entry.m_word, entry.m_freq);
+      }
+      m_chunk.clear();
+      return;
+    }
+    if (!m_chunk.isEmpty()) {
+      spill();
+    }
+    PriorityQueue<Run> queue = new PriorityQueue<Run>();
+    try {
+      for (File file : m_runs) {
+        Run run = new Run(file);
+        if (run.next()) {
+          queue.add(run);
+        } else {
+          run.close();
+        }
+      }
+      while (!queue.isEmpty()) {
+        Run run = queue.poll();
+        writer.add(run.m_current.m_word, run.m_current.m_freq);
+        if (run.next()) {
+          queue.add(run);
+        } else {
+          run.close();
+        }
+      }
+    } finally {
+      for (Run run : queue) {
+        run.close();
+      }
+    }
+  }
+
+  private static class Entry implements Comparable<Entry> {
+
+    final String m_word;
+    final int m_freq;
+
+    Entry(String word, int freq) {
+      m_word = word;
+      m_freq = freq;
+    }
+
+    public int compareTo(Entry other) {
+      return m_word.compareTo(other.m_word);
+    }
+  }
+
+  private static class Run implements Comparable<Run> {
+
+    private final DataInputStream m_in;
+    Entry m_current;
+
+    Run(File file) throws IOException {
+      m_in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    boolean next() throws IOException {
+      try {
+        String word = m_in.readUTF();
+        m_current = new Entry(word, m_in.readUnsignedByte());
+        return true;
+      } catch (EOFException e) {
+        m_current = null;
+        return false;
+      }
+    }
+
+    void close() throws IOException {
+      m_in.close();
+    }
+
+    public int compareTo(Run other) {
+      return m_current.compareTo(other.m_current);
+    }
+  }
+
+  /**
+   * The children of one trie node, which is the unit of sharing in the output format. The
+   * terminal bit and frequency of a word live on the entry that ends it, so two nodes are
+   * interchangeable exactly when their encodings match.
+   */
+  private static class Node {
+
+    char[] m_chars = new char[4];
+    boolean[] m_terminal = new boolean[4];
+    int[] m_freqs = new int[4];
+    int[] m_children = new int[4];
+    int m_size;
+
+    void add(char c) {
+      if (m_size == m_chars.length) {
+        int capacity = m_size * 2;
+        m_chars = Arrays.copyOf(m_chars, capacity);
+        m_terminal = Arrays.copyOf(m_terminal, capacity);
+        m_freqs = Arrays.copyOf(m_freqs, capacity);
+        m_children = Arrays.copyOf(m_children, capacity);
+      }
+      m_chars[m_size] = c;
+      m_terminal[m_size] = false;
+      m_freqs[m_size] = 0;
+      m_children[m_size] = 0;
+      m_size++;
+    }
+
+    void clear() {
+      m_size = 0;
+    }
+
+    byte[] encode() {
+      int length = 1;
+      for (int ii = 0; ii < m_size; ii++) {
+        length += (m_chars[ii] >= CHAR_ESCAPE ? 3 : 1) + 1;
+        if (m_children[ii] != 0) length += 2;
+        if (m_terminal[ii]) length += 1;
+      }
+      byte[] bytes = new byte[length];
+      int pos = 0;
+      bytes[pos++] = (byte)m_size;
+      for (int ii = 0; ii < m_size; ii++) {
+        char c = m_chars[ii];
+        if (c >= CHAR_ESCAPE) {
+          bytes[pos++] = (byte)CHAR_ESCAPE;
+          bytes[pos++] = (byte)(c >> 8);
+        }
+        bytes[pos++] = (byte)c;
+        int child = m_children[ii];
+        int flags = (m_terminal[ii] ? FLAG_TERMINAL_MASK : 0)
+            | (child != 0 ? FLAG_ADDRESS_MASK | (child >> 16) : 0);
+        bytes[pos++] = (byte)flags;
+        if (child != 0) {
+          bytes[pos++] = (byte)(child >> 8);
+          bytes[pos++] = (byte)child;
+        }
+        if (m_terminal[ii]) {
+          bytes[pos++] = (byte)m_freqs[ii];
+        }
+      }
+      return bytes;
+    }
+  }
+
+  private static class Key {
+
+    private final byte[] m_bytes;
+    private final int m_hash;
+
+    Key(byte[] bytes) {
+      m_bytes = bytes;
+      m_hash = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return m_hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && Arrays.equals(m_bytes, ((Key)obj).m_bytes);
+    }
+  }
+
+  /**
+   * Builds the minimal DAWG from words arriving in sorted order. Nodes are written children
+   * first, so the root comes last and its address goes in the header.
+   */
+  private static class DawgWriter {
+
+    private final RandomAccessFile m_file;
+    private final OutputStream m_out;
+    private final CRC32 m_crc = new CRC32();
+    private final byte[] m_header;
+    private final HashMap<Key, Integer> m_written = new HashMap<Key, Integer>();
+    private final Node[] m_path = new Node[MAX_WORD_LENGTH + 1];
+
+    private String m_previous = "";
+    private int m_address;
+    int m_length;
+    int m_wordCount;
+    int m_nodesWritten;
+    int m_nodesShared;
+
+    DawgWriter(File output, String locale) throws IOException {
+      for (int ii = 0; ii < m_path.length; ii++) {
+        m_path[ii] = new Node();
+      }
+      m_header = new byte[FIXED_HEADER_SIZE + locale.length()];
+      output.delete();
+      m_file = new RandomAccessFile(output, "rw");
+      m_file.write(m_header);
+      m_out = new BufferedOutputStream(new FileOutputStream(m_file.getFD()));
+      m_address = m_header.length;
+      for (int ii = 0; ii < locale.length(); ii++) {
+        m_header[FIXED_HEADER_SIZE + ii] = (byte)locale.charAt(ii);
+      }
+    }
+
+    void add(String word, int freq) throws IOException {
+      int prefix = 0;
+      int max = Math.min(word.length(), m_previous.length());
+      while (prefix < max && word.charAt(prefix) == m_previous.charAt(prefix)) {
+        prefix++;
+      }
+      if (prefix == word.length() && prefix == m_previous.length()) {
+        // Duplicate entry, keep the more frequent one
+        Node node = m_path[prefix - 1];
+        node.m_freqs[node.m_size - 1] = Math.max(node.m_freqs[node.m_size - 1], freq);
+        return;
+      }
+      freeze(prefix + 1);
+      for (int depth = prefix; depth < word.length(); depth++) {
+        m_path[depth].add(word.charAt(depth));
+      }
+      Node last = m_path[word.length() - 1];
+      last.m_terminal[last.m_size - 1] = true;
+      last.m_freqs[last.m_size - 1] = freq;
+      m_previous = word;
+      m_wordCount++;
+    }
+
+    /**
+     * Writes out every pending node deeper than the given depth and links each into the last
+     * entry of its parent.
+     */
+    private void freeze(int depth) throws IOException {
+      for (int ii = m_previous.length(); ii >= depth; ii--) {
+        Node node = m_path[ii];
+        if (node.m_size == 0) continue;
+        Node parent = m_path[ii - 1];
+        parent.m_children[parent.m_size - 1] = write(node);
+        node.clear();
+      }
+    }
+
+    private int write(Node node) throws IOException {
+      if (node.m_size > MAX_CHILDREN) {
+        throw new IOException("Node has more than " + MAX_CHILDREN + " children");
+      }
+      Key key = new Key(node.encode());
+      Integer existing = m_written.get(key);
+      if (existing != null) {
+        m_nodesShared++;
+        return existing;
+      }
+      int address = m_address;
+      if (address + key.m_bytes.length > MAX_ADDRESS) {
+        throw new IOException("Dictionary exceeds the 22-bit address space");
+      }
+      m_out.write(key.m_bytes);
+      m_crc.update(key.m_bytes);
+      m_address += key.m_bytes.length;
+      m_written.put(key, address);
+      m_nodesWritten++;
+      return address;
+    }
+
+    void finish() throws IOException {
+      freeze(1);
+      int root = write(m_path[0]);
+      m_out.flush();
+      m_length = m_address;
+
+      int pos = putInt(m_header, 0, MAGIC);
+      pos = putShort(m_header, pos, VERSION);
+      pos = putShort(m_header, pos, m_header.length);
+      pos = putInt(m_header, pos, m_wordCount);
+      pos = putInt(m_header, pos, root);
+      pos = putInt(m_header, pos, m_address - m_header.length);
+      pos = putInt(m_header, pos, (int)m_crc.getValue());
+      m_header[pos++] = 0; // reserved
+      m_header[pos] = (byte)(m_header.length - FIXED_HEADER_SIZE);
+      m_file.seek(0);
+      m_file.write(m_header);
+      m_file.close();
+    }
+
+    private static int putInt(byte[] buf, int pos, int value) {
+      pos = putShort(buf, pos, value >>> 16);
+      return putShort(buf, pos, value);
+    }
+
+    private static int putShort(byte[] buf, int pos, int value) {
+      buf[pos++] = (byte)(value >> 8);
+      buf[pos++] = (byte)value;
+      return pos;
+    }
+  }
+}